@@ -0,0 +1,92 @@
+package nl.first8.cputimeexporter.instrument;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of an instrumented call: the same small method called as it is and wrapped in
+ * the enter and exit calls the instrumentation adds, on several threads at once to show
+ * that the per-thread counters do not contend. The reentrant call is not timed itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+public class MethodTimerBenchmark {
+    private static final int METHOD_ID = 0;
+
+    @Param({"16"})
+    private int work;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MethodTimers.install(new MethodTimer(List.of("benchmark.Target.work"), threadBean::getCurrentThreadCpuTime));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        MethodTimers.install(null);
+    }
+
+    @Benchmark
+    public long plainCall() {
+        return work(work);
+    }
+
+    @Benchmark
+    public long instrumentedCall() {
+        long entryCpuTime = MethodTimers.enter(METHOD_ID);
+        try {
+            return work(work);
+        }
+        finally {
+            MethodTimers.exit(METHOD_ID, entryCpuTime);
+        }
+    }
+
+    @Benchmark
+    public long reentrantCall() {
+        long outer = MethodTimers.enter(METHOD_ID);
+        try {
+            long inner = MethodTimers.enter(METHOD_ID);
+            try {
+                return work(work);
+            }
+            finally {
+                MethodTimers.exit(METHOD_ID, inner);
+            }
+        }
+        finally {
+            MethodTimers.exit(METHOD_ID, outer);
+        }
+    }
+
+    private static long work(int iterations) {
+        long result = 0;
+        for (int i = 0; i < iterations; i++) {
+            result = result * 31 + i;
+        }
+        return result;
+    }
+}
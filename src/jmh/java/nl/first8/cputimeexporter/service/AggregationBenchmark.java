@@ -0,0 +1,125 @@
+package nl.first8.cputimeexporter.service;
+
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of folding a sampling step into the window stats, and of attributing the CPU time of a window.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AggregationBenchmark {
+
+	private static final int SAMPLES_PER_WINDOW = 100;
+	private static final int DISTINCT_STACK_TRACES = 1024;
+
+	@State(Scope.Benchmark)
+	public static class ExtractStatsState {
+		@Param({"10", "100", "1000", "5000"})
+		private int threads;
+
+		@Param({"20", "200"})
+		private int stackDepth;
+
+		@Param({"1", "10", "100"})
+		private int monitoredPrefixes;
+
+		@Param({"0", "10"})
+		private int groupingPrefixes;
+
+		private MonitoringService monitoringService;
+		private StackTraceElement[][] stackTraces;
+		private WindowStats windowStats;
+		private int step;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			monitoringService = new MonitoringService(
+					BenchmarkFixtures.properties(monitoredPrefixes, groupingPrefixes, stackDepth), new PrometheusRegistry());
+			stackTraces = BenchmarkFixtures.stackTraces(DISTINCT_STACK_TRACES, stackDepth, monitoredPrefixes, 42);
+			windowStats = new WindowStats();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class CalculateState {
+		@Param({"10", "100", "1000", "5000"})
+		private int threads;
+
+		@Param({"10", "100"})
+		private int monitoredPrefixes;
+
+		private MonitoringService monitoringService;
+		private List<Thread> parkedThreads;
+		private long[] threadIds;
+		private WindowStats windowStats;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			monitoringService = new MonitoringService(
+					BenchmarkFixtures.properties(monitoredPrefixes, 0, 64), new PrometheusRegistry());
+			parkedThreads = BenchmarkFixtures.startParkedThreads(threads, 1);
+			threadIds = parkedThreads.stream().mapToLong(Thread::getId).toArray();
+
+			// A full window of samples for every thread
+			StackTraceElement[][] stackTraces = BenchmarkFixtures.stackTraces(DISTINCT_STACK_TRACES, 20, monitoredPrefixes, 42);
+			windowStats = new WindowStats();
+			for (int sample = 0; sample < SAMPLES_PER_WINDOW; sample++) {
+				for (int i = 0; i < threadIds.length; i++) {
+					StackTraceElement[] stackTrace = stackTraces[(sample * threadIds.length + i) % stackTraces.length];
+					monitoringService.extractStats(threadIds[i], stackTrace, windowStats);
+				}
+			}
+			monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), threadIds);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			BenchmarkFixtures.stop(parkedThreads);
+		}
+	}
+
+	/**
+	 * Folds one sampling step, with a stack trace for each thread, into the window stats.
+	 */
+	@Benchmark
+	public WindowStats extractStats(ExtractStatsState state) {
+		StackTraceElement[][] stackTraces = state.stackTraces;
+		int offset = state.step++ * state.threads;
+		for (int threadId = 0; threadId < state.threads; threadId++) {
+			StackTraceElement[] stackTrace = stackTraces[(offset + threadId) & (DISTINCT_STACK_TRACES - 1)];
+			state.monitoringService.extractStats(threadId, stackTrace, state.windowStats);
+		}
+		if (state.step == SAMPLES_PER_WINDOW) {
+			state.windowStats.clear();
+			state.step = 0;
+		}
+		return state.windowStats;
+	}
+
+	/**
+	 * Attributes the CPU time of one window to the methods of all threads.
+	 */
+	@Benchmark
+	public void calculateAndStoreMethodTimeInSeconds(CalculateState state) {
+		state.monitoringService.calculateAndStoreMethodTimeInSeconds(state.windowStats, state.threadIds);
+	}
+}
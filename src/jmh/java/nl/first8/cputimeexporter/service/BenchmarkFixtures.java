@@ -0,0 +1,155 @@
+package nl.first8.cputimeexporter.service;
+
+import nl.first8.cputimeexporter.config.AgentProperties;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Synthetic configuration, stack traces and threads for the benchmarks.
+ */
+final class BenchmarkFixtures {
+	private static final String APPLICATION_PACKAGE = "com.example.pkg";
+	private static final String[] FRAMEWORK_CLASSES = {
+			"java.lang.Thread", "java.util.concurrent.ThreadPoolExecutor", "org.apache.catalina.core.StandardWrapperValve",
+			"org.springframework.web.servlet.DispatcherServlet", "org.springframework.aop.framework.ReflectiveMethodInvocation",
+			"jdk.internal.reflect.DirectMethodHandleAccessor", "java.util.HashMap",
+	};
+
+	private BenchmarkFixtures() {
+	}
+
+	/**
+	 * @return properties monitoring the first monitoredPrefixes application packages, of which the first
+	 * groupingPrefixes are grouped
+	 */
+	static AgentProperties properties(int monitoredPrefixes, int groupingPrefixes, int maxStackDepth) {
+		Properties properties = new Properties();
+		properties.setProperty("package-names-to-monitor", packages(monitoredPrefixes));
+		properties.setProperty("grouping-package-names", packages(groupingPrefixes));
+		properties.setProperty("port", "0");
+		properties.setProperty("max-stack-depth", String.valueOf(maxStackDepth));
+		return new AgentProperties(properties);
+	}
+
+	private static String packages(int count) {
+		return IntStream.range(0, count)
+				.mapToObj(i -> APPLICATION_PACKAGE + i)
+				.collect(Collectors.joining(","));
+	}
+
+	/**
+	 * Creates stack traces of the given depth, made up of framework frames with one application method at a
+	 * random depth. One in five stack traces has no application method at all.
+	 */
+	static StackTraceElement[][] stackTraces(int count, int depth, int applicationPackages, long seed) {
+		Random random = new Random(seed);
+		StackTraceElement[][] result = new StackTraceElement[count][];
+		for (int i = 0; i < count; i++) {
+			StackTraceElement[] stackTrace = new StackTraceElement[depth];
+			for (int frame = 0; frame < depth; frame++) {
+				String className = FRAMEWORK_CLASSES[random.nextInt(FRAMEWORK_CLASSES.length)];
+				stackTrace[frame] = new StackTraceElement(className, "invoke" + random.nextInt(4), null, -1);
+			}
+			if (random.nextInt(5) != 0) {
+				String className = APPLICATION_PACKAGE + random.nextInt(Math.max(applicationPackages, 1))
+						+ ".Class" + random.nextInt(20);
+				stackTrace[random.nextInt(depth)] = new StackTraceElement(className, "method" + random.nextInt(10), null, -1);
+			}
+			result[i] = stackTrace;
+		}
+		return result;
+	}
+
+	/**
+	 * Starts threads that wait at the given stack depth, in a WAITING state.
+	 */
+	static List<Thread> startParkedThreads(int count, int depth) {
+		CountDownLatch started = new CountDownLatch(count);
+		List<Thread> threads = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(() -> descend(depth, () -> {
+				started.countDown();
+				while (!Thread.currentThread().isInterrupted()) {
+					LockSupport.park();
+				}
+			}), "parked-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+		await(started);
+		return threads;
+	}
+
+	/**
+	 * Starts threads that block in a socket read at the given stack depth. Like threads waiting on I/O in an
+	 * application, they are RUNNABLE without using CPU.
+	 */
+	static List<DatagramSocket> startBlockedInIoThreads(int count, int depth) {
+		CountDownLatch started = new CountDownLatch(count);
+		List<DatagramSocket> sockets = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			DatagramSocket socket = openSocket();
+			Thread thread = new Thread(() -> descend(depth, () -> {
+				started.countDown();
+				try {
+					socket.receive(new DatagramPacket(new byte[1], 1));
+				}
+				catch (IOException e) {
+					// Socket was closed on tear down
+				}
+			}), "blocked-in-io-" + i);
+			thread.setDaemon(true);
+			thread.start();
+			sockets.add(socket);
+		}
+		await(started);
+		return sockets;
+	}
+
+	static void stop(List<Thread> threads) {
+		threads.forEach(Thread::interrupt);
+	}
+
+	static void close(List<DatagramSocket> sockets) {
+		sockets.forEach(DatagramSocket::close);
+	}
+
+	private static void descend(int depth, Runnable action) {
+		if (depth <= 1) {
+			action.run();
+		}
+		else {
+			descend(depth - 1, action);
+		}
+	}
+
+	private static DatagramSocket openSocket() {
+		try {
+			return new DatagramSocket(0);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
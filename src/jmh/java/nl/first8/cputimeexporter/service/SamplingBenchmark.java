@@ -0,0 +1,84 @@
+package nl.first8.cputimeexporter.service;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single sampling step, against real threads of which a part is RUNNABLE while blocked in I/O and
+ * the rest is WAITING. With skipIdleThreads, the threads blocked in I/O use no CPU time, so their stacks are skipped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SamplingBenchmark {
+
+	@Param({"10", "100", "1000", "5000"})
+	private int threads;
+
+	@Param({"20", "200"})
+	private int stackDepth;
+
+	@Param({"64"})
+	private int maxStackDepth;
+
+	@Param({"10"})
+	private int runnablePercentage;
+
+	@Param({"false", "true"})
+	private boolean skipIdleThreads;
+
+	private List<Thread> parkedThreads;
+	private List<DatagramSocket> blockedSockets;
+	private ThreadSampler threadSampler;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		int runnableThreads = threads * runnablePercentage / 100;
+		blockedSockets = BenchmarkFixtures.startBlockedInIoThreads(runnableThreads, stackDepth);
+		parkedThreads = BenchmarkFixtures.startParkedThreads(threads - runnableThreads, stackDepth);
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		threadSampler = new ThreadSampler(threadBean, maxStackDepth, 1000, false,
+				skipIdleThreads ? ThreadUsageTracker.cpuTimeReader(threadBean) : null);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		BenchmarkFixtures.close(blockedSockets);
+		BenchmarkFixtures.stop(parkedThreads);
+	}
+
+	@Benchmark
+	public ThreadInfo[] sample() {
+		return threadSampler.sample();
+	}
+
+	/**
+	 * The sampling step as it was done before, for comparison.
+	 */
+	@Benchmark
+	public Map<Thread, StackTraceElement[]> getAllStackTraces() {
+		return Thread.getAllStackTraces();
+	}
+}
@@ -1,65 +1,225 @@
 package nl.first8.cputimeexporter;
 
+import com.sun.net.httpserver.HttpHandler;
+import io.prometheus.metrics.exporter.httpserver.DefaultHandler;
 import io.prometheus.metrics.exporter.httpserver.HTTPServer;
 import io.prometheus.metrics.model.registry.PrometheusRegistry;
 import nl.first8.cputimeexporter.config.AgentProperties;
+import nl.first8.cputimeexporter.config.ConfigWatcher;
+import nl.first8.cputimeexporter.config.InvalidConfigurationException;
+import nl.first8.cputimeexporter.instrument.MethodTimingTransformer;
 import nl.first8.cputimeexporter.service.MonitoringService;
+import nl.first8.cputimeexporter.service.SamplingControl;
 
+import javax.management.JMException;
 import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.file.FileSystems;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static nl.first8.cputimeexporter.service.MonitoringService.COMPUTATION_THREAD_NAME;
-
 public class Agent {
 
     public static final String NAME_THREAD_NAME = "Cpu Time Exporter";
-    private static final Logger logger = Logger.getLogger(Agent.class.getName());
+    public static final String FLAME_GRAPH_PATH = "/flamegraph";
+    // Set while the agent is starting or started, so a second attach does not start it again
+    static final AtomicBoolean started = new AtomicBoolean();
 
     /**
      * JVM hook to statically load the java agent at startup.
      * After the Java Virtual Machine (JVM) has initialized, the premain method
      * will be called. Then the real application main method will be called.
+     * <p>
+     * To not delay the application, premain only starts a daemon thread that starts
+     * the agent, and returns at once. Until then, only this class is loaded.
      */
     public static void premain(String args, Instrumentation inst) {
-        Thread.currentThread().setName(NAME_THREAD_NAME);
+        startInBackground(args, inst);
+    }
+
+    /**
+     * JVM hook to dynamically attach the java agent to a running JVM, for instance with
+     * {@code VirtualMachine.loadAgent(jar, configPath)}. Attaching again while the agent
+     * is loaded does nothing; use the SamplingControl MBean to control it instead.
+     */
+    public static void agentmain(String args, Instrumentation inst) {
+        start(args, inst);
+    }
+
+    /**
+     * Starts the agent on a new daemon thread.
+     * @return the thread starting the agent
+     */
+    static Thread startInBackground(String args, Instrumentation instrumentation) {
+        // A nested class rather than a lambda, as the first lambda bootstraps invokedynamic on the calling thread
+        Thread thread = new Thread(new Startup(args, instrumentation), NAME_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static final class Startup implements Runnable {
+        private final String args;
+        private final Instrumentation instrumentation;
+
+        private Startup(String args, Instrumentation instrumentation) {
+            this.args = args;
+            this.instrumentation = instrumentation;
+        }
+
+        @Override
+        public void run() {
+            start(args, instrumentation);
+        }
+    }
+
+    /**
+     * Starts the agent once. A failure to start is logged and leaves the application running without the agent,
+     * which can then be attached again, for instance with a corrected config.
+     * @param args the path of the config file, or empty to use the cputimeexporter.config
+     * system property or config.properties
+     * @param instrumentation to instrument the methods to time exactly, or null to only sample
+     */
+    static void start(String args, Instrumentation instrumentation) {
+        Logger logger = logger();
+        if (!started.compareAndSet(false, true)) {
+            logger.info("Cpu-Time-Exporter Agent is already loaded, use the SamplingControl MBean to control it");
+            return;
+        }
+        if (args != null && !args.isBlank()) {
+            System.setProperty(AgentProperties.CONFIG_PATH_PROPERTY, args.trim());
+        }
+
         logger.info("+---------------------------------------+");
         logger.info("| Cpu-Time-Exporter Agent Version 1.0.0 |");
         logger.info("+---------------------------------------+");
 
-        AgentProperties properties = new AgentProperties();
+        AgentProperties properties;
+        MonitoringService monitoringService;
         PrometheusRegistry registry = new PrometheusRegistry();
-        HTTPServer httpServer = startHttpServer(properties, registry);
-        MonitoringService monitoringService = new MonitoringService(properties,registry);
+        try {
+            properties = new AgentProperties();
+            monitoringService = new MonitoringService(properties, registry);
+        } catch (InvalidConfigurationException | UnsupportedOperationException e) {
+            logger.severe(e.getMessage() + ". The agent is not started");
+            started.set(false);
+            return;
+        }
+        Optional<HTTPServer> httpServer = Optional.ofNullable(
+                startHttpServer(properties, registry, monitoringService.getFlameGraphHandler()));
+        registerSamplingControl(monitoringService);
+        if (!properties.getInstrumentedMethods().isEmpty()) {
+            instrumentMethods(instrumentation, properties, registry);
+        }
 
         logger.log(Level.INFO, "Initialization finished");
 
         // Start the monitoring thread
-        Thread monitoringThread = new Thread(monitoringService, COMPUTATION_THREAD_NAME);
-        monitoringThread.setDaemon(true);
-        monitoringThread.start();
+        if (properties.getStartPaused()) {
+            monitoringService.pause();
+        } else {
+            monitoringService.start();
+        }
+
+        if (properties.getWatchConfig()) {
+            startConfigWatcher(monitoringService);
+        }
 
+        // Stopping the monitoring thread closes the recording, so the last windows are written
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             logger.info("Shutting down...");
-            httpServer.stop();
-            httpServer.close();
+            monitoringService.stop();
+            httpServer.ifPresent(server -> {
+                server.stop();
+                server.close();
+            });
         }));
     }
 
+    /**
+     * Times the instrumented methods exactly, next to the sampling.
+     */
+    private static void instrumentMethods(Instrumentation instrumentation, AgentProperties properties,
+                                          PrometheusRegistry registry) {
+        if (instrumentation == null || !instrumentation.isRetransformClassesSupported()) {
+            logger().warning("The JVM does not allow to retransform classes, not instrumenting any methods");
+            return;
+        }
+        MethodTimingTransformer.install(instrumentation, properties.getInstrumentedMethods(), registry);
+    }
+
+    /**
+     * Registers the MBean to start, pause and stop sampling at runtime. The agent keeps
+     * running without it if it cannot be registered.
+     */
+    static void registerSamplingControl(MonitoringService monitoringService) {
+        try {
+            new SamplingControl(monitoringService).register(ManagementFactory.getPlatformMBeanServer());
+        } catch (JMException e) {
+            logger().warning(() -> String.format("Cannot register the sampling control MBean \"%s\"", e.getMessage()));
+        }
+    }
+
+    /**
+     * Starts watching the config file, applying valid changes to the monitoring service.
+     * The agent keeps running with its current config if the file cannot be watched.
+     */
+    static void startConfigWatcher(MonitoringService monitoringService) {
+        try {
+            new ConfigWatcher(FileSystems.getDefault(), monitoringService::reload).start();
+        } catch (IOException e) {
+            logger().warning(() -> String.format("Cannot watch the config for changes \"%s\"", e.getMessage()));
+        }
+    }
+
     static HTTPServer startHttpServer(AgentProperties properties, PrometheusRegistry registry) {
+        return startHttpServer(properties, registry, Optional.empty());
+    }
+
+    /**
+     * Starts the HTTP server for the metrics, also serving the flame graph at FLAME_GRAPH_PATH if it is enabled.
+     * @return the server, or null if it cannot be started, for instance because the port is in use
+     */
+    static HTTPServer startHttpServer(AgentProperties properties, PrometheusRegistry registry,
+                                      Optional<HttpHandler> flameGraphHandler) {
         try {
-            return HTTPServer.builder()
+            HTTPServer.Builder builder = HTTPServer.builder()
                     .port(properties.getPort())
-                    .registry(registry)
-                    .buildAndStart();
+                    .registry(registry);
+            if (flameGraphHandler.isPresent()) {
+                // Paths without a handler of their own end up at the default handler
+                HttpHandler defaultHandler = new DefaultHandler();
+                HttpHandler flameGraph = flameGraphHandler.get();
+                builder = builder.defaultHandler(exchange -> {
+                    if (FLAME_GRAPH_PATH.equals(exchange.getRequestURI().getPath())) {
+                        flameGraph.handle(exchange);
+                    } else {
+                        defaultHandler.handle(exchange);
+                    }
+                });
+            }
+            return builder.buildAndStart();
         } catch (IOException e) {
-            logger.severe(() -> String.format("Cannot perform IO \"%s\"", e.getMessage()));
-            System.exit(1);
+            logger().severe(() -> String.format("Cannot start the HTTP server on port %d, not exposing metrics \"%s\"",
+                    properties.getPort(), e.getMessage()));
         }
         return null;
     }
 
+    /**
+     * @return the logger, which is looked up on first use so premain does not initialize java.util.logging
+     */
+    private static Logger logger() {
+        return LoggerHolder.LOGGER;
+    }
+
+    private static final class LoggerHolder {
+        private static final Logger LOGGER = Logger.getLogger(Agent.class.getName());
+    }
+
     /**
      * Private constructor
      */
@@ -7,47 +7,147 @@ import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collection;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
-import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 public class AgentProperties {
     private static final Logger log = Logger.getLogger(AgentProperties.class.getName());
 
+    // System property with the path of the config file
+    public static final String CONFIG_PATH_PROPERTY = "cputimeexporter.config";
+
     // Properties names in the config.properties file
     private static final String PACKAGE_NAME_TO_MONITOR_PROPERTY = "package-names-to-monitor";
     private static final String GROUPING_PACKAGE_NAME_PROPERTY = "grouping-package-names";
     private static final String HIDE_AGENT_CONSUMPTION_PROPERTY = "hide-agent-consumption";
     private static final String PORT_PROPERTY = "port";
+    private static final String MAX_STACK_DEPTH_PROPERTY = "max-stack-depth";
+    private static final String THREAD_REFRESH_INTERVAL_PROPERTY = "thread-refresh-interval-milliseconds";
+    private static final String FRAME_CACHE_SIZE_PROPERTY = "frame-cache-size";
+    private static final String SAMPLE_RATE_PROPERTY = "sample-rate-milliseconds";
+    private static final String SAMPLE_TIME_PROPERTY = "sample-time-milliseconds";
+    private static final String ADAPTIVE_SAMPLING_PROPERTY = "adaptive-sampling";
+    private static final String CPU_OVERHEAD_BUDGET_PROPERTY = "cpu-overhead-budget";
+    private static final String MAX_SAMPLE_RATE_PROPERTY = "max-sample-rate-milliseconds";
+    private static final String MAX_METHOD_LABELS_PROPERTY = "max-method-labels";
+    private static final String METHOD_LABEL_EXPIRY_WINDOWS_PROPERTY = "method-label-expiry-windows";
+    private static final String SAMPLING_MODE_PROPERTY = "sampling-mode";
+    private static final String FLAME_GRAPH_ENABLED_PROPERTY = "flame-graph-enabled";
+    private static final String FLAME_GRAPH_MAX_NODES_PROPERTY = "flame-graph-max-nodes";
+    private static final String FLAME_GRAPH_HISTORY_WINDOWS_PROPERTY = "flame-graph-history-windows";
+    private static final String WATCH_CONFIG_PROPERTY = "watch-config";
+    private static final String START_PAUSED_PROPERTY = "start-paused";
+    private static final String SKIP_IDLE_THREADS_PROPERTY = "skip-idle-threads";
+    private static final String PROC_THREAD_CPU_TIME_PROPERTY = "proc-thread-cpu-time";
+    private static final String RECORDING_FILE_PROPERTY = "recording-file";
+    private static final String RECORDING_SIZE_PROPERTY = "recording-size-megabytes";
+    private static final String SAMPLE_BUFFER_SIZE_PROPERTY = "sample-buffer-size";
+    private static final String INSTRUMENTED_METHODS_PROPERTY = "instrumented-methods";
+    private static final String THREAD_POOL_PATTERNS_PROPERTY = "thread-pool-patterns";
+
+    // Default values for optional properties
+    private static final int DEFAULT_MAX_STACK_DEPTH = 64;
+    private static final long DEFAULT_THREAD_REFRESH_INTERVAL_MILLISECONDS = 1000;
+    private static final int DEFAULT_FRAME_CACHE_SIZE = 16384;
+    private static final long DEFAULT_SAMPLE_RATE_MILLISECONDS = 10;
+    private static final long DEFAULT_SAMPLE_TIME_MILLISECONDS = 1000;
+    private static final double DEFAULT_CPU_OVERHEAD_BUDGET = 0.01;
+    private static final long DEFAULT_MAX_SAMPLE_RATE_MILLISECONDS = 200;
+    private static final int DEFAULT_MAX_METHOD_LABELS = 500;
+    private static final int DEFAULT_METHOD_LABEL_EXPIRY_WINDOWS = 300;
+    private static final int DEFAULT_FLAME_GRAPH_MAX_NODES = 4096;
+    private static final int DEFAULT_FLAME_GRAPH_HISTORY_WINDOWS = 60;
+    private static final int DEFAULT_RECORDING_SIZE_MEGABYTES = 64;
+    // A memory-mapped file can be at most 2 GiB
+    private static final int MAX_RECORDING_SIZE_MEGABYTES = 2047;
+    private static final int DEFAULT_SAMPLE_BUFFER_SIZE = 256;
+    private static final int MAX_SAMPLE_BUFFER_SIZE = 65536;
 
     private final Properties loadedProperties;
-    private final Collection<String> packageNamesToMonitor;
-    private final Collection<String> groupingPackageNames;
+    private final List<String> packageNamesToMonitor;
+    private final List<String> groupingPackageNames;
     private final boolean hideAgentConsumption;
     private final int port;
+    private final int maxStackDepth;
+    private final long threadRefreshIntervalMilliseconds;
+    private final int frameCacheSize;
+    private final long sampleRateMilliseconds;
+    private final long sampleTimeMilliseconds;
+    private final boolean adaptiveSampling;
+    private final double cpuOverheadBudget;
+    private final long maxSampleRateMilliseconds;
+    private final int maxMethodLabels;
+    private final int methodLabelExpiryWindows;
+    private final SamplingMode samplingMode;
+    private final boolean flameGraphEnabled;
+    private final int flameGraphMaxNodes;
+    private final int flameGraphHistoryWindows;
+    private final boolean watchConfig;
+    private final boolean startPaused;
+    private final boolean skipIdleThreads;
+    private final boolean procThreadCpuTime;
+    private final Optional<Path> recordingFile;
+    private final int recordingSizeMegabytes;
+    private final int sampleBufferSize;
+    private final List<String> instrumentedMethods;
+    private final Map<String, String> threadPoolPatterns;
 
+    /**
+     * Loads the config file given by the cputimeexporter.config system property, or config.properties.
+     * @throws InvalidConfigurationException if the config file cannot be read or has an invalid value
+     */
     public AgentProperties(FileSystem fileSystem) {
-        this.loadedProperties = loadProperties(fileSystem);
-        this.packageNamesToMonitor = loadPackageNames();
-        this.groupingPackageNames = loadGroupingPackageNames();
-        this.hideAgentConsumption = loadAgentConsumption();
-        this.port = loadPort();
+        this(loadProperties(fileSystem));
     }
 
-    public AgentProperties() {
-        this(FileSystems.getDefault());
+    /**
+     * @throws InvalidConfigurationException if one of the properties has an invalid value
+     */
+    public AgentProperties(Properties loadedProperties) {
+        this.loadedProperties = loadedProperties;
+        try {
+            this.packageNamesToMonitor = loadPackageNames();
+            this.groupingPackageNames = loadGroupingPackageNames();
+            this.hideAgentConsumption = loadAgentConsumption();
+            this.port = loadPort();
+            this.maxStackDepth = loadMaxStackDepth();
+            this.threadRefreshIntervalMilliseconds = loadThreadRefreshIntervalMilliseconds();
+            this.frameCacheSize = loadFrameCacheSize();
+            this.sampleRateMilliseconds = loadSampleRateMilliseconds();
+            this.sampleTimeMilliseconds = loadSampleTimeMilliseconds();
+            this.adaptiveSampling = loadAdaptiveSampling();
+            this.cpuOverheadBudget = loadCpuOverheadBudget();
+            this.maxSampleRateMilliseconds = loadMaxSampleRateMilliseconds();
+            this.maxMethodLabels = loadMaxMethodLabels();
+            this.methodLabelExpiryWindows = loadMethodLabelExpiryWindows();
+            this.samplingMode = loadSamplingMode();
+            this.flameGraphEnabled = loadFlameGraphEnabled();
+            this.flameGraphMaxNodes = loadFlameGraphMaxNodes();
+            this.flameGraphHistoryWindows = loadFlameGraphHistoryWindows();
+            this.watchConfig = loadWatchConfig();
+            this.startPaused = loadStartPaused();
+            this.skipIdleThreads = loadSkipIdleThreads();
+            this.procThreadCpuTime = loadProcThreadCpuTime();
+            this.recordingFile = loadRecordingFile();
+            this.recordingSizeMegabytes = loadRecordingSizeMegabytes();
+            this.sampleBufferSize = loadSampleBufferSize();
+            this.instrumentedMethods = loadInstrumentedMethods();
+            this.threadPoolPatterns = loadThreadPoolPatterns();
+        } catch (NumberFormatException e) {
+            throw new InvalidConfigurationException("Invalid number in config: " + e.getMessage(), e);
+        }
     }
 
-    public boolean isInPackageToMonitor(String methodName) {
-        for (String filterMethod : packageNamesToMonitor) {
-            if (methodName.startsWith(filterMethod)) {
-                return true;
-            }
-        }
-        return false;
+    public AgentProperties() {
+        this(FileSystems.getDefault());
     }
 
     public boolean getHideAgentConsumption() {
@@ -58,11 +158,114 @@ public class AgentProperties {
         return this.port;
     }
 
-    public Collection<String> getGroupingPackageNames() {
+    public List<String> getPackageNamesToMonitor() {
+        return this.packageNamesToMonitor;
+    }
+
+    public List<String> getGroupingPackageNames() {
         return this.groupingPackageNames;
     }
 
-    private Properties loadProperties(FileSystem fileSystem) {
+    public int getMaxStackDepth() {
+        return this.maxStackDepth;
+    }
+
+    public long getThreadRefreshIntervalMilliseconds() {
+        return this.threadRefreshIntervalMilliseconds;
+    }
+
+    public int getFrameCacheSize() {
+        return this.frameCacheSize;
+    }
+
+    public long getSampleRateMilliseconds() {
+        return this.sampleRateMilliseconds;
+    }
+
+    public long getSampleTimeMilliseconds() {
+        return this.sampleTimeMilliseconds;
+    }
+
+    public boolean getAdaptiveSampling() {
+        return this.adaptiveSampling;
+    }
+
+    public double getCpuOverheadBudget() {
+        return this.cpuOverheadBudget;
+    }
+
+    public long getMaxSampleRateMilliseconds() {
+        return this.maxSampleRateMilliseconds;
+    }
+
+    public int getMaxMethodLabels() {
+        return this.maxMethodLabels;
+    }
+
+    public int getMethodLabelExpiryWindows() {
+        return this.methodLabelExpiryWindows;
+    }
+
+    public SamplingMode getSamplingMode() {
+        return this.samplingMode;
+    }
+
+    public boolean getFlameGraphEnabled() {
+        return this.flameGraphEnabled;
+    }
+
+    public int getFlameGraphMaxNodes() {
+        return this.flameGraphMaxNodes;
+    }
+
+    public int getFlameGraphHistoryWindows() {
+        return this.flameGraphHistoryWindows;
+    }
+
+    public boolean getWatchConfig() {
+        return this.watchConfig;
+    }
+
+    public boolean getStartPaused() {
+        return this.startPaused;
+    }
+
+    public boolean getSkipIdleThreads() {
+        return this.skipIdleThreads;
+    }
+
+    public boolean getProcThreadCpuTime() {
+        return this.procThreadCpuTime;
+    }
+
+    public Optional<Path> getRecordingFile() {
+        return this.recordingFile;
+    }
+
+    public int getRecordingSizeMegabytes() {
+        return this.recordingSizeMegabytes;
+    }
+
+    public int getSampleBufferSize() {
+        return this.sampleBufferSize;
+    }
+
+    /**
+     * @return the fully qualified names of the methods to time exactly, as {@code package.Class.method}
+     */
+    public List<String> getInstrumentedMethods() {
+        return this.instrumentedMethods;
+    }
+
+    /**
+     * @return the thread pool of each thread name pattern, in order of priority, or an empty map if the CPU time
+     * is not reported per thread pool
+     */
+    public Map<String, String> getThreadPoolPatterns() {
+        return this.threadPoolPatterns;
+    }
+
+    private static Properties loadProperties(FileSystem fileSystem) {
         Properties result = new Properties();
 
         // Read properties file if possible
@@ -70,31 +273,41 @@ public class AgentProperties {
             try (InputStream input = new BufferedInputStream(Files.newInputStream(path))) {
                 result.load(input);
             } catch (IOException e) {
-                log.severe("Couldn't load local config: \"{0}\", exiting...");
-                System.exit(1);
+                throw new InvalidConfigurationException("Couldn't load local config: \"" + path + "\"", e);
             }
         });
 
         return result;
     }
 
-    private Collection<String> loadPackageNames() {
+    private List<String> loadPackageNames() {
         String methods = loadedProperties.getProperty(PACKAGE_NAME_TO_MONITOR_PROPERTY);
         log.info(methods);
         if (methods == null || methods.isEmpty()) {
-            log.severe("MethodNames is empty, no methods to monitor. Exiting...");
-            System.exit(1);
+            throw new InvalidConfigurationException("MethodNames is empty, no methods to monitor");
         }
-        return Set.of(methods.split(","));
+        return splitList(methods);
     }
 
-    private Collection<String> loadGroupingPackageNames() {
+    private List<String> loadGroupingPackageNames() {
         String groupingPackages = loadedProperties.getProperty(GROUPING_PACKAGE_NAME_PROPERTY);
         log.info(groupingPackages);
         if (groupingPackages == null || groupingPackages.isEmpty()) {
-            return Collections.emptySet();
+            return Collections.emptyList();
         }
-        return Set.of(groupingPackages.split(","));
+        return splitList(groupingPackages);
+    }
+
+    /**
+     * Splits a comma separated list into its trimmed, distinct, non-empty entries, in their original order,
+     * as the order of package names defines their priority.
+     */
+    private static List<String> splitList(String list) {
+        return Arrays.stream(list.split(","))
+                .map(String::trim)
+                .filter(entry -> !entry.isEmpty())
+                .distinct()
+                .collect(Collectors.toUnmodifiableList());
     }
 
     public boolean loadAgentConsumption() {
@@ -105,8 +318,236 @@ public class AgentProperties {
         return Integer.parseInt(loadedProperties.getProperty(PORT_PROPERTY));
     }
 
-    private Optional<Path> getPropertiesPathIfExists(FileSystem fileSystem) {
-        Path path = fileSystem.getPath(System.getProperty("cputimeexporter.config", "config.properties"));
+    public int loadMaxStackDepth() {
+        String maxStackDepth = getOptionalProperty(MAX_STACK_DEPTH_PROPERTY);
+        if (maxStackDepth == null) {
+            return DEFAULT_MAX_STACK_DEPTH;
+        }
+        int result = Integer.parseInt(maxStackDepth);
+        if (result < 1) {
+            throw new InvalidConfigurationException("max-stack-depth must be at least 1");
+        }
+        return result;
+    }
+
+    public long loadThreadRefreshIntervalMilliseconds() {
+        String interval = getOptionalProperty(THREAD_REFRESH_INTERVAL_PROPERTY);
+        return interval == null ? DEFAULT_THREAD_REFRESH_INTERVAL_MILLISECONDS : Long.parseLong(interval);
+    }
+
+    public int loadFrameCacheSize() {
+        String frameCacheSize = getOptionalProperty(FRAME_CACHE_SIZE_PROPERTY);
+        return frameCacheSize == null ? DEFAULT_FRAME_CACHE_SIZE : Integer.parseInt(frameCacheSize);
+    }
+
+    public long loadSampleRateMilliseconds() {
+        String sampleRate = getOptionalProperty(SAMPLE_RATE_PROPERTY);
+        if (sampleRate == null) {
+            return DEFAULT_SAMPLE_RATE_MILLISECONDS;
+        }
+        long result = Long.parseLong(sampleRate);
+        if (result < 1) {
+            throw new InvalidConfigurationException("sample-rate-milliseconds must be at least 1");
+        }
+        return result;
+    }
+
+    public long loadSampleTimeMilliseconds() {
+        String sampleTime = getOptionalProperty(SAMPLE_TIME_PROPERTY);
+        if (sampleTime == null) {
+            return DEFAULT_SAMPLE_TIME_MILLISECONDS;
+        }
+        long result = Long.parseLong(sampleTime);
+        if (result < sampleRateMilliseconds) {
+            throw new InvalidConfigurationException("sample-time-milliseconds must be at least sample-rate-milliseconds");
+        }
+        return result;
+    }
+
+    public boolean loadAdaptiveSampling() {
+        return Boolean.parseBoolean(getOptionalProperty(ADAPTIVE_SAMPLING_PROPERTY));
+    }
+
+    public double loadCpuOverheadBudget() {
+        String budget = getOptionalProperty(CPU_OVERHEAD_BUDGET_PROPERTY);
+        if (budget == null) {
+            return DEFAULT_CPU_OVERHEAD_BUDGET;
+        }
+        double result = Double.parseDouble(budget);
+        if (result <= 0) {
+            throw new InvalidConfigurationException("cpu-overhead-budget must be larger than 0");
+        }
+        return result;
+    }
+
+    public long loadMaxSampleRateMilliseconds() {
+        String maxSampleRate = getOptionalProperty(MAX_SAMPLE_RATE_PROPERTY);
+        if (maxSampleRate == null) {
+            return Math.max(DEFAULT_MAX_SAMPLE_RATE_MILLISECONDS, sampleRateMilliseconds);
+        }
+        return Math.max(Long.parseLong(maxSampleRate), sampleRateMilliseconds);
+    }
+
+    public int loadMaxMethodLabels() {
+        String maxMethodLabels = getOptionalProperty(MAX_METHOD_LABELS_PROPERTY);
+        if (maxMethodLabels == null) {
+            return DEFAULT_MAX_METHOD_LABELS;
+        }
+        int result = Integer.parseInt(maxMethodLabels);
+        if (result < 1) {
+            throw new InvalidConfigurationException("max-method-labels must be at least 1");
+        }
+        return result;
+    }
+
+    public int loadMethodLabelExpiryWindows() {
+        String expiryWindows = getOptionalProperty(METHOD_LABEL_EXPIRY_WINDOWS_PROPERTY);
+        if (expiryWindows == null) {
+            return DEFAULT_METHOD_LABEL_EXPIRY_WINDOWS;
+        }
+        int result = Integer.parseInt(expiryWindows);
+        if (result < 1) {
+            throw new InvalidConfigurationException("method-label-expiry-windows must be at least 1");
+        }
+        return result;
+    }
+
+    public SamplingMode loadSamplingMode() {
+        String samplingMode = getOptionalProperty(SAMPLING_MODE_PROPERTY);
+        if (samplingMode == null) {
+            return SamplingMode.SAFEPOINT;
+        }
+        return SamplingMode.fromPropertyValue(samplingMode)
+                .orElseThrow(() -> new InvalidConfigurationException("sampling-mode must be safepoint or jfr"));
+    }
+
+    public boolean loadFlameGraphEnabled() {
+        return Boolean.parseBoolean(getOptionalProperty(FLAME_GRAPH_ENABLED_PROPERTY));
+    }
+
+    public int loadFlameGraphMaxNodes() {
+        String maxNodes = getOptionalProperty(FLAME_GRAPH_MAX_NODES_PROPERTY);
+        if (maxNodes == null) {
+            return DEFAULT_FLAME_GRAPH_MAX_NODES;
+        }
+        int result = Integer.parseInt(maxNodes);
+        if (result < 2) {
+            throw new InvalidConfigurationException("flame-graph-max-nodes must be at least 2");
+        }
+        return result;
+    }
+
+    public int loadFlameGraphHistoryWindows() {
+        String historyWindows = getOptionalProperty(FLAME_GRAPH_HISTORY_WINDOWS_PROPERTY);
+        if (historyWindows == null) {
+            return DEFAULT_FLAME_GRAPH_HISTORY_WINDOWS;
+        }
+        int result = Integer.parseInt(historyWindows);
+        if (result < 1) {
+            throw new InvalidConfigurationException("flame-graph-history-windows must be at least 1");
+        }
+        return result;
+    }
+
+    public boolean loadWatchConfig() {
+        String watchConfig = getOptionalProperty(WATCH_CONFIG_PROPERTY);
+        return watchConfig == null || Boolean.parseBoolean(watchConfig);
+    }
+
+    public boolean loadStartPaused() {
+        return Boolean.parseBoolean(getOptionalProperty(START_PAUSED_PROPERTY));
+    }
+
+    public boolean loadSkipIdleThreads() {
+        String skipIdleThreads = getOptionalProperty(SKIP_IDLE_THREADS_PROPERTY);
+        return skipIdleThreads == null || Boolean.parseBoolean(skipIdleThreads);
+    }
+
+    public boolean loadProcThreadCpuTime() {
+        return Boolean.parseBoolean(getOptionalProperty(PROC_THREAD_CPU_TIME_PROPERTY));
+    }
+
+    public Optional<Path> loadRecordingFile() {
+        return Optional.ofNullable(getOptionalProperty(RECORDING_FILE_PROPERTY)).map(Paths::get);
+    }
+
+    public int loadRecordingSizeMegabytes() {
+        String recordingSize = getOptionalProperty(RECORDING_SIZE_PROPERTY);
+        if (recordingSize == null) {
+            return DEFAULT_RECORDING_SIZE_MEGABYTES;
+        }
+        int result = Integer.parseInt(recordingSize);
+        if (result < 1 || result > MAX_RECORDING_SIZE_MEGABYTES) {
+            throw new InvalidConfigurationException("recording-size-megabytes must be between 1 and " + MAX_RECORDING_SIZE_MEGABYTES);
+        }
+        return result;
+    }
+
+    public int loadSampleBufferSize() {
+        String sampleBufferSize = getOptionalProperty(SAMPLE_BUFFER_SIZE_PROPERTY);
+        if (sampleBufferSize == null) {
+            return DEFAULT_SAMPLE_BUFFER_SIZE;
+        }
+        int result = Integer.parseInt(sampleBufferSize);
+        if (result < 1 || result > MAX_SAMPLE_BUFFER_SIZE) {
+            throw new InvalidConfigurationException("sample-buffer-size must be between 1 and " + MAX_SAMPLE_BUFFER_SIZE);
+        }
+        return result;
+    }
+
+    public List<String> loadInstrumentedMethods() {
+        String instrumentedMethods = getOptionalProperty(INSTRUMENTED_METHODS_PROPERTY);
+        if (instrumentedMethods == null) {
+            return Collections.emptyList();
+        }
+        List<String> result = splitList(instrumentedMethods);
+        for (String method : result) {
+            int separator = method.lastIndexOf('.');
+            if (separator <= 0 || separator == method.length() - 1) {
+                throw new InvalidConfigurationException("instrumented-methods must be package.Class.method names, not " + method);
+            }
+        }
+        return result;
+    }
+
+    public Map<String, String> loadThreadPoolPatterns() {
+        String threadPoolPatterns = getOptionalProperty(THREAD_POOL_PATTERNS_PROPERTY);
+        if (threadPoolPatterns == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String entry : splitList(threadPoolPatterns)) {
+            int separator = entry.indexOf('=');
+            String pattern = separator == -1 ? "" : entry.substring(0, separator).trim();
+            String threadPool = separator == -1 ? "" : entry.substring(separator + 1).trim();
+            if (pattern.isEmpty() || threadPool.isEmpty()) {
+                throw new InvalidConfigurationException("thread-pool-patterns must be pattern=thread-pool entries, not " + entry);
+            }
+            result.putIfAbsent(pattern, threadPool);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return the trimmed value of the property, or null if it is not set or empty
+     */
+    private String getOptionalProperty(String name) {
+        String value = loadedProperties.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    /**
+     * @return the path of the config file, which may not exist
+     */
+    public static Path getConfigPath(FileSystem fileSystem) {
+        return fileSystem.getPath(System.getProperty(CONFIG_PATH_PROPERTY, "config.properties"));
+    }
+
+    private static Optional<Path> getPropertiesPathIfExists(FileSystem fileSystem) {
+        Path path = getConfigPath(fileSystem);
 
         if (Files.notExists(path)) {
             log.info("Could not locate config.properties, will use default values");
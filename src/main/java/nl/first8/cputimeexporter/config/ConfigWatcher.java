@@ -0,0 +1,90 @@
+package nl.first8.cputimeexporter.config;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Watches the config file for changes and hands each valid new config to a listener.
+ * <p>
+ * The directory of the config file is watched, as editors often replace a file rather
+ * than write to it. A config that cannot be loaded is logged and ignored, so the
+ * listener keeps the previous one.
+ */
+public class ConfigWatcher implements Runnable {
+    private static final Logger log = Logger.getLogger(ConfigWatcher.class.getName());
+
+    public static final String CONFIG_WATCHER_THREAD_NAME = "Cpu Time Exporter config watcher";
+
+    private final FileSystem fileSystem;
+    private final Path configPath;
+    private final Consumer<AgentProperties> listener;
+    private final WatchService watchService;
+
+    /**
+     * @throws IOException if the directory of the config file cannot be watched
+     */
+    public ConfigWatcher(FileSystem fileSystem, Consumer<AgentProperties> listener) throws IOException {
+        this.fileSystem = fileSystem;
+        this.configPath = AgentProperties.getConfigPath(fileSystem).toAbsolutePath();
+        this.listener = listener;
+        this.watchService = fileSystem.newWatchService();
+        configPath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Starts watching on a daemon thread.
+     */
+    public Thread start() {
+        Thread thread = new Thread(this, CONFIG_WATCHER_THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        log.info(() -> "Watching " + configPath + " for changes");
+        try (WatchService service = watchService) {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || configPath.getFileName().equals(event.context());
+                }
+                key.reset();
+                if (changed) {
+                    reload();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException | IOException e) {
+            log.warning(() -> "Stopped watching the config: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the config file and hands it to the listener if it is valid.
+     */
+    void reload() {
+        AgentProperties properties;
+        try {
+            properties = new AgentProperties(fileSystem);
+        } catch (InvalidConfigurationException e) {
+            log.warning(() -> "Ignoring the changed config, keeping the previous one: " + e.getMessage());
+            return;
+        }
+        log.info("Config changed, applying it");
+        listener.accept(properties);
+    }
+}
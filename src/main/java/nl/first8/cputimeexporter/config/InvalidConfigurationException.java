@@ -0,0 +1,16 @@
+package nl.first8.cputimeexporter.config;
+
+/**
+ * Thrown when the config file cannot be read or contains an invalid value.
+ */
+public class InvalidConfigurationException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidConfigurationException(String message) {
+        super(message);
+    }
+
+    public InvalidConfigurationException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,39 @@
+package nl.first8.cputimeexporter.config;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * The way the stacks of the running threads are sampled.
+ */
+public enum SamplingMode {
+    /**
+     * Stack traces of the runnable threads are taken through the ThreadMXBean, which
+     * only samples threads at safepoints. Works on any JVM.
+     */
+    SAFEPOINT("safepoint"),
+    /**
+     * jdk.ExecutionSample events are consumed from an in-process JFR recording stream,
+     * which samples threads without waiting for a safepoint. Requires JDK 17 or later.
+     */
+    JFR("jfr");
+
+    private final String propertyValue;
+
+    SamplingMode(String propertyValue) {
+        this.propertyValue = propertyValue;
+    }
+
+    public String getPropertyValue() {
+        return propertyValue;
+    }
+
+    /**
+     * @return the sampling mode with the given value in config.properties, if any
+     */
+    public static Optional<SamplingMode> fromPropertyValue(String value) {
+        return Arrays.stream(values())
+                .filter(mode -> mode.propertyValue.equalsIgnoreCase(value))
+                .findFirst();
+    }
+}
@@ -0,0 +1,59 @@
+package nl.first8.cputimeexporter.instrument;
+
+import io.prometheus.metrics.model.registry.MultiCollector;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.Labels;
+import io.prometheus.metrics.model.snapshots.MetricSnapshots;
+
+import java.util.List;
+
+/**
+ * The exact metrics of the instrumented methods, method_instrumented_cpu_seconds and
+ * method_instrumented_calls, summed from the counters of all threads at each scrape.
+ */
+class InstrumentedMethodMetrics implements MultiCollector {
+    static final String CPU_SECONDS_NAME = "method_instrumented_cpu_seconds";
+    static final String CALLS_NAME = "method_instrumented_calls";
+    private static final String LABEL_NAME = "method_name";
+    private static final List<String> PROMETHEUS_NAMES = List.of(CPU_SECONDS_NAME, CALLS_NAME);
+
+    private final MethodTimer timer;
+
+    InstrumentedMethodMetrics(MethodTimer timer) {
+        this.timer = timer;
+    }
+
+    @Override
+    public MetricSnapshots collect() {
+        List<String> methodNames = timer.getMethodNames();
+        long[] cpuNanos = new long[methodNames.size()];
+        long[] calls = new long[methodNames.size()];
+        timer.totals(cpuNanos, calls);
+
+        CounterSnapshot.Builder cpuSecondsSnapshot = CounterSnapshot.builder()
+                .name(CPU_SECONDS_NAME)
+                .help("CPU time used by the instrumented methods, measured from entry to exit of the outermost call");
+        CounterSnapshot.Builder callsSnapshot = CounterSnapshot.builder()
+                .name(CALLS_NAME)
+                .help("Number of outermost calls of the instrumented methods that completed");
+        for (int methodId = 0; methodId < methodNames.size(); methodId++) {
+            Labels methodLabels = Labels.of(LABEL_NAME, methodNames.get(methodId));
+            cpuSecondsSnapshot.dataPoint(dataPoint(methodLabels, cpuNanos[methodId] / 1_000_000_000.0));
+            callsSnapshot.dataPoint(dataPoint(methodLabels, calls[methodId]));
+        }
+        return MetricSnapshots.of(cpuSecondsSnapshot.build(), callsSnapshot.build());
+    }
+
+    @Override
+    public List<String> getPrometheusNames() {
+        return PROMETHEUS_NAMES;
+    }
+
+    private static CounterDataPointSnapshot dataPoint(Labels methodLabels, double value) {
+        return CounterDataPointSnapshot.builder()
+                .labels(methodLabels)
+                .value(value)
+                .build();
+    }
+}
@@ -0,0 +1,131 @@
+package nl.first8.cputimeexporter.instrument;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Measures the exact CPU time of the instrumented methods, from entry to exit.
+ * <p>
+ * Every thread counts into counters of its own, so timing a call never contends with
+ * other threads: the owner is the only writer and publishes each update with an
+ * ordered write, and a scrape sums the counters of all threads. The counters of
+ * threads that ended are folded into retired totals at the next scrape.
+ * <p>
+ * A call that enters a method the thread is already in, directly or through other
+ * methods, is not timed by itself, as its CPU time is part of the outermost call.
+ */
+final class MethodTimer {
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final List<String> methodNames;
+    private final LongSupplier cpuClock;
+    private final Queue<ThreadCounters> liveCounters = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ThreadCounters> counters = ThreadLocal.withInitial(this::register);
+    // Totals of the threads that ended, guarded by this
+    private final long[] retiredCpuNanos;
+    private final long[] retiredCalls;
+
+    /**
+     * @param methodNames the names of the instrumented methods, by method id
+     * @param cpuClock the CPU time of the current thread, in nanoseconds
+     */
+    MethodTimer(List<String> methodNames, LongSupplier cpuClock) {
+        this.methodNames = List.copyOf(methodNames);
+        this.cpuClock = cpuClock;
+        this.retiredCpuNanos = new long[methodNames.size()];
+        this.retiredCalls = new long[methodNames.size()];
+    }
+
+    List<String> getMethodNames() {
+        return methodNames;
+    }
+
+    /**
+     * @return the CPU time of the current thread at entry, or NOT_TIMED if the thread is already in the method
+     */
+    long enter(int methodId) {
+        ThreadCounters threadCounters = counters.get();
+        if (threadCounters.depth[methodId]++ > 0) {
+            return NOT_TIMED;
+        }
+        return cpuClock.getAsLong();
+    }
+
+    /**
+     * @param entryCpuTime the value enter returned for this call
+     */
+    void exit(int methodId, long entryCpuTime) {
+        ThreadCounters threadCounters = counters.get();
+        threadCounters.depth[methodId]--;
+        if (entryCpuTime != NOT_TIMED) {
+            threadCounters.add(methodId, Math.max(cpuClock.getAsLong() - entryCpuTime, 0));
+        }
+    }
+
+    /**
+     * Sums the counters of all threads.
+     * @param cpuNanos receives the CPU time per method id
+     * @param calls receives the number of timed calls per method id
+     */
+    synchronized void totals(long[] cpuNanos, long[] calls) {
+        System.arraycopy(retiredCpuNanos, 0, cpuNanos, 0, retiredCpuNanos.length);
+        System.arraycopy(retiredCalls, 0, calls, 0, retiredCalls.length);
+        Iterator<ThreadCounters> iterator = liveCounters.iterator();
+        while (iterator.hasNext()) {
+            ThreadCounters threadCounters = iterator.next();
+            // A thread that is no longer alive has made its last update
+            boolean ended = !threadCounters.isAlive();
+            for (int i = 0; i < cpuNanos.length; i++) {
+                long threadCpuNanos = threadCounters.cpuNanos.getAcquire(i);
+                long threadCalls = threadCounters.calls.getAcquire(i);
+                cpuNanos[i] += threadCpuNanos;
+                calls[i] += threadCalls;
+                if (ended) {
+                    retiredCpuNanos[i] += threadCpuNanos;
+                    retiredCalls[i] += threadCalls;
+                }
+            }
+            if (ended) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private ThreadCounters register() {
+        ThreadCounters threadCounters = new ThreadCounters(Thread.currentThread(), methodNames.size());
+        liveCounters.add(threadCounters);
+        return threadCounters;
+    }
+
+    private static final class ThreadCounters {
+        private final WeakReference<Thread> owner;
+        private final int[] depth;
+        private final AtomicLongArray cpuNanos;
+        private final AtomicLongArray calls;
+
+        private ThreadCounters(Thread owner, int methods) {
+            this.owner = new WeakReference<>(owner);
+            this.depth = new int[methods];
+            this.cpuNanos = new AtomicLongArray(methods);
+            this.calls = new AtomicLongArray(methods);
+        }
+
+        /**
+         * Only called by the owner, so a plain read followed by an ordered write does not lose updates.
+         */
+        private void add(int methodId, long nanos) {
+            cpuNanos.setRelease(methodId, cpuNanos.getPlain(methodId) + nanos);
+            calls.setRelease(methodId, calls.getPlain(methodId) + 1);
+        }
+
+        private boolean isAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package nl.first8.cputimeexporter.instrument;
+
+/**
+ * The entry points the instrumented methods call on entry and on exit, normal or
+ * exceptional. They are public and static, so the instrumented classes can call them
+ * from any package.
+ */
+public final class MethodTimers {
+    private static volatile MethodTimer timer;
+
+    /**
+     * @return the CPU time of the current thread, to hand to exit
+     */
+    public static long enter(int methodId) {
+        MethodTimer current = timer;
+        return current == null ? MethodTimer.NOT_TIMED : current.enter(methodId);
+    }
+
+    public static void exit(int methodId, long entryCpuTime) {
+        MethodTimer current = timer;
+        if (current != null) {
+            current.exit(methodId, entryCpuTime);
+        }
+    }
+
+    /**
+     * Sets the timer the instrumented methods count into. Must be called before any method is instrumented.
+     */
+    static void install(MethodTimer methodTimer) {
+        timer = methodTimer;
+    }
+
+    private MethodTimers() {
+    }
+}
@@ -0,0 +1,209 @@
+package nl.first8.cputimeexporter.instrument;
+
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.commons.Method;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Instruments the configured methods to time them exactly, next to the sampling.
+ * <p>
+ * Each method, including all its overloads, gets a call to {@link MethodTimers#enter(int)}
+ * at entry and a call to {@link MethodTimers#exit(int, long)} before every return and in
+ * a catch-all handler that rethrows, so calls that end with an exception are timed as
+ * well. Constructors, abstract and native methods are left alone. Classes that are
+ * already loaded when the agent starts are retransformed.
+ */
+public final class MethodTimingTransformer implements ClassFileTransformer {
+    private static final Logger log = Logger.getLogger(MethodTimingTransformer.class.getName());
+
+    private static final Type TIMERS_TYPE = Type.getType(MethodTimers.class);
+    private static final Method ENTER = Method.getMethod("long enter(int)");
+    private static final Method EXIT = Method.getMethod("void exit(int, long)");
+
+    // Method id per method name, per internal class name
+    private final Map<String, Map<String, Integer>> methodIds = new HashMap<>();
+
+    /**
+     * @param methodNames the methods to instrument as package.Class.method, in method id order
+     */
+    MethodTimingTransformer(List<String> methodNames) {
+        for (int methodId = 0; methodId < methodNames.size(); methodId++) {
+            String methodName = methodNames.get(methodId);
+            int separator = methodName.lastIndexOf('.');
+            String className = methodName.substring(0, separator).replace('.', '/');
+            methodIds.computeIfAbsent(className, name -> new HashMap<>())
+                    .put(methodName.substring(separator + 1), methodId);
+        }
+    }
+
+    /**
+     * Times the methods exactly and exports their CPU time and calls to the registry.
+     * @param methodNames the methods to instrument as package.Class.method
+     */
+    public static void install(Instrumentation instrumentation, List<String> methodNames, PrometheusRegistry registry) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        MethodTimer timer = new MethodTimer(methodNames, threadBean::getCurrentThreadCpuTime);
+        MethodTimers.install(timer);
+        registry.register(new InstrumentedMethodMetrics(timer));
+
+        MethodTimingTransformer transformer = new MethodTimingTransformer(methodNames);
+        instrumentation.addTransformer(transformer, true);
+        List<Class<?>> loadedClasses = new ArrayList<>();
+        for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+            if (transformer.instruments(loadedClass.getName()) && instrumentation.isModifiableClass(loadedClass)) {
+                loadedClasses.add(loadedClass);
+            }
+        }
+        if (!loadedClasses.isEmpty()) {
+            try {
+                instrumentation.retransformClasses(loadedClasses.toArray(new Class<?>[0]));
+            }
+            catch (UnmodifiableClassException | RuntimeException | LinkageError exception) {
+                log.warning("Could not instrument the classes that were already loaded: " + exception);
+            }
+        }
+        log.info(() -> "Timing " + methodNames.size() + " methods exactly");
+    }
+
+    /**
+     * @param className the binary name of a class
+     * @return whether methods of the class are instrumented
+     */
+    boolean instruments(String className) {
+        return methodIds.containsKey(className.replace('.', '/'));
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        Map<String, Integer> classMethodIds = className == null ? null : methodIds.get(className);
+        if (classMethodIds == null) {
+            return null;
+        }
+        if (!canSeeTimers(loader)) {
+            log.warning(() -> "Not instrumenting " + className + ", its class loader cannot see the agent classes");
+            return null;
+        }
+        try {
+            return instrument(classfileBuffer, classMethodIds, loader);
+        }
+        catch (RuntimeException exception) {
+            log.warning(() -> "Could not instrument " + className + ": " + exception);
+            return null;
+        }
+    }
+
+    /**
+     * @return whether classes of the loader would call the same MethodTimers as the agent
+     */
+    private static boolean canSeeTimers(ClassLoader loader) {
+        if (loader == null) {
+            return false;
+        }
+        try {
+            return loader.loadClass(MethodTimers.class.getName()) == MethodTimers.class;
+        }
+        catch (ClassNotFoundException | LinkageError exception) {
+            return false;
+        }
+    }
+
+    static byte[] instrument(byte[] classfileBuffer, Map<String, Integer> classMethodIds, ClassLoader loader) {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES) {
+            // Frames are computed with the class loader of the instrumented class rather than that of the agent
+            @Override
+            protected ClassLoader getClassLoader() {
+                return loader;
+            }
+        };
+        reader.accept(new TimingClassVisitor(writer, classMethodIds), ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static final class TimingClassVisitor extends ClassVisitor {
+        private final Map<String, Integer> classMethodIds;
+
+        private TimingClassVisitor(ClassVisitor classVisitor, Map<String, Integer> classMethodIds) {
+            super(Opcodes.ASM9, classVisitor);
+            this.classMethodIds = classMethodIds;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+                                         String[] exceptions) {
+            MethodVisitor methodVisitor = super.visitMethod(access, name, descriptor, signature, exceptions);
+            Integer methodId = classMethodIds.get(name);
+            if (methodId == null || name.startsWith("<")
+                    || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                return methodVisitor;
+            }
+            return new TimingMethodVisitor(methodVisitor, access, name, descriptor, methodId);
+        }
+    }
+
+    private static final class TimingMethodVisitor extends AdviceAdapter {
+        private final int methodId;
+        private final Label start = new Label();
+        private final Label handler = new Label();
+        private int entryCpuTimeLocal;
+
+        private TimingMethodVisitor(MethodVisitor methodVisitor, int access, String name, String descriptor,
+                                    int methodId) {
+            super(Opcodes.ASM9, methodVisitor, access, name, descriptor);
+            this.methodId = methodId;
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            push(methodId);
+            invokeStatic(TIMERS_TYPE, ENTER);
+            entryCpuTimeLocal = newLocal(Type.LONG_TYPE);
+            storeLocal(entryCpuTimeLocal);
+            mark(start);
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            // An exception thrown by the method itself ends up in the handler
+            if (opcode != ATHROW) {
+                exitTimer();
+            }
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            // Added last, so the handlers of the method itself come first
+            mark(handler);
+            exitTimer();
+            throwException();
+            visitTryCatchBlock(start, handler, handler, null);
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        private void exitTimer() {
+            push(methodId);
+            loadLocal(entryCpuTimeLocal);
+            invokeStatic(TIMERS_TYPE, EXIT);
+        }
+    }
+}
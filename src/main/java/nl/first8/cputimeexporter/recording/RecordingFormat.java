@@ -0,0 +1,54 @@
+package nl.first8.cputimeexporter.recording;
+
+import java.nio.file.Path;
+
+/**
+ * The layout of a recording file, a fixed-size ring of per-window attribution records.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: the magic number and the
+ * version (ints), the capacity in records and the number of records written so far
+ * (longs). It is followed by {@code capacity} records of {@link #RECORD_SIZE} bytes: the
+ * end of the window in epoch milliseconds (long), the label id (int) and the CPU time in
+ * nanoseconds (long). Record {@code n} is stored in slot {@code n % capacity}, so only the
+ * last {@code capacity} records are kept. The names of the label ids are kept as
+ * {@code id<TAB>name} lines in a text file next to it, see {@link #labelsPath(Path)}.
+ */
+public final class RecordingFormat {
+    public static final int MAGIC = 0x43505452;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 24;
+    public static final int CAPACITY_OFFSET = 8;
+    public static final int WRITTEN_OFFSET = 16;
+
+    public static final int RECORD_SIZE = 20;
+    public static final int LABEL_ID_OFFSET = 8;
+    public static final int CPU_NANOS_OFFSET = 12;
+
+    private static final String LABELS_SUFFIX = ".labels";
+    private static final String PREVIOUS_SUFFIX = ".previous";
+
+    /**
+     * @return the position in the file of the record with the given sequence number
+     */
+    public static int recordOffset(long index, long capacity) {
+        return (int) (HEADER_SIZE + (index % capacity) * RECORD_SIZE);
+    }
+
+    /**
+     * @return the path of the file with the label names of a recording
+     */
+    public static Path labelsPath(Path recordingPath) {
+        return recordingPath.resolveSibling(recordingPath.getFileName() + LABELS_SUFFIX);
+    }
+
+    /**
+     * @return the path the recording of the previous run is moved to when a new recording starts
+     */
+    public static Path previousPath(Path recordingPath) {
+        return recordingPath.resolveSibling(recordingPath.getFileName() + PREVIOUS_SUFFIX);
+    }
+
+    private RecordingFormat() {
+    }
+}
@@ -0,0 +1,164 @@
+package nl.first8.cputimeexporter.recording;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a recording written by the agent, see {@link RecordingFormat}. Also the command
+ * line tool to dump the records of a time range or aggregate them per method:
+ * <pre>
+ * java -jar cpu-time-exporter.jar dump|aggregate recording-file [from [to]]
+ * </pre>
+ * The bounds are ISO-8601 instants, such as 2024-05-01T12:00:00Z, or epoch milliseconds.
+ * The records are read from the end of the window they belong to.
+ */
+public class RecordingReader {
+    private static final String USAGE = "Usage: java -jar cpu-time-exporter.jar dump|aggregate recording-file [from [to]]\n"
+            + "  from and to are ISO-8601 instants, such as 2024-05-01T12:00:00Z, or epoch milliseconds";
+
+    /**
+     * Receives the records of a recording.
+     */
+    public interface RecordVisitor {
+        void visit(long timestampMillis, int labelId, long cpuNanos);
+    }
+
+    private final ByteBuffer buffer;
+    private final long capacity;
+    private final long written;
+    private final Map<Integer, String> labelNames;
+
+    /**
+     * @throws IOException if the recording cannot be read or is not a recording
+     */
+    public RecordingReader(Path recordingPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(recordingPath, StandardOpenOption.READ)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.capacity() < RecordingFormat.HEADER_SIZE || buffer.getInt(0) != RecordingFormat.MAGIC) {
+            throw new IOException("Not a recording: " + recordingPath);
+        }
+        if (buffer.getInt(4) != RecordingFormat.VERSION) {
+            throw new IOException("Unsupported recording version " + buffer.getInt(4) + ": " + recordingPath);
+        }
+        this.capacity = buffer.getLong(RecordingFormat.CAPACITY_OFFSET);
+        this.written = buffer.getLong(RecordingFormat.WRITTEN_OFFSET);
+        // Divided rather than multiplied, so a corrupt capacity cannot overflow
+        if (capacity <= 0 || capacity > (buffer.capacity() - RecordingFormat.HEADER_SIZE) / RecordingFormat.RECORD_SIZE) {
+            throw new IOException("Corrupt recording, capacity " + capacity + " does not fit in "
+                    + buffer.capacity() + " bytes: " + recordingPath);
+        }
+        if (written < 0) {
+            throw new IOException("Corrupt recording, " + written + " records written: " + recordingPath);
+        }
+        this.labelNames = readLabelNames(RecordingFormat.labelsPath(recordingPath));
+    }
+
+    private static Map<Integer, String> readLabelNames(Path labelsPath) throws IOException {
+        Map<Integer, String> result = new HashMap<>();
+        if (Files.notExists(labelsPath)) {
+            return result;
+        }
+        for (String line : Files.readAllLines(labelsPath)) {
+            int separator = line.indexOf('\t');
+            if (separator > 0) {
+                result.put(Integer.parseInt(line.substring(0, separator)), line.substring(separator + 1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Visits the records kept in the ring of which the window ended in [fromMillis, toMillis], oldest first.
+     */
+    public void forEach(long fromMillis, long toMillis, RecordVisitor visitor) {
+        for (long index = Math.max(0, written - capacity); index < written; index++) {
+            int offset = RecordingFormat.recordOffset(index, capacity);
+            long timestampMillis = buffer.getLong(offset);
+            if (timestampMillis >= fromMillis && timestampMillis <= toMillis) {
+                visitor.visit(timestampMillis, buffer.getInt(offset + RecordingFormat.LABEL_ID_OFFSET),
+                        buffer.getLong(offset + RecordingFormat.CPU_NANOS_OFFSET));
+            }
+        }
+    }
+
+    /**
+     * @return the CPU time in nanoseconds per method name of the records in [fromMillis, toMillis]
+     */
+    public Map<String, Long> aggregate(long fromMillis, long toMillis) {
+        Map<String, Long> result = new HashMap<>();
+        forEach(fromMillis, toMillis, (timestampMillis, labelId, cpuNanos) ->
+                result.merge(labelName(labelId), cpuNanos, Long::sum));
+        return result;
+    }
+
+    /**
+     * @return the method name of a label id, or the id itself if its name was not recorded
+     */
+    public String labelName(int labelId) {
+        return labelNames.getOrDefault(labelId, "#" + labelId);
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.out, System.err));
+    }
+
+    /**
+     * Runs the command line tool.
+     * @return the exit code
+     */
+    static int run(String[] args, PrintStream out, PrintStream err) {
+        if (args.length < 2 || args.length > 4 || !List.of("dump", "aggregate").contains(args[0])) {
+            err.println(USAGE);
+            return 2;
+        }
+        long fromMillis;
+        long toMillis;
+        try {
+            fromMillis = args.length > 2 ? parseTime(args[2]) : Long.MIN_VALUE;
+            toMillis = args.length > 3 ? parseTime(args[3]) : Long.MAX_VALUE;
+        } catch (DateTimeParseException e) {
+            err.println("Invalid time: " + e.getParsedString());
+            err.println(USAGE);
+            return 2;
+        }
+
+        RecordingReader reader;
+        try {
+            reader = new RecordingReader(Paths.get(args[1]));
+        } catch (IOException e) {
+            err.println("Cannot read the recording: " + e.getMessage());
+            return 1;
+        }
+        if (args[0].equals("dump")) {
+            reader.forEach(fromMillis, toMillis, (timestampMillis, labelId, cpuNanos) ->
+                    out.printf(Locale.ROOT, "%s\t%s\t%.9f%n", Instant.ofEpochMilli(timestampMillis), reader.labelName(labelId),
+                            cpuNanos / 1_000_000_000.0));
+        } else {
+            reader.aggregate(fromMillis, toMillis).entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue(Comparator.reverseOrder()))
+                    .forEach(total -> out.printf(Locale.ROOT, "%.9f\t%s%n", total.getValue() / 1_000_000_000.0, total.getKey()));
+        }
+        return 0;
+    }
+
+    static long parseTime(String value) {
+        if (!value.isEmpty() && value.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(value);
+        }
+        return Instant.parse(value).toEpochMilli();
+    }
+}
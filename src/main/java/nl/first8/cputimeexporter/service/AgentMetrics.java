@@ -0,0 +1,254 @@
+package nl.first8.cputimeexporter.service;
+
+import io.prometheus.metrics.core.metrics.Counter;
+import io.prometheus.metrics.core.metrics.CounterWithCallback;
+import io.prometheus.metrics.core.metrics.Gauge;
+import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static nl.first8.cputimeexporter.service.MonitoringService.COMPUTATION_THREAD_NAME;
+
+/**
+ * Metrics about the cost of the agent itself, exported next to the metrics it produces,
+ * and about the CPU time of the process it could not attribute to a method.
+ */
+class AgentMetrics {
+	static final String HTTP_THREAD_NAME_PREFIX = "prometheus-http-";
+
+	private static final double NANOSECONDS_PER_SECOND = 1_000_000_000.0;
+	// New agent threads, such as HTTP threads that are started on demand, are picked up within this interval
+	static final long AGENT_THREAD_REFRESH_NANOSECONDS = 10_000_000_000L;
+	private static final double[] DURATION_UPPER_BOUNDS = {
+			0.00001, 0.000025, 0.00005, 0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1
+	};
+
+	private final ThreadMXBean threadBean;
+	private final com.sun.management.ThreadMXBean allocationThreadBean;
+	private final Histogram sampleDuration;
+	private final Histogram aggregationDuration;
+	private final Counter lateSamples;
+	private final Counter droppedSamples;
+	private final Counter droppedSampleBatches;
+	private final Gauge sampleRate;
+	private final Counter processCpuSeconds;
+	private final Counter unattributedCpuSeconds;
+
+	// Process CPU time minus the attributed CPU time, and the part of it exported so far
+	private double unattributedBalance;
+	private double unattributedExported;
+
+	// Totals per agent thread kind, including threads that are no longer alive
+	private final Map<Long, long[]> previousThreadUsage = new HashMap<>();
+	private final Map<String, long[]> threadUsageTotals = new HashMap<>();
+	// The agent threads, found by enumerating all threads at most once per AGENT_THREAD_REFRESH_NANOSECONDS
+	private final ThreadUsageTracker.Reader cpuTimeReader;
+	private long[] agentThreadIds = new long[0];
+	private String[] agentThreadKinds = new String[0];
+	private long agentThreadsRefreshedNanos;
+	private boolean agentThreadsKnown;
+	// Whether each counter collected the current reading, so both counters of a scrape share one reading
+	private final boolean[] threadUsageCollected = {true, true};
+
+	AgentMetrics(PrometheusRegistry registry, ThreadMXBean threadBean, LabelTable labels) {
+		this.threadBean = threadBean;
+		this.cpuTimeReader = ThreadUsageTracker.cpuTimeReader(threadBean);
+		this.allocationThreadBean = threadBean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()
+				? (com.sun.management.ThreadMXBean) threadBean
+				: null;
+
+		this.sampleDuration = Histogram.builder()
+				.name("cpu_time_exporter_sample_duration_seconds")
+				.help("Time taken to sample the stack traces of the runnable threads once")
+				.classicUpperBounds(DURATION_UPPER_BOUNDS)
+				.withoutExemplars()
+				.register(registry);
+		this.aggregationDuration = Histogram.builder()
+				.name("cpu_time_exporter_aggregation_duration_seconds")
+				.help("Time taken to attribute the CPU time of a window to the sampled methods")
+				.classicUpperBounds(DURATION_UPPER_BOUNDS)
+				.withoutExemplars()
+				.register(registry);
+		this.lateSamples = Counter.builder()
+				.name("cpu_time_exporter_late_samples")
+				.help("Samples that were taken later than the sample rate allows")
+				.register(registry);
+		this.droppedSamples = Counter.builder()
+				.name("cpu_time_exporter_dropped_samples")
+				.help("Samples that were skipped because the sampling fell behind the sample rate, or that failed")
+				.register(registry);
+		this.droppedSampleBatches = Counter.builder()
+				.name("cpu_time_exporter_dropped_sample_batches")
+				.help("Samples that were dropped because the sample buffer was full, as the aggregation fell behind")
+				.register(registry);
+		this.sampleRate = Gauge.builder()
+				.name("cpu_time_exporter_sample_rate_seconds")
+				.help("Effective interval between two samples")
+				.register(registry);
+		this.processCpuSeconds = Counter.builder()
+				.name("cpu_time_exporter_process_cpu_seconds")
+				.help("CPU time used by the whole process since it was first monitored, including while sampling was paused")
+				.register(registry);
+		this.unattributedCpuSeconds = Counter.builder()
+				.name("cpu_time_exporter_unattributed_cpu_seconds")
+				.help("CPU time used by the process that is not part of method_cpu_seconds, such as GC, JIT and unmonitored code")
+				.register(registry);
+		GaugeWithCallback.builder()
+				.name("cpu_time_exporter_labels")
+				.help("Number of distinct method labels")
+				.callback(callback -> callback.call(labels.size()))
+				.register(registry);
+		CounterWithCallback.builder()
+				.name("cpu_time_exporter_thread_cpu_seconds")
+				.help("CPU time used by the threads of the agent")
+				.labelNames("thread")
+				.callback(callback -> collectThreadUsage(0, NANOSECONDS_PER_SECOND, callback))
+				.register(registry);
+		if (allocationThreadBean != null) {
+			CounterWithCallback.builder()
+					.name("cpu_time_exporter_thread_allocated_bytes")
+					.help("Memory allocated by the threads of the agent")
+					.labelNames("thread")
+					.callback(callback -> collectThreadUsage(1, 1, callback))
+					.register(registry);
+		}
+	}
+
+	void observeSampleDuration(long nanos) {
+		sampleDuration.observe(nanos / NANOSECONDS_PER_SECOND);
+	}
+
+	void observeAggregationDuration(long nanos) {
+		aggregationDuration.observe(nanos / NANOSECONDS_PER_SECOND);
+	}
+
+	void sampleRate(long nanos) {
+		sampleRate.set(nanos / NANOSECONDS_PER_SECOND);
+	}
+
+	/**
+	 * Records a sample that was taken too late.
+	 * @param skippedSamples the number of samples that were skipped to catch up
+	 */
+	void lateSample(long skippedSamples) {
+		lateSamples.inc();
+		if (skippedSamples > 0) {
+			droppedSamples.inc(skippedSamples);
+		}
+	}
+
+	/**
+	 * Records a sample that failed with an exception.
+	 */
+	void failedSample() {
+		droppedSamples.inc();
+	}
+
+	/**
+	 * Records a sample that was dropped because the sample buffer was full.
+	 */
+	void droppedSampleBatch() {
+		droppedSampleBatches.inc();
+	}
+
+	/**
+	 * Balances the CPU time of the process in a window against the CPU time attributed
+	 * to methods. The difference is counted as unattributed, so that the method CPU time
+	 * and the unattributed CPU time add up to the process CPU time. As the attributed CPU
+	 * time is read at slightly different moments, it can exceed the process CPU time of
+	 * a window; the excess is subtracted from later windows, keeping the counter monotonic.
+	 * @param processCpuNanos the CPU time used by the process during the window
+	 * @param attributedSeconds the CPU time attributed to methods for the window
+	 */
+	void windowCpu(long processCpuNanos, double attributedSeconds) {
+		double processSeconds = processCpuNanos / NANOSECONDS_PER_SECOND;
+		processCpuSeconds.inc(processSeconds);
+		unattributedBalance += processSeconds - attributedSeconds;
+		if (unattributedBalance > unattributedExported) {
+			unattributedCpuSeconds.inc(unattributedBalance - unattributedExported);
+			unattributedExported = unattributedBalance;
+		}
+	}
+
+	/**
+	 * @return the kind of agent thread, or null if the thread is not part of the agent
+	 */
+	static String agentThreadKind(String threadName) {
+		if (threadName.equals(COMPUTATION_THREAD_NAME)) {
+			return "monitoring";
+		}
+		if (threadName.equals(SafepointSampler.SAMPLER_THREAD_NAME)) {
+			return "sampler";
+		}
+		if (threadName.startsWith(HTTP_THREAD_NAME_PREFIX)) {
+			return "http";
+		}
+		return null;
+	}
+
+	private synchronized void collectThreadUsage(int index, double divisor, CounterWithCallback.Callback callback) {
+		// Only read again once this counter already collected the current reading
+		if (threadUsageCollected[index]) {
+			updateThreadUsage();
+			Arrays.fill(threadUsageCollected, false);
+		}
+		threadUsageCollected[index] = true;
+		threadUsageTotals.forEach((kind, totals) -> callback.call(totals[index] / divisor, kind));
+	}
+
+	/**
+	 * Adds the CPU time and allocations of the agent threads since the previous reading to
+	 * the totals, reading all agent threads with one batched call each.
+	 */
+	private void updateThreadUsage() {
+		long now = System.nanoTime();
+		if (!agentThreadsKnown || now - agentThreadsRefreshedNanos > AGENT_THREAD_REFRESH_NANOSECONDS) {
+			findAgentThreads();
+			agentThreadsRefreshedNanos = now;
+			agentThreadsKnown = true;
+		}
+
+		long[] cpuTimes = cpuTimeReader.read(agentThreadIds);
+		long[] allocatedBytes = allocationThreadBean == null ? null : allocationThreadBean.getThreadAllocatedBytes(agentThreadIds);
+		Map<Long, long[]> current = new HashMap<>();
+		for (int i = 0; i < agentThreadIds.length; i++) {
+			if (cpuTimes[i] < 0) {
+				// The thread ended, look for the agent threads again at the next reading
+				agentThreadsKnown = false;
+				continue;
+			}
+			long[] usage = {cpuTimes[i], allocatedBytes == null ? 0 : Math.max(allocatedBytes[i], 0)};
+			long[] previous = previousThreadUsage.getOrDefault(agentThreadIds[i], new long[usage.length]);
+			long[] totals = threadUsageTotals.computeIfAbsent(agentThreadKinds[i], k -> new long[usage.length]);
+			for (int j = 0; j < usage.length; j++) {
+				totals[j] += Math.max(usage[j] - previous[j], 0);
+			}
+			current.put(agentThreadIds[i], usage);
+		}
+		previousThreadUsage.clear();
+		previousThreadUsage.putAll(current);
+	}
+
+	private void findAgentThreads() {
+		ThreadInfo[] threadInfos = threadBean.getThreadInfo(threadBean.getAllThreadIds(), 0);
+		long[] threadIds = new long[threadInfos.length];
+		String[] kinds = new String[threadInfos.length];
+		int count = 0;
+		for (ThreadInfo info : threadInfos) {
+			String kind = info == null ? null : agentThreadKind(info.getThreadName());
+			if (kind != null) {
+				threadIds[count] = info.getThreadId();
+				kinds[count++] = kind;
+			}
+		}
+		agentThreadIds = Arrays.copyOf(threadIds, count);
+		agentThreadKinds = Arrays.copyOf(kinds, count);
+	}
+}
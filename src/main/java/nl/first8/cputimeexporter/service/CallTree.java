@@ -0,0 +1,210 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+
+/**
+ * Merges sampled stacks into a call tree, stored in primitive arrays indexed by node.
+ * <p>
+ * Each node holds a frame id from the {@link FrameTable}, its parent, its first child
+ * and its next sibling, the number of samples that ended in the node and the number of
+ * samples that passed through it. Node 0 is the root, which has no frame. A sample is
+ * added by {@link #enter()}, then {@link #descend(int, int)} for each frame from the
+ * outermost to the innermost, and finally {@link #addSample(int)} for the last node.
+ * <p>
+ * When the tree grows beyond {@code maxNodes}, {@link #prune()} removes the coldest
+ * subtrees until about half of that remains. The samples of a removed subtree are
+ * added to its parent, so the number of samples passing through the remaining nodes
+ * stays the same. This class is not thread safe.
+ */
+final class CallTree {
+	static final int ROOT = 0;
+	private static final int NONE = -1;
+
+	private final int maxNodes;
+
+	private int[] frameIds = new int[64];
+	private int[] parents = new int[64];
+	private int[] firstChildren = new int[64];
+	private int[] nextSiblings = new int[64];
+	private int[] selfSamples = new int[64];
+	private int[] totalSamples = new int[64];
+	private int size;
+
+	CallTree(int maxNodes) {
+		this.maxNodes = maxNodes;
+		clear();
+	}
+
+	/**
+	 * Starts a sample at the root.
+	 * @return the root node
+	 */
+	int enter() {
+		totalSamples[ROOT]++;
+		return ROOT;
+	}
+
+	/**
+	 * Moves a sample from a node to its child with the given frame, which is created if
+	 * it does not exist yet.
+	 * @return the child node
+	 */
+	int descend(int node, int frameId) {
+		int child = firstChildren[node];
+		while (child != NONE && frameIds[child] != frameId) {
+			child = nextSiblings[child];
+		}
+		if (child == NONE) {
+			child = addNode(node, frameId);
+		}
+		totalSamples[child]++;
+		return child;
+	}
+
+	/**
+	 * Ends a sample in a node, and prunes the tree if it has grown beyond its limit.
+	 */
+	void addSample(int node) {
+		selfSamples[node]++;
+		if (size > maxNodes) {
+			prune();
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	int frameId(int node) {
+		return frameIds[node];
+	}
+
+	int parent(int node) {
+		return parents[node];
+	}
+
+	int selfSamples(int node) {
+		return selfSamples[node];
+	}
+
+	int totalSamples(int node) {
+		return totalSamples[node];
+	}
+
+	/**
+	 * Replaces the frame id of every node.
+	 * @param newFrameIds the new frame id per old frame id
+	 */
+	void remapFrameIds(int[] newFrameIds) {
+		for (int node = ROOT + 1; node < size; node++) {
+			frameIds[node] = newFrameIds[frameIds[node]];
+		}
+	}
+
+	/**
+	 * @return a copy of the tree, which does not change with this tree
+	 */
+	CallTree copy() {
+		CallTree copy = new CallTree(maxNodes);
+		copy.frameIds = Arrays.copyOf(frameIds, size);
+		copy.parents = Arrays.copyOf(parents, size);
+		copy.firstChildren = Arrays.copyOf(firstChildren, size);
+		copy.nextSiblings = Arrays.copyOf(nextSiblings, size);
+		copy.selfSamples = Arrays.copyOf(selfSamples, size);
+		copy.totalSamples = Arrays.copyOf(totalSamples, size);
+		copy.size = size;
+		return copy;
+	}
+
+	void clear() {
+		size = 1;
+		frameIds[ROOT] = NONE;
+		parents[ROOT] = NONE;
+		firstChildren[ROOT] = NONE;
+		nextSiblings[ROOT] = NONE;
+		selfSamples[ROOT] = 0;
+		totalSamples[ROOT] = 0;
+	}
+
+	/**
+	 * Removes the subtrees with the fewest samples, keeping at most half of maxNodes.
+	 */
+	void prune() {
+		int keep = Math.max(maxNodes / 2, 1);
+		if (size <= keep) {
+			return;
+		}
+		// A child never has more samples than its parent, so the nodes above the threshold include their parents
+		int[] sorted = Arrays.copyOf(totalSamples, size);
+		Arrays.sort(sorted);
+		int threshold = sorted[size - keep];
+		// Nodes at the threshold fill up the nodes left, oldest first, so a tree of many nodes with as many samples keeps some
+		int tiesLeft = keep - 1;
+		for (int node = ROOT + 1; node < size; node++) {
+			if (totalSamples[node] > threshold) {
+				tiesLeft--;
+			}
+		}
+
+		int[] newIndex = new int[size];
+		int newSize = 0;
+		for (int node = 0; node < size; node++) {
+			// Parents are always created before their children, so they have been visited already
+			boolean kept = node == ROOT;
+			if (!kept && newIndex[parents[node]] != NONE) {
+				if (totalSamples[node] > threshold) {
+					kept = true;
+				}
+				else if (totalSamples[node] == threshold && tiesLeft > 0) {
+					kept = true;
+					tiesLeft--;
+				}
+			}
+			if (kept) {
+				newIndex[node] = newSize;
+				frameIds[newSize] = frameIds[node];
+				parents[newSize] = node == ROOT ? NONE : newIndex[parents[node]];
+				selfSamples[newSize] = selfSamples[node];
+				totalSamples[newSize] = totalSamples[node];
+				newSize++;
+			}
+			else {
+				newIndex[node] = NONE;
+				// Fold the samples of the top of a removed subtree into its parent
+				int parent = parents[node];
+				if (newIndex[parent] != NONE) {
+					selfSamples[newIndex[parent]] += totalSamples[node];
+				}
+			}
+		}
+
+		size = newSize;
+		Arrays.fill(firstChildren, 0, size, NONE);
+		for (int node = size - 1; node > ROOT; node--) {
+			nextSiblings[node] = firstChildren[parents[node]];
+			firstChildren[parents[node]] = node;
+		}
+		nextSiblings[ROOT] = NONE;
+	}
+
+	private int addNode(int parent, int frameId) {
+		if (size == frameIds.length) {
+			int capacity = size * 2;
+			frameIds = Arrays.copyOf(frameIds, capacity);
+			parents = Arrays.copyOf(parents, capacity);
+			firstChildren = Arrays.copyOf(firstChildren, capacity);
+			nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+			selfSamples = Arrays.copyOf(selfSamples, capacity);
+			totalSamples = Arrays.copyOf(totalSamples, capacity);
+		}
+		int node = size++;
+		frameIds[node] = frameId;
+		parents[node] = parent;
+		firstChildren[node] = NONE;
+		nextSiblings[node] = firstChildren[parent];
+		selfSamples[node] = 0;
+		totalSamples[node] = 0;
+		firstChildren[parent] = node;
+		return node;
+	}
+}
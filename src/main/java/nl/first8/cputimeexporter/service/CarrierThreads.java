@@ -0,0 +1,70 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the carrier threads that run virtual threads, so their CPU time can be
+ * attributed to the virtual threads mounted on them.
+ * <p>
+ * The CPU time of a virtual thread is only measured as part of the CPU time of the
+ * carriers it was mounted on, and which carrier ran which virtual thread at which time
+ * is not known. The carriers are therefore treated as a single pool: the CPU time of
+ * all carriers is spread over the samples of the carriers themselves and the samples
+ * of all virtual threads, which are recorded under {@link #POOL_THREAD_ID}. The cost
+ * does not depend on the number of virtual threads, as they are never enumerated.
+ */
+final class CarrierThreads {
+	/**
+	 * The thread id under which the samples of all virtual threads are recorded.
+	 */
+	static final long POOL_THREAD_ID = -1;
+
+	static final long[] NONE = new long[0];
+
+	private static final String CARRIER_THREAD_CLASS_NAME = "jdk.internal.misc.CarrierThread";
+
+	private final ThreadGroup rootThreadGroup;
+	private Thread[] threads = new Thread[64];
+	private long[] carrierThreadIds = NONE;
+
+	CarrierThreads() {
+		ThreadGroup group = Thread.currentThread().getThreadGroup();
+		while (group.getParent() != null) {
+			group = group.getParent();
+		}
+		this.rootThreadGroup = group;
+	}
+
+	/**
+	 * Looks up the current carrier threads. Only platform threads are enumerated.
+	 */
+	void refresh() {
+		int count = rootThreadGroup.enumerate(threads, true);
+		while (count == threads.length) {
+			threads = new Thread[threads.length * 2];
+			count = rootThreadGroup.enumerate(threads, true);
+		}
+
+		long[] result = new long[count];
+		int carrierCount = 0;
+		for (int i = 0; i < count; i++) {
+			if (threads[i].getClass().getName().equals(CARRIER_THREAD_CLASS_NAME)) {
+				result[carrierCount++] = threads[i].getId();
+			}
+			threads[i] = null;
+		}
+		Arrays.sort(result, 0, carrierCount);
+		carrierThreadIds = carrierCount == 0 ? NONE : Arrays.copyOf(result, carrierCount);
+	}
+
+	/**
+	 * @return the sorted ids of the carrier threads found by the last refresh
+	 */
+	long[] getThreadIds() {
+		return carrierThreadIds;
+	}
+
+	static boolean isCarrier(long[] sortedCarrierThreadIds, long threadId) {
+		return sortedCarrierThreadIds.length > 0 && Arrays.binarySearch(sortedCarrierThreadIds, threadId) >= 0;
+	}
+}
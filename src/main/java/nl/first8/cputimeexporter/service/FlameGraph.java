@@ -0,0 +1,176 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps the sampled stacks of the last windows as call trees, to serve them in the
+ * collapsed-stack (folded) format that flame graph tools read.
+ * <p>
+ * Samples are merged into the call tree of the current window. At the end of each
+ * window the tree is moved to a ring of the last {@code historyWindows} trees, and the
+ * oldest tree is reused for the next window. Recording and rotating lock this object, as
+ * the samples may be taken on another thread than the one serving them. Reading only
+ * copies the trees under the lock and folds the copies after releasing it, so serving
+ * the flame graph does not hold up sampling.
+ * <p>
+ * Frame ids only need to be valid within the kept trees. When a rotation finds that the
+ * {@link FrameTable} has doubled since it was last rebuilt, it is rebuilt with only the
+ * frames of the kept trees, so it stays bounded by the number of nodes of the history
+ * rather than growing with every method ever sampled.
+ */
+final class FlameGraph {
+	// The size below which the frame table is not rebuilt, as rebuilding visits every node
+	private static final int MIN_COMPACT_FRAMES = 1024;
+
+	private FrameTable frames = new FrameTable();
+	private int compactFrames = MIN_COMPACT_FRAMES;
+	private final int maxNodes;
+	private final CallTree[] history;
+	private final long[] historyEndMillis;
+	private int next;
+	private CallTree current;
+
+	/**
+	 * @param maxNodes the number of nodes of a single window's tree above which it is pruned
+	 * @param historyWindows the number of windows that are kept
+	 */
+	FlameGraph(int maxNodes, int historyWindows) {
+		this.maxNodes = maxNodes;
+		this.history = new CallTree[historyWindows];
+		this.historyEndMillis = new long[historyWindows];
+		this.current = new CallTree(maxNodes);
+	}
+
+	/**
+	 * Adds a stack trace, innermost frame first, to the current window.
+	 */
+	synchronized void record(StackTraceElement[] stackTrace) {
+		int node = current.enter();
+		for (int i = stackTrace.length - 1; i >= 0; i--) {
+			node = current.descend(node, frames.intern(stackTrace[i].getClassName(), stackTrace[i].getMethodName()));
+		}
+		current.addSample(node);
+	}
+
+	/**
+	 * Adds a stack, innermost frame first, given as the class and method names of its
+	 * first depth frames, to the current window.
+	 */
+	synchronized void record(String[] classNames, String[] methodNames, int depth) {
+		int node = current.enter();
+		for (int i = depth - 1; i >= 0; i--) {
+			node = current.descend(node, frames.intern(classNames[i], methodNames[i]));
+		}
+		current.addSample(node);
+	}
+
+	/**
+	 * Ends the current window and starts a new one.
+	 * @param nowMillis the wall clock time at which the window ended
+	 */
+	synchronized void rotate(long nowMillis) {
+		CallTree oldest = history[next];
+		history[next] = current;
+		historyEndMillis[next] = nowMillis;
+		next = (next + 1) % history.length;
+
+		if (oldest != null) {
+			oldest.clear();
+			current = oldest;
+		}
+		else {
+			current = new CallTree(maxNodes);
+		}
+		if (frames.size() > compactFrames) {
+			compactFrames();
+		}
+	}
+
+	/**
+	 * Replaces the frame table by one with only the frames the kept trees refer to, and
+	 * renumbers the frames of the trees to match.
+	 */
+	private void compactFrames() {
+		FrameTable compacted = new FrameTable();
+		int[] newFrameIds = new int[frames.size()];
+		Arrays.fill(newFrameIds, -1);
+		for (CallTree tree : history) {
+			if (tree != null) {
+				internFrames(tree, compacted, newFrameIds);
+			}
+		}
+		internFrames(current, compacted, newFrameIds);
+
+		for (CallTree tree : history) {
+			if (tree != null) {
+				tree.remapFrameIds(newFrameIds);
+			}
+		}
+		current.remapFrameIds(newFrameIds);
+		frames = compacted;
+		compactFrames = Math.max(compacted.size() * 2, MIN_COMPACT_FRAMES);
+	}
+
+	private void internFrames(CallTree tree, FrameTable compacted, int[] newFrameIds) {
+		for (int node = CallTree.ROOT + 1; node < tree.size(); node++) {
+			int frameId = tree.frameId(node);
+			if (newFrameIds[frameId] == -1) {
+				newFrameIds[frameId] = compacted.intern(frames.className(frameId), frames.methodName(frameId));
+			}
+		}
+	}
+
+	/**
+	 * @return the number of frames in the frame table
+	 */
+	synchronized int frameCount() {
+		return frames.size();
+	}
+
+	/**
+	 * @param sinceMillis the wall clock time from which windows are included, by the
+	 * time they ended
+	 * @return the number of samples per folded stack, with the frames from the
+	 * outermost to the innermost separated by semicolons
+	 */
+	Map<String, Long> folded(long sinceMillis) {
+		List<CallTree> trees = new ArrayList<>();
+		FrameTable frameNames;
+		synchronized (this) {
+			for (int window = 0; window < history.length; window++) {
+				CallTree tree = history[window];
+				if (tree != null && historyEndMillis[window] >= sinceMillis) {
+					trees.add(tree.copy());
+				}
+			}
+			frameNames = frames.copy();
+		}
+
+		Map<String, Long> result = new TreeMap<>();
+		StringBuilder stack = new StringBuilder();
+		for (CallTree tree : trees) {
+			for (int node = CallTree.ROOT + 1; node < tree.size(); node++) {
+				if (tree.selfSamples(node) == 0) {
+					continue;
+				}
+				stack.setLength(0);
+				appendStack(tree, frameNames, node, stack);
+				result.merge(stack.toString(), (long) tree.selfSamples(node), Long::sum);
+			}
+		}
+		return result;
+	}
+
+	private static void appendStack(CallTree tree, FrameTable frameNames, int node, StringBuilder stack) {
+		int parent = tree.parent(node);
+		if (parent != CallTree.ROOT) {
+			appendStack(tree, frameNames, parent, stack);
+			stack.append(';');
+		}
+		stack.append(frameNames.name(tree.frameId(node)));
+	}
+}
@@ -0,0 +1,82 @@
+package nl.first8.cputimeexporter.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Serves the flame graph in collapsed-stack format, one stack per line followed by its
+ * number of samples. The optional {@code seconds} query parameter limits the response
+ * to the windows that ended in the last that many seconds, otherwise all kept windows
+ * are included.
+ */
+class FlameGraphHandler implements HttpHandler {
+	private static final String SECONDS_PARAMETER = "seconds=";
+
+	private final FlameGraph flameGraph;
+
+	FlameGraphHandler(FlameGraph flameGraph) {
+		this.flameGraph = flameGraph;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			long sinceMillis;
+			try {
+				sinceMillis = sinceMillis(exchange.getRequestURI().getRawQuery(), System.currentTimeMillis());
+			}
+			catch (NumberFormatException exception) {
+				send(exchange, 400, "The seconds parameter must be a positive number\n");
+				return;
+			}
+
+			StringBuilder body = new StringBuilder();
+			for (Map.Entry<String, Long> stack : flameGraph.folded(sinceMillis).entrySet()) {
+				body.append(stack.getKey()).append(' ').append(stack.getValue()).append('\n');
+			}
+			send(exchange, 200, body.toString());
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the wall clock time from which windows are included
+	 */
+	static long sinceMillis(String query, long nowMillis) {
+		if (query == null) {
+			return Long.MIN_VALUE;
+		}
+		for (String parameter : query.split("&")) {
+			if (parameter.startsWith(SECONDS_PARAMETER)) {
+				long seconds = Long.parseLong(parameter.substring(SECONDS_PARAMETER.length()));
+				if (seconds <= 0) {
+					throw new NumberFormatException("Not a positive number: " + seconds);
+				}
+				try {
+					return Math.subtractExact(nowMillis, Math.multiplyExact(seconds, 1000));
+				}
+				catch (ArithmeticException exception) {
+					// Further back than any window, so all windows are included
+					return Long.MIN_VALUE;
+				}
+			}
+		}
+		return Long.MIN_VALUE;
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+		try (OutputStream output = exchange.getResponseBody()) {
+			output.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves stack frames to the id of the label they are reported under.
+ * <p>
+ * A frame of a class in one of the grouping packages resolves to the label of that
+ * package, any other frame to {@code className.methodName}. The frame is only monitored
+ * if that label starts with one of the packages to monitor, otherwise it resolves to
+ * {@link #NOT_MONITORED}. The other label of a method label is the package to monitor
+ * it matched, followed by {@code .*}.
+ * <p>
+ * Labels are never removed from the {@link LabelTable}, so the class name is stripped
+ * of the numbers and hashes that are generated per class, such as those of lambdas,
+ * hidden classes, proxies and CGLIB or Byte Buddy subclasses, before it is interned. All
+ * classes generated for the same lambda or proxied class then share one label, and the
+ * number of labels is bounded by the code of the application instead of growing with
+ * each class it generates.
+ * <p>
+ * Resolved frames are kept in a fixed size, 4-way set associative cache, so a frame
+ * that was seen before costs a single lookup and no allocation. Within a set, entries
+ * are evicted with the clock algorithm, which bounds the memory the cache holds on to.
+ * This class is not thread safe.
+ */
+class FrameResolver {
+	static final int NOT_MONITORED = -1;
+
+	private static final int WAYS = 4;
+
+	// The suffix of hidden classes, such as Main$$Lambda/0x0000000800c03000 since JDK 15, which JFR
+	// reports as Main$$Lambda.0x0000000800c03000
+	private static final Pattern HIDDEN_CLASS_SUFFIX = Pattern.compile("[/.]0x\\p{XDigit}+");
+	// The counter of lambdas before JDK 21 and of JDK proxies, such as Main$$Lambda$14 and $Proxy12
+	private static final Pattern GENERATED_COUNTER = Pattern.compile("(\\$\\$Lambda|\\$Proxy)\\$?\\d+");
+	// The hash of CGLIB and Byte Buddy subclasses, such as Service$$EnhancerBySpringCGLIB$$1a2b3c4d,
+	// Service$$SpringCGLIB$$0 and Entity$HibernateProxy$Kd8Ld2a1
+	private static final Pattern GENERATED_HASH = Pattern.compile(
+			"(\\$\\$\\w+?|\\$(?:HibernateProxy|ByteBuddy|MockitoMock))\\$\\$?\\w+");
+
+	private final PackageTrie packagesToMonitor;
+	private final PackageTrie groupingPackages;
+	private final int[] groupingLabelIds;
+	private final int[] otherLabelIds;
+	private final LabelTable labels;
+
+	private final int setMask;
+	private final String[] classNames;
+	private final String[] methodNames;
+	private final int[] labelIds;
+	private final boolean[] referenced;
+	private final byte[] clockHands;
+
+	FrameResolver(List<String> packageNamesToMonitor, List<String> groupingPackageNames, LabelTable labels,
+			int cacheSize) {
+		this.packagesToMonitor = PackageTrie.compile(packageNamesToMonitor);
+		this.groupingPackages = PackageTrie.compile(groupingPackageNames);
+		this.labels = labels;
+
+		// The label of a grouping package is monitored or not regardless of the frame
+		this.groupingLabelIds = new int[groupingPackageNames.size()];
+		for (int i = 0; i < groupingLabelIds.length; i++) {
+			String groupingPackageName = groupingPackageNames.get(i);
+			groupingLabelIds[i] = packagesToMonitor.match(groupingPackageName) == PackageTrie.NO_MATCH
+					? NOT_MONITORED
+					: labels.intern(groupingPackageName);
+		}
+
+		this.otherLabelIds = new int[packageNamesToMonitor.size()];
+		for (int i = 0; i < otherLabelIds.length; i++) {
+			otherLabelIds[i] = labels.intern(packageNamesToMonitor.get(i) + ".*");
+		}
+
+		int sets = Integer.highestOneBit(Math.max(cacheSize / WAYS, 1));
+		this.setMask = sets - 1;
+		this.classNames = new String[sets * WAYS];
+		this.methodNames = new String[sets * WAYS];
+		this.labelIds = new int[sets * WAYS];
+		this.referenced = new boolean[sets * WAYS];
+		this.clockHands = new byte[sets];
+	}
+
+	/**
+	 * @return the label id of the frame, or NOT_MONITORED
+	 */
+	int resolve(StackTraceElement frame) {
+		return resolve(frame.getClassName(), frame.getMethodName());
+	}
+
+	/**
+	 * @return the label id of the method, or NOT_MONITORED
+	 */
+	int resolve(String className, String methodName) {
+		int set = hash(className, methodName) & setMask;
+		int first = set * WAYS;
+		for (int slot = first; slot < first + WAYS; slot++) {
+			if (matches(slot, className, methodName)) {
+				referenced[slot] = true;
+				return labelIds[slot];
+			}
+		}
+
+		int labelId = resolveUncached(className, methodName);
+		int slot = evict(set);
+		classNames[slot] = className;
+		methodNames[slot] = methodName;
+		labelIds[slot] = labelId;
+		referenced[slot] = true;
+		return labelId;
+	}
+
+	private int resolveUncached(String className, String methodName) {
+		int groupingIndex = groupingPackages.match(className);
+		if (groupingIndex != PackageTrie.NO_MATCH) {
+			return groupingLabelIds[groupingIndex];
+		}
+		int monitorIndex = packagesToMonitor.match(className, methodName);
+		if (monitorIndex == PackageTrie.NO_MATCH) {
+			return NOT_MONITORED;
+		}
+		return labels.intern(normalizeClassName(className) + "." + methodName, otherLabelIds[monitorIndex]);
+	}
+
+	/**
+	 * @return the class name without the numbers and hashes of generated classes
+	 */
+	static String normalizeClassName(String className) {
+		if (className.indexOf('$') == -1 && !className.contains("0x")) {
+			return className;
+		}
+		String normalized = HIDDEN_CLASS_SUFFIX.matcher(className).replaceAll("");
+		normalized = GENERATED_COUNTER.matcher(normalized).replaceAll("$1");
+		return GENERATED_HASH.matcher(normalized).replaceAll("$1");
+	}
+
+	private boolean matches(int slot, String className, String methodName) {
+		String cachedClassName = classNames[slot];
+		String cachedMethodName = methodNames[slot];
+		return cachedClassName != null
+				&& (cachedClassName == className || cachedClassName.equals(className))
+				&& (cachedMethodName == methodName || cachedMethodName.equals(methodName));
+	}
+
+	private int evict(int set) {
+		int first = set * WAYS;
+		int hand = clockHands[set];
+		while (referenced[first + hand]) {
+			referenced[first + hand] = false;
+			hand = (hand + 1) % WAYS;
+		}
+		clockHands[set] = (byte) ((hand + 1) % WAYS);
+		return first + hand;
+	}
+
+	private static int hash(String className, String methodName) {
+		int h = className.hashCode() * 31 + methodName.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,101 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+
+/**
+ * Interns stack frames, identified by class and method name, to small integer ids for
+ * the call trees of the flame graph.
+ * <p>
+ * Frames are looked up by open addressing on the names themselves, so a frame that was
+ * seen before costs a lookup and no allocation. The table grows with the number of
+ * distinct methods that are sampled, so the {@link FlameGraph} replaces it by a table
+ * of only the frames that its trees still refer to when it has grown. This class is not
+ * thread safe.
+ */
+final class FrameTable {
+	private static final int EMPTY = -1;
+
+	private String[] classNames = new String[64];
+	private String[] methodNames = new String[64];
+	private int[] index = new int[128];
+	private int size;
+
+	FrameTable() {
+		Arrays.fill(index, EMPTY);
+	}
+
+	/**
+	 * @return the id of the frame, assigning a new id if the frame is not known yet
+	 */
+	int intern(String className, String methodName) {
+		int mask = index.length - 1;
+		int slot = hash(className, methodName) & mask;
+		for (int id = index[slot]; id != EMPTY; id = index[slot]) {
+			if (classNames[id].equals(className) && methodNames[id].equals(methodName)) {
+				return id;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		if (size == classNames.length) {
+			classNames = Arrays.copyOf(classNames, size * 2);
+			methodNames = Arrays.copyOf(methodNames, size * 2);
+		}
+		classNames[size] = className;
+		methodNames[size] = methodName;
+		index[slot] = size;
+		if (++size * 2 > index.length) {
+			rehash();
+		}
+		return size - 1;
+	}
+
+	/**
+	 * @return the name of the frame, as {@code className.methodName}
+	 */
+	String name(int id) {
+		return classNames[id] + "." + methodNames[id];
+	}
+
+	String className(int id) {
+		return classNames[id];
+	}
+
+	String methodName(int id) {
+		return methodNames[id];
+	}
+
+	/**
+	 * @return a copy of the table, which does not change with this table
+	 */
+	FrameTable copy() {
+		FrameTable copy = new FrameTable();
+		copy.classNames = classNames.clone();
+		copy.methodNames = methodNames.clone();
+		copy.index = index.clone();
+		copy.size = size;
+		return copy;
+	}
+
+	int size() {
+		return size;
+	}
+
+	private void rehash() {
+		index = new int[index.length * 2];
+		Arrays.fill(index, EMPTY);
+		int mask = index.length - 1;
+		for (int id = 0; id < size; id++) {
+			int slot = hash(classNames[id], methodNames[id]) & mask;
+			while (index[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			index[slot] = id;
+		}
+	}
+
+	private static int hash(String className, String methodName) {
+		int h = className.hashCode() * 31 + methodName.hashCode();
+		return h ^ (h >>> 16);
+	}
+}
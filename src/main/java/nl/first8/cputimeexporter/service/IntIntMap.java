@@ -0,0 +1,144 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from non-negative int keys to int values, used to count
+ * occurrences without boxing.
+ * <p>
+ * Entries are iterated by slot: {@link #keyAt(int)} returns {@link #EMPTY} for slots
+ * without an entry. Removal uses backward shift deletion, so no tombstones are left
+ * behind. Clearing keeps the allocated capacity, so a map that is reused every window
+ * stops allocating once it has grown to its working size.
+ */
+final class IntIntMap {
+	static final int EMPTY = -1;
+
+	private static final int MIN_CAPACITY = 8;
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+
+	IntIntMap() {
+		this(MIN_CAPACITY);
+	}
+
+	IntIntMap(int expectedSize) {
+		int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(expectedSize, 1) * 2 - 1) * 2);
+		this.keys = new int[capacity];
+		this.values = new int[capacity];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Adds delta to the value of key, which is 0 if the key is not present yet.
+	 * @return the new value
+	 */
+	int addTo(int key, int delta) {
+		int slot = slot(key);
+		if (keys[slot] == EMPTY) {
+			keys[slot] = key;
+			values[slot] = delta;
+			if (++size * 2 > keys.length) {
+				grow();
+			}
+			return delta;
+		}
+		return values[slot] += delta;
+	}
+
+	/**
+	 * @return the value of key, or 0 if the key is not present
+	 */
+	int get(int key) {
+		int slot = slot(key);
+		return keys[slot] == EMPTY ? 0 : values[slot];
+	}
+
+	/**
+	 * @return the removed value, or 0 if the key was not present
+	 */
+	int remove(int key) {
+		int slot = slot(key);
+		if (keys[slot] == EMPTY) {
+			return 0;
+		}
+		int previous = values[slot];
+		int mask = keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (keys[next] != EMPTY) {
+			int home = mix(keys[next]) & mask;
+			// Move the entry into the hole if the hole lies between its home slot and its current slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		size--;
+		return previous;
+	}
+
+	/**
+	 * @return whether the key is present
+	 */
+	boolean containsKey(int key) {
+		return keys[slot(key)] != EMPTY;
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return keys.length;
+	}
+
+	int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	int valueAt(int slot) {
+		return values[slot];
+	}
+
+	void clear() {
+		if (size > 0) {
+			Arrays.fill(keys, EMPTY);
+			size = 0;
+		}
+	}
+
+	private int slot(int key) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (keys[slot] != EMPTY && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		values = new int[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != EMPTY) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,234 @@
+package nl.first8.cputimeexporter.service;
+
+import jdk.jfr.EventSettings;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordedThread;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.time.Duration;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Samples the running threads by consuming the jdk.ExecutionSample events of an
+ * in-process JFR recording stream. JFR samples threads without waiting for a safepoint,
+ * so the samples are not biased towards the places where a thread can reach one.
+ * <p>
+ * Events are delivered on the thread of the recording stream, which resolves them to
+ * labels and counts them in the current window. {@link #swap()} hands the samples
+ * collected so far to the monitoring thread and starts a new window. As JFR delivers
+ * events in batches, about once per second, a sample may end up in the window after
+ * the one it was taken in. The monitoring service carries the CPU time of a thread
+ * over to the window its samples arrive in, see {@link UnattributedUsage}.
+ * <p>
+ * On JDK 21 and later, samples of virtual threads are recorded under
+ * {@link CarrierThreads#POOL_THREAD_ID}, so they share the CPU time of the carrier
+ * threads they run on.
+ * <p>
+ * RecordingStream is only available as of JDK 14, so it is used through reflection to
+ * keep the agent loadable on JDK 11.
+ */
+final class JfrSampler implements AutoCloseable {
+	private static final Logger log = Logger.getLogger(JfrSampler.class.getName());
+
+	private static final String RECORDING_STREAM_CLASS_NAME = "jdk.jfr.consumer.RecordingStream";
+	static final String EXECUTION_SAMPLE_EVENT = "jdk.ExecutionSample";
+	// RecordedThread.isVirtual() only exists as of JDK 21
+	private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+	private volatile FrameResolver frameResolver;
+	private final FlameGraph flameGraph;
+	private Duration period;
+
+	// Frames of the sample being handled, for the flame graph
+	private String[] classNames = new String[64];
+	private String[] methodNames = new String[64];
+
+	private WindowStats current = new WindowStats();
+	private WindowStats spare = new WindowStats();
+	private AutoCloseable stream;
+
+	/**
+	 * @param frameResolver resolves the frames of the samples, only used from the thread
+	 * of the recording stream until it is replaced
+	 * @param flameGraph the flame graph to add the stacks to, or null if it is disabled
+	 * @param sampleRateMilliseconds the interval at which JFR samples the threads
+	 */
+	JfrSampler(FrameResolver frameResolver, FlameGraph flameGraph, long sampleRateMilliseconds) {
+		this.frameResolver = frameResolver;
+		this.flameGraph = flameGraph;
+		this.period = Duration.ofMillis(sampleRateMilliseconds);
+	}
+
+	/**
+	 * Resolves the samples delivered from now on with another frame resolver.
+	 */
+	void setFrameResolver(FrameResolver frameResolver) {
+		this.frameResolver = frameResolver;
+	}
+
+	/**
+	 * @return whether the JVM can stream JFR events in-process
+	 */
+	static boolean isSupported() {
+		try {
+			Class.forName(RECORDING_STREAM_CLASS_NAME);
+			return FlightRecorder.isAvailable();
+		}
+		catch (ClassNotFoundException exception) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts the recording stream, which delivers the samples on its own thread. Does
+	 * nothing if it is already started. Samples left from a previous stream are dropped.
+	 */
+	void start() throws ReflectiveOperationException {
+		if (stream != null) {
+			return;
+		}
+		synchronized (this) {
+			current.clear();
+		}
+		Class<?> streamClass = Class.forName(RECORDING_STREAM_CLASS_NAME);
+		Object recordingStream = streamClass.getConstructor().newInstance();
+		EventSettings settings = (EventSettings) streamClass.getMethod("enable", String.class)
+				.invoke(recordingStream, EXECUTION_SAMPLE_EVENT);
+		settings.withPeriod(period).withStackTrace();
+
+		Consumer<RecordedEvent> handler = this::onExecutionSample;
+		streamClass.getMethod("onEvent", String.class, Consumer.class)
+				.invoke(recordingStream, EXECUTION_SAMPLE_EVENT, handler);
+		streamClass.getMethod("startAsync").invoke(recordingStream);
+		stream = (AutoCloseable) recordingStream;
+		log.info(() -> "Started JFR execution sampling every " + period.toMillis() + " ms");
+	}
+
+	/**
+	 * Changes the interval at which JFR samples the threads. A started recording stream
+	 * is restarted, as the period of a running stream cannot be changed.
+	 */
+	void setSampleRateMilliseconds(long sampleRateMilliseconds) throws ReflectiveOperationException {
+		Duration newPeriod = Duration.ofMillis(sampleRateMilliseconds);
+		if (newPeriod.equals(period)) {
+			return;
+		}
+		this.period = newPeriod;
+		if (stream != null) {
+			close();
+			start();
+		}
+	}
+
+	/**
+	 * Counts a single execution sample in the current window.
+	 */
+	void onExecutionSample(RecordedEvent event) {
+		RecordedThread thread = event.getThread("sampledThread");
+		RecordedStackTrace stackTrace = event.getStackTrace();
+		if (thread == null || stackTrace == null) {
+			return;
+		}
+		List<RecordedFrame> frames = stackTrace.getFrames();
+		int labelId = resolveLabel(frames);
+		long threadId = isVirtual(thread) ? CarrierThreads.POOL_THREAD_ID : thread.getJavaThreadId();
+		synchronized (this) {
+			current.record(threadId, labelId);
+		}
+		if (flameGraph != null) {
+			recordFlameGraph(frames);
+		}
+	}
+
+	private static boolean isVirtual(RecordedThread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(thread);
+		}
+		catch (Throwable throwable) {
+			return false;
+		}
+	}
+
+	private static MethodHandle findIsVirtual() {
+		try {
+			return MethodHandles.publicLookup()
+					.findVirtual(RecordedThread.class, "isVirtual", MethodType.methodType(boolean.class));
+		}
+		catch (ReflectiveOperationException exception) {
+			return null;
+		}
+	}
+
+	private void recordFlameGraph(List<RecordedFrame> frames) {
+		if (classNames.length < frames.size()) {
+			classNames = new String[frames.size()];
+			methodNames = new String[frames.size()];
+		}
+		int depth = 0;
+		for (RecordedFrame frame : frames) {
+			RecordedMethod method = frame.getMethod();
+			if (method != null) {
+				classNames[depth] = method.getType().getName();
+				methodNames[depth] = method.getName();
+				depth++;
+			}
+		}
+		flameGraph.record(classNames, methodNames, depth);
+	}
+
+	private int resolveLabel(List<RecordedFrame> frames) {
+		FrameResolver resolver = frameResolver;
+		for (RecordedFrame frame : frames) {
+			RecordedMethod method = frame.getMethod();
+			if (method == null || !frame.isJavaFrame()) {
+				continue;
+			}
+			int labelId = resolver.resolve(method.getType().getName(), method.getName());
+			if (labelId != FrameResolver.NOT_MONITORED) {
+				return labelId;
+			}
+		}
+		return FrameResolver.NOT_MONITORED;
+	}
+
+	/**
+	 * Starts a new window.
+	 * @return the samples delivered since the previous swap. The stats must be cleared
+	 * before the next swap, as they are reused for the window after the next one
+	 */
+	synchronized WindowStats swap() {
+		WindowStats full = current;
+		current = spare;
+		spare = full;
+		return full;
+	}
+
+	/**
+	 * Stops the recording stream, after which JFR no longer samples the threads. It can
+	 * be started again.
+	 */
+	@Override
+	public void close() {
+		if (stream == null) {
+			return;
+		}
+		try {
+			stream.close();
+		}
+		catch (Exception exception) {
+			log.warning("Could not close the JFR recording stream: " + exception);
+		}
+		stream = null;
+	}
+}
@@ -0,0 +1,255 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+
+/**
+ * Bounds the number of method labels that are reported by themselves.
+ * <p>
+ * Each label collects the CPU time and the allocated bytes attributed to it during a
+ * window, which are reported under the same label, but only the CPU time decides which
+ * labels are reported by themselves.
+ * <p>
+ * The CPU time of each label is counted with the Space-Saving algorithm, which keeps a
+ * fixed number of candidates: a label that is not a candidate yet replaces the candidate
+ * with the lowest count and inherits that count as its error. Counts decay every window,
+ * so the ranking follows the recent CPU time rather than the total since the start.
+ * At the end of each window, the {@code maxLabels} candidates with the highest count
+ * that is guaranteed, the count minus the error, are reported under their own label.
+ * The CPU time of any other label is reported under its other label from the
+ * {@link LabelTable}. Labels without an other label, those of grouping packages, are
+ * bounded by the configuration and always reported under their own label.
+ * <p>
+ * A label that was reported by itself, but has not been among the top labels for
+ * {@code expiryWindows} windows, is expired, so its series can be removed. This class
+ * is not thread safe.
+ */
+final class LabelLimiter {
+	// Keep more candidates than labels, so labels near the boundary are not evicted from the counts
+	private static final int CANDIDATES_PER_LABEL = 2;
+	// Weight of the counts of the previous windows, halving them about every 14 windows
+	private static final double DECAY = 0.95;
+
+	/**
+	 * Receives the CPU time and allocated bytes of a window per reported label.
+	 */
+	interface Reporter {
+		void report(int labelId, double seconds, double allocatedBytes);
+
+		void expire(int labelId);
+
+		/**
+		 * @return a reporter that reports to both reporters, in order
+		 */
+		static Reporter both(Reporter first, Reporter second) {
+			return new Reporter() {
+				@Override
+				public void report(int labelId, double seconds, double allocatedBytes) {
+					first.report(labelId, seconds, allocatedBytes);
+					second.report(labelId, seconds, allocatedBytes);
+				}
+
+				@Override
+				public void expire(int labelId) {
+					first.expire(labelId);
+					second.expire(labelId);
+				}
+			};
+		}
+	}
+
+	private final LabelTable labels;
+	private final int maxLabels;
+	private final int expiryWindows;
+
+	// CPU time and allocated bytes per label in the current window
+	private double[] windowSeconds = new double[64];
+	private double[] windowAllocatedBytes = new double[64];
+	private boolean[] inWindow = new boolean[64];
+	private int[] windowLabelIds = new int[64];
+	private int windowLabelCount;
+
+	// Space-Saving candidates
+	private final int[] candidateLabelIds;
+	private final double[] candidateCounts;
+	private final double[] candidateErrors;
+	private final boolean[] topCandidates;
+	private final double[] rankScratch;
+	private final IntIntMap candidateSlots = new IntIntMap();
+	private int candidateCount;
+
+	// Window in which each label reported by itself was last among the top labels
+	private final IntIntMap lastTopWindows = new IntIntMap();
+	private int[] expiredScratch = new int[64];
+	private int window;
+
+	LabelLimiter(LabelTable labels, int maxLabels, int expiryWindows) {
+		this.labels = labels;
+		this.maxLabels = maxLabels;
+		this.expiryWindows = expiryWindows;
+
+		int capacity = maxLabels * CANDIDATES_PER_LABEL;
+		this.candidateLabelIds = new int[capacity];
+		this.candidateCounts = new double[capacity];
+		this.candidateErrors = new double[capacity];
+		this.topCandidates = new boolean[capacity];
+		this.rankScratch = new double[capacity];
+	}
+
+	/**
+	 * Adds CPU time and allocated bytes of the current window to a label.
+	 */
+	void add(int labelId, double seconds, double allocatedBytes) {
+		if (seconds <= 0 && allocatedBytes <= 0) {
+			return;
+		}
+		if (labelId >= windowSeconds.length) {
+			int capacity = Math.max(windowSeconds.length * 2, labelId + 1);
+			windowSeconds = Arrays.copyOf(windowSeconds, capacity);
+			windowAllocatedBytes = Arrays.copyOf(windowAllocatedBytes, capacity);
+			inWindow = Arrays.copyOf(inWindow, capacity);
+		}
+		if (!inWindow[labelId]) {
+			if (windowLabelCount == windowLabelIds.length) {
+				windowLabelIds = Arrays.copyOf(windowLabelIds, windowLabelCount * 2);
+			}
+			windowLabelIds[windowLabelCount++] = labelId;
+			inWindow[labelId] = true;
+		}
+		windowSeconds[labelId] += seconds;
+		windowAllocatedBytes[labelId] += allocatedBytes;
+	}
+
+	/**
+	 * Reports the CPU time of the current window, expires the labels that dropped out of
+	 * the top labels long enough ago, and starts a new window.
+	 */
+	void endWindow(Reporter reporter) {
+		window++;
+		for (int i = 0; i < windowLabelCount; i++) {
+			int labelId = windowLabelIds[i];
+			if (labels.otherLabelId(labelId) != LabelTable.NO_OTHER_LABEL && windowSeconds[labelId] > 0) {
+				offer(labelId, windowSeconds[labelId]);
+			}
+		}
+		rank();
+
+		for (int i = 0; i < windowLabelCount; i++) {
+			int labelId = windowLabelIds[i];
+			int otherLabelId = labels.otherLabelId(labelId);
+			if (otherLabelId == LabelTable.NO_OTHER_LABEL || isTop(labelId)) {
+				reporter.report(labelId, windowSeconds[labelId], windowAllocatedBytes[labelId]);
+				if (otherLabelId != LabelTable.NO_OTHER_LABEL) {
+					lastTopWindows.addTo(labelId, window - lastTopWindows.get(labelId));
+				}
+			}
+			else {
+				reporter.report(otherLabelId, windowSeconds[labelId], windowAllocatedBytes[labelId]);
+			}
+			windowSeconds[labelId] = 0;
+			windowAllocatedBytes[labelId] = 0;
+			inWindow[labelId] = false;
+		}
+		windowLabelCount = 0;
+
+		expire(reporter);
+		decay();
+	}
+
+	/**
+	 * @return whether the label is currently reported by itself
+	 */
+	boolean isTop(int labelId) {
+		return candidateSlots.containsKey(labelId) && topCandidates[candidateSlots.get(labelId)];
+	}
+
+	private void offer(int labelId, double seconds) {
+		if (candidateSlots.containsKey(labelId)) {
+			candidateCounts[candidateSlots.get(labelId)] += seconds;
+			return;
+		}
+
+		int slot;
+		double error = 0;
+		if (candidateCount < candidateLabelIds.length) {
+			slot = candidateCount++;
+		}
+		else {
+			slot = 0;
+			for (int i = 1; i < candidateCount; i++) {
+				if (candidateCounts[i] < candidateCounts[slot]) {
+					slot = i;
+				}
+			}
+			candidateSlots.remove(candidateLabelIds[slot]);
+			error = candidateCounts[slot];
+		}
+		candidateLabelIds[slot] = labelId;
+		candidateCounts[slot] = error + seconds;
+		candidateErrors[slot] = error;
+		candidateSlots.addTo(labelId, slot);
+	}
+
+	/**
+	 * Marks the maxLabels candidates with the highest guaranteed count as top candidates.
+	 */
+	private void rank() {
+		double threshold = Double.NEGATIVE_INFINITY;
+		if (candidateCount > maxLabels) {
+			for (int i = 0; i < candidateCount; i++) {
+				rankScratch[i] = guaranteedCount(i);
+			}
+			Arrays.sort(rankScratch, 0, candidateCount);
+			threshold = rankScratch[candidateCount - maxLabels];
+		}
+
+		// Candidates above the threshold first, then candidates equal to it while there is room
+		int remaining = maxLabels;
+		for (int i = 0; i < candidateCount; i++) {
+			topCandidates[i] = guaranteedCount(i) > threshold;
+			if (topCandidates[i]) {
+				remaining--;
+			}
+		}
+		for (int i = 0; i < candidateCount && remaining > 0; i++) {
+			if (!topCandidates[i] && guaranteedCount(i) == threshold) {
+				topCandidates[i] = true;
+				remaining--;
+			}
+		}
+	}
+
+	private double guaranteedCount(int slot) {
+		return candidateCounts[slot] - candidateErrors[slot];
+	}
+
+	private void expire(Reporter reporter) {
+		int expiredCount = 0;
+		for (int slot = 0; slot < lastTopWindows.capacity(); slot++) {
+			int labelId = lastTopWindows.keyAt(slot);
+			if (labelId == IntIntMap.EMPTY) {
+				continue;
+			}
+			if (isTop(labelId)) {
+				lastTopWindows.addTo(labelId, window - lastTopWindows.valueAt(slot));
+			}
+			else if (window - lastTopWindows.valueAt(slot) >= expiryWindows) {
+				if (expiredCount == expiredScratch.length) {
+					expiredScratch = Arrays.copyOf(expiredScratch, expiredCount * 2);
+				}
+				expiredScratch[expiredCount++] = labelId;
+			}
+		}
+		// Removed after iterating, as removing moves the other entries
+		for (int i = 0; i < expiredCount; i++) {
+			lastTopWindows.remove(expiredScratch[i]);
+			reporter.expire(expiredScratch[i]);
+		}
+	}
+
+	private void decay() {
+		for (int i = 0; i < candidateCount; i++) {
+			candidateCounts[i] *= DECAY;
+			candidateErrors[i] *= DECAY;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns the method labels reported by the agent, so the rest of the agent can refer
+ * to a label by a small integer id. Each label may have an "other" label, that its CPU
+ * time is reported under when it is not one of the labels with the most CPU time.
+ * <p>
+ * With thread pool grouping, the same method in another thread pool is another label,
+ * so the labels with the most CPU time are chosen per method and thread pool.
+ * <p>
+ * Labels are never removed, as ids are kept in the arrays of other classes. The
+ * {@link FrameResolver} keeps their number bounded by the code of the application by
+ * normalizing the names of generated classes.
+ * <p>
+ * Interning is synchronized as it only happens when a frame is resolved for the first
+ * time. Looking up a label by id does not lock.
+ */
+class LabelTable {
+	static final int NO_OTHER_LABEL = -1;
+
+	private final Map<String, Integer> ids = new HashMap<>();
+	private volatile String[] names = new String[64];
+	private volatile int[] otherLabelIds = new int[64];
+	private volatile String[] threadPools = new String[64];
+	private int size;
+
+	/**
+	 * @return the id of the label, assigning a new id if the label is not known yet
+	 */
+	int intern(String label) {
+		return intern(label, NO_OTHER_LABEL);
+	}
+
+	/**
+	 * @param otherLabelId the label to report under when this label is not reported by itself,
+	 * or NO_OTHER_LABEL if it is always reported by itself
+	 * @return the id of the label, assigning a new id if the label is not known yet
+	 */
+	int intern(String label, int otherLabelId) {
+		return intern(label, otherLabelId, null);
+	}
+
+	/**
+	 * @param threadPool the thread pool the label is reported for, or null if the label
+	 * is not reported per thread pool
+	 * @return the id of the label in the thread pool, assigning a new id if it is not known yet
+	 */
+	synchronized int intern(String label, int otherLabelId, String threadPool) {
+		String key = threadPool == null ? label : label + '\0' + threadPool;
+		Integer id = ids.get(key);
+		if (id != null) {
+			return id;
+		}
+
+		String[] currentNames = names;
+		int[] currentOtherLabelIds = otherLabelIds;
+		String[] currentThreadPools = threadPools;
+		if (size == currentNames.length) {
+			currentNames = Arrays.copyOf(currentNames, size * 2);
+			currentOtherLabelIds = Arrays.copyOf(currentOtherLabelIds, size * 2);
+			currentThreadPools = Arrays.copyOf(currentThreadPools, size * 2);
+		}
+		currentNames[size] = label;
+		currentOtherLabelIds[size] = otherLabelId;
+		currentThreadPools[size] = threadPool;
+		ids.put(key, size);
+		otherLabelIds = currentOtherLabelIds;
+		threadPools = currentThreadPools;
+		names = currentNames;
+		return size++;
+	}
+
+	/**
+	 * @return the label of an id returned by {@link #intern(String)}
+	 */
+	String name(int id) {
+		return names[id];
+	}
+
+	/**
+	 * @return the thread pool the label is reported for, or null if it is not reported per thread pool
+	 */
+	String threadPool(int id) {
+		return threadPools[id];
+	}
+
+	/**
+	 * @return the id of the label to report under when this label is not reported by
+	 * itself, or NO_OTHER_LABEL
+	 */
+	int otherLabelId(int id) {
+		return otherLabelIds[id];
+	}
+
+	synchronized int size() {
+		return size;
+	}
+}
@@ -0,0 +1,136 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.function.Predicate;
+
+/**
+ * Open addressing hash map from long keys, such as thread ids, to objects, avoiding the
+ * boxing of keys on every lookup.
+ * <p>
+ * Entries are iterated by slot: {@link #valueAt(int)} returns null for slots without an
+ * entry. Removal uses backward shift deletion, so no tombstones are left behind.
+ */
+final class LongObjectMap<V> {
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	private Object[] values;
+	private int size;
+
+	LongObjectMap() {
+		this.keys = new long[MIN_CAPACITY];
+		this.values = new Object[MIN_CAPACITY];
+	}
+
+	/**
+	 * @return the value of key, or null if the key is not present
+	 */
+	V get(long key) {
+		return valueAt(slot(key));
+	}
+
+	/**
+	 * @return the previous value of key, or null if the key was not present
+	 */
+	V put(long key, V value) {
+		int slot = slot(key);
+		V previous = valueAt(slot);
+		keys[slot] = key;
+		values[slot] = value;
+		if (previous == null && ++size * 2 > keys.length) {
+			grow();
+		}
+		return previous;
+	}
+
+	/**
+	 * @return the removed value, or null if the key was not present
+	 */
+	V remove(long key) {
+		int slot = slot(key);
+		V previous = valueAt(slot);
+		if (previous != null) {
+			removeSlot(slot);
+		}
+		return previous;
+	}
+
+	/**
+	 * Removes all entries of which the value matches the filter.
+	 */
+	void removeIf(Predicate<V> filter) {
+		int slot = 0;
+		while (slot < values.length) {
+			V value = valueAt(slot);
+			if (value != null && filter.test(value)) {
+				// Another entry may have been shifted into this slot, so check it again
+				removeSlot(slot);
+			}
+			else {
+				slot++;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return keys.length;
+	}
+
+	long keyAt(int slot) {
+		return keys[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	private int slot(long key) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (values[slot] != null && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void removeSlot(int slot) {
+		int mask = keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while (values[next] != null) {
+			int home = mix(keys[next]) & mask;
+			// Move the entry into the hole if the hole lies between its home slot and its current slot
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys[hole] = keys[next];
+				values[hole] = values[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[hole] = null;
+		size--;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new Object[oldKeys.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private static int mix(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,132 @@
+package nl.first8.cputimeexporter.service;
+
+import io.prometheus.metrics.model.registry.MultiCollector;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.Labels;
+import io.prometheus.metrics.model.snapshots.MetricSnapshots;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+/**
+ * The per-method metrics, method_cpu_seconds and, if the JVM measures allocations,
+ * method_allocated_bytes, exported as a collector of immutable snapshots.
+ * <p>
+ * The monitoring thread adds the usage of a window to the totals per label, which only
+ * it accesses. Once the window is complete, {@link #publish()} builds a snapshot of all
+ * totals and swaps it in with a single atomic write. A scrape returns the last published
+ * snapshot as it is, so it never sees a partially applied window, never waits for the
+ * monitoring thread, and costs nothing beyond the serialization.
+ * <p>
+ * Labels of a thread pool are exported with a thread_pool label next to the method_name.
+ */
+class MethodMetrics implements MultiCollector, LabelLimiter.Reporter {
+	private static final Logger log = Logger.getLogger(MethodMetrics.class.getName());
+
+	static final String CPU_SECONDS_NAME = "method_cpu_seconds";
+	static final String ALLOCATED_BYTES_NAME = "method_allocated_bytes";
+	private static final String LABEL_NAME = "method_name";
+	private static final String THREAD_POOL_LABEL_NAME = "thread_pool";
+
+	private final LabelTable labels;
+	private final boolean allocatedBytesEnabled;
+	private final List<String> prometheusNames;
+	private final AtomicReference<MetricSnapshots> snapshot;
+
+	// Totals per label id, only accessed by the monitoring thread
+	private double[] cpuSeconds = new double[64];
+	private double[] allocatedBytes = new double[64];
+	private boolean[] reported = new boolean[64];
+	private int maxLabelId = -1;
+
+	/**
+	 * @param allocatedBytesEnabled whether to export the allocated bytes per method
+	 */
+	MethodMetrics(LabelTable labels, boolean allocatedBytesEnabled) {
+		this.labels = labels;
+		this.allocatedBytesEnabled = allocatedBytesEnabled;
+		this.prometheusNames = allocatedBytesEnabled
+				? List.of(CPU_SECONDS_NAME, ALLOCATED_BYTES_NAME)
+				: List.of(CPU_SECONDS_NAME);
+		this.snapshot = new AtomicReference<>(buildSnapshot());
+	}
+
+	@Override
+	public void report(int labelId, double seconds, double allocatedBytes) {
+		if (labelId >= reported.length) {
+			int capacity = Math.max(reported.length * 2, labelId + 1);
+			this.cpuSeconds = Arrays.copyOf(this.cpuSeconds, capacity);
+			this.allocatedBytes = Arrays.copyOf(this.allocatedBytes, capacity);
+			this.reported = Arrays.copyOf(this.reported, capacity);
+		}
+		this.cpuSeconds[labelId] += seconds;
+		this.allocatedBytes[labelId] += allocatedBytes;
+		reported[labelId] = true;
+		maxLabelId = Math.max(maxLabelId, labelId);
+
+		log.fine(() -> String.format("Method: %s, Time Spent: %.2f seconds, Allocated: %.0f bytes",
+				labels.name(labelId), seconds, allocatedBytes));
+	}
+
+	@Override
+	public void expire(int labelId) {
+		cpuSeconds[labelId] = 0;
+		allocatedBytes[labelId] = 0;
+		reported[labelId] = false;
+		log.fine(() -> "Removed method that is no longer among the top methods: " + labels.name(labelId));
+	}
+
+	/**
+	 * Makes the totals reported so far visible to scrapes.
+	 */
+	void publish() {
+		snapshot.set(buildSnapshot());
+	}
+
+	@Override
+	public MetricSnapshots collect() {
+		return snapshot.get();
+	}
+
+	@Override
+	public List<String> getPrometheusNames() {
+		return prometheusNames;
+	}
+
+	private MetricSnapshots buildSnapshot() {
+		CounterSnapshot.Builder cpuSecondsSnapshot = CounterSnapshot.builder()
+				.name(CPU_SECONDS_NAME)
+				.help("CPU time used by the threads while they were sampled in a method");
+		CounterSnapshot.Builder allocatedBytesSnapshot = CounterSnapshot.builder()
+				.name(ALLOCATED_BYTES_NAME)
+				.help("Memory allocated by the threads while they were sampled in a method");
+		for (int labelId = 0; labelId <= maxLabelId; labelId++) {
+			if (!reported[labelId]) {
+				continue;
+			}
+			String threadPool = labels.threadPool(labelId);
+			Labels methodLabels = threadPool == null
+					? Labels.of(LABEL_NAME, labels.name(labelId))
+					: Labels.of(LABEL_NAME, labels.name(labelId), THREAD_POOL_LABEL_NAME, threadPool);
+			if (cpuSeconds[labelId] > 0) {
+				cpuSecondsSnapshot.dataPoint(dataPoint(methodLabels, cpuSeconds[labelId]));
+			}
+			if (allocatedBytes[labelId] > 0) {
+				allocatedBytesSnapshot.dataPoint(dataPoint(methodLabels, allocatedBytes[labelId]));
+			}
+		}
+		return allocatedBytesEnabled
+				? MetricSnapshots.of(cpuSecondsSnapshot.build(), allocatedBytesSnapshot.build())
+				: MetricSnapshots.of(cpuSecondsSnapshot.build());
+	}
+
+	private static CounterDataPointSnapshot dataPoint(Labels methodLabels, double value) {
+		return CounterDataPointSnapshot.builder()
+				.labels(methodLabels)
+				.value(value)
+				.build();
+	}
+}
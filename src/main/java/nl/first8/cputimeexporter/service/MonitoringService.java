@@ -1,52 +1,139 @@
 package nl.first8.cputimeexporter.service;
 
-import io.prometheus.metrics.core.datapoints.GaugeDataPoint;
-import io.prometheus.metrics.core.metrics.Gauge;
+import com.sun.net.httpserver.HttpHandler;
 import io.prometheus.metrics.model.registry.PrometheusRegistry;
 import nl.first8.cputimeexporter.config.AgentProperties;
+import nl.first8.cputimeexporter.config.SamplingMode;
 
+import java.io.IOException;
 import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.Path;
 import java.util.Optional;
-import java.util.function.Predicate;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 public class MonitoringService implements Runnable {
 	private static final Logger log = Logger.getLogger(MonitoringService.class.getName());
 	public static final String COMPUTATION_THREAD_NAME = "Method usage calculation";
+	// About two flushes of the JFR recording stream, which flushes once per second
+	private static final long JFR_CARRY_MILLISECONDS = 2_000;
+
+	/**
+	 * The state of sampling, as controlled by {@link #start()}, {@link #pause()} and {@link #stop()}.
+	 */
+	public enum State {
+		RUNNING, PAUSED, STOPPED
+	}
 
 	private final AgentProperties properties;
+	// A reloaded config, applied by the monitoring thread before its next window
+	private final AtomicReference<AgentProperties> reloadedProperties = new AtomicReference<>();
+	// A sample rate set at runtime, applied like a reloaded config, or 0 if there is none
+	private final AtomicLong requestedSampleRateMilliseconds = new AtomicLong();
+
+	private volatile State state = State.STOPPED;
+	private volatile long sampleRateMilliseconds;
+	private Thread monitoringThread;
 
 	private final ThreadMXBean threadBean;
+	private final ThreadSampler threadSampler;
+	private final LabelTable labels;
+	private FrameResolver frameResolver;
+	private final WindowStats windowStats = new WindowStats();
+	private final ThreadUsageTracker cpuTracker;
+	// Reads the CPU time of the threads from /proc/self/task when enabled, otherwise null
+	private final ProcThreadCpuTime procThreadCpuTime;
+	private final ThreadUsageTracker allocationTracker;
+	private final ProcessCpuTime processCpuTime;
+	private long previousProcessCpuNanos = ProcessCpuTime.UNAVAILABLE;
+	private final LabelLimiter labelLimiter;
+	private final FlameGraph flameGraph;
+	private final JfrSampler jfrSampler;
+	private final CarrierThreads carrierThreads;
+	// The usage of threads whose samples JFR has not delivered yet, null with safepoint sampling
+	private final UnattributedUsage unattributedUsage;
+	// Null if the CPU time is not reported per thread pool
+	private final ThreadPools threadPools;
+	// Passes the safepoint samples from the sampler thread to the monitoring thread
+	private final SampleRing sampleRing;
+	private SafepointSampler safepointSampler;
+	// The threads to read the CPU time of at the end of the window, as known to the sampler
+	private long[] windowThreadIds;
 
-	private static final long SAMPLE_TIME_MILLISECONDS = 1000;
-	private final long sampleRateMilliseconds;
-	private final int sampleIterations;
+	private final long sampleTimeMilliseconds;
+	private SampleRateController sampleRateController;
 
-	private final Gauge gauge;
+	private final MethodMetrics methodMetrics;
+	// Open while the monitoring thread runs, and only used by it
+	private WindowRecorder windowRecorder;
+	private LabelLimiter.Reporter reporter;
+	private final AgentMetrics agentMetrics;
 
 	public MonitoringService(AgentProperties properties, PrometheusRegistry registry) {
 		this.properties = properties;
 		this.threadBean = createThreadBean();
-		this.sampleRateMilliseconds = 10; // default
-		this.sampleIterations = (int) (SAMPLE_TIME_MILLISECONDS / sampleRateMilliseconds);
-		this.gauge = Gauge.builder()
-				.name("method_cpu_time_in_seconds")
-				.labelNames("method_name")
-				.register(registry);
-		log.info("Starting monitoring thread");
+		this.threadSampler = new ThreadSampler(threadBean, properties.getMaxStackDepth(),
+				properties.getThreadRefreshIntervalMilliseconds(), properties.getHideAgentConsumption(),
+				properties.getSkipIdleThreads() ? ThreadUsageTracker.cpuTimeReader(threadBean) : null);
+		this.procThreadCpuTime = properties.getProcThreadCpuTime()
+				? ProcThreadCpuTime.create(threadBean, ThreadUsageTracker.cpuTimeReader(threadBean))
+				: null;
+		if (properties.getProcThreadCpuTime() && procThreadCpuTime == null) {
+			log.warning("Cannot read the CPU time of threads from /proc/self/task, reading it through the ThreadMXBean");
+		}
+		this.cpuTracker = procThreadCpuTime == null
+				? ThreadUsageTracker.cpuTime(threadBean)
+				: new ThreadUsageTracker(procThreadCpuTime);
+		this.allocationTracker = ThreadUsageTracker.allocatedBytes(threadBean);
+		this.processCpuTime = ProcessCpuTime.create();
+		this.labels = new LabelTable();
+		this.frameResolver = new FrameResolver(properties.getPackageNamesToMonitor(),
+				properties.getGroupingPackageNames(), labels, properties.getFrameCacheSize());
+		this.threadPools = properties.getThreadPoolPatterns().isEmpty()
+				? null
+				: new ThreadPools(properties.getThreadPoolPatterns(), threadBean, labels);
+		this.labelLimiter = new LabelLimiter(labels, properties.getMaxMethodLabels(),
+				properties.getMethodLabelExpiryWindows());
+		this.sampleTimeMilliseconds = properties.getSampleTimeMilliseconds();
+		this.sampleRateMilliseconds = properties.getSampleRateMilliseconds();
+		this.flameGraph = properties.getFlameGraphEnabled()
+				? new FlameGraph(properties.getFlameGraphMaxNodes(), properties.getFlameGraphHistoryWindows())
+				: null;
+		this.jfrSampler = properties.getSamplingMode() == SamplingMode.JFR
+				? startJfrSampler(frameResolver, flameGraph, properties.getSampleRateMilliseconds())
+				: null;
+		// Only JFR samples the stacks of virtual threads
+		this.carrierThreads = jfrSampler == null ? null : new CarrierThreads();
+		this.unattributedUsage = jfrSampler == null
+				? null
+				: new UnattributedUsage(jfrCarryWindows(properties.getSampleTimeMilliseconds()));
+		if (jfrSampler != null && properties.getAdaptiveSampling()) {
+			log.warning("Adaptive sampling is not supported with JFR sampling, sampling at a fixed rate");
+		}
+		this.sampleRateController = createSampleRateController(properties);
+		this.sampleRing = jfrSampler == null ? new SampleRing(properties.getSampleBufferSize()) : null;
+		this.methodMetrics = new MethodMetrics(labels, allocationTracker != null);
+		registry.register(methodMetrics);
+		this.reporter = methodMetrics;
+		if (processCpuTime == null) {
+			log.info("Process CPU time is not available on this Java Virtual Machine, not counting the unattributed CPU time");
+		}
+		if (allocationTracker == null) {
+			log.info("Thread allocation measurement is not supported on this Java Virtual Machine, not exporting method_allocated_bytes");
+		}
+		this.agentMetrics = new AgentMetrics(registry, threadBean, labels);
 	}
 
 	private static ThreadMXBean createThreadBean() {
 		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
-		// Check if CPU Time measurement is supported by the JVM. Quit otherwise
+		// Check if CPU Time measurement is supported by the JVM. The agent cannot work otherwise
 		if (!threadBean.isThreadCpuTimeSupported()) {
-			log.severe("Thread CPU Time is not supported on this Java Virtual Machine. Existing...");
-			System.exit(1);
+			throw new UnsupportedOperationException("Thread CPU Time is not supported on this Java Virtual Machine");
 		}
 
 		// Enable CPU Time measurement if it is disabled
@@ -57,116 +144,599 @@ public class MonitoringService implements Runnable {
 		return threadBean;
 	}
 
+	/**
+	 * Starts a new recording if a recording file is configured, keeping the one of the
+	 * previous start. Samples without recording if the file cannot be opened.
+	 */
+	private void openWindowRecorder() {
+		Optional<Path> path = properties.getRecordingFile();
+		if (path.isEmpty()) {
+			return;
+		}
+		try {
+			windowRecorder = new WindowRecorder(path.get(), properties.getRecordingSizeMegabytes() * 1024L * 1024L, labels);
+			reporter = LabelLimiter.Reporter.both(methodMetrics, windowRecorder);
+		}
+		catch (IOException exception) {
+			log.warning("Could not open the recording file, not recording: " + exception.getMessage());
+		}
+	}
+
+	private void closeWindowRecorder() {
+		if (windowRecorder == null) {
+			return;
+		}
+		try {
+			windowRecorder.close();
+		}
+		catch (IOException exception) {
+			log.warning("Could not close the recording file: " + exception.getMessage());
+		}
+		windowRecorder = null;
+		reporter = methodMetrics;
+	}
+
+	/**
+	 * @return the number of windows to carry usage over for, so the samples of the window
+	 * arrive in time even if JFR delivers them one flush late
+	 */
+	static int jfrCarryWindows(long sampleTimeMilliseconds) {
+		return (int) Math.max((JFR_CARRY_MILLISECONDS + sampleTimeMilliseconds - 1) / sampleTimeMilliseconds, 1);
+	}
+
+	private SampleRateController createSampleRateController(AgentProperties properties) {
+		return new SampleRateController(properties.getSampleRateMilliseconds(),
+				properties.getMaxSampleRateMilliseconds(), properties.getCpuOverheadBudget(),
+				properties.getAdaptiveSampling() && jfrSampler == null);
+	}
+
+	/**
+	 * @return the started JFR sampler, or null to fall back to safepoint sampling
+	 */
+	private static JfrSampler startJfrSampler(FrameResolver frameResolver, FlameGraph flameGraph,
+			long sampleRateMilliseconds) {
+		if (!JfrSampler.isSupported()) {
+			log.warning("JFR streaming is not supported on this Java Virtual Machine, falling back to safepoint sampling");
+			return null;
+		}
+		JfrSampler sampler = new JfrSampler(frameResolver, flameGraph, sampleRateMilliseconds);
+		try {
+			sampler.start();
+			return sampler;
+		}
+		catch (ReflectiveOperationException | RuntimeException exception) {
+			log.warning("Could not start JFR sampling, falling back to safepoint sampling: " + exception);
+			return null;
+		}
+	}
+
+	/**
+	 * @return the handler serving the flame graph, if it is enabled
+	 */
+	public Optional<HttpHandler> getFlameGraphHandler() {
+		return Optional.ofNullable(flameGraph).map(FlameGraphHandler::new);
+	}
+
+	/**
+	 * Applies a changed config from the next window on. Only the packages to monitor,
+	 * the grouping packages, hiding the agent consumption and the sample rate settings
+	 * are reloaded; the other properties keep the value they had at startup.
+	 * <p>
+	 * Can be called from any thread. The monitoring thread swaps the settings in between
+	 * two windows, so a window is never attributed with a mix of old and new settings.
+	 */
+	public void reload(AgentProperties reloaded) {
+		reloadedProperties.set(reloaded);
+	}
+
+	/**
+	 * Swaps in the settings of a reloaded config, if there is one. Labels keep their id,
+	 * as the new frame resolver interns them in the same label table, so the totals of
+	 * methods that are still monitored continue where they were.
+	 */
+	void applyReloadedProperties() {
+		AgentProperties reloaded = reloadedProperties.getAndSet(null);
+		if (reloaded == null) {
+			return;
+		}
+		this.frameResolver = new FrameResolver(reloaded.getPackageNamesToMonitor(),
+				reloaded.getGroupingPackageNames(), labels, properties.getFrameCacheSize());
+		if (jfrSampler != null) {
+			jfrSampler.setFrameResolver(frameResolver);
+			setJfrSampleRate(reloaded.getSampleRateMilliseconds());
+		}
+		threadSampler.setHideAgentConsumption(reloaded.getHideAgentConsumption());
+		this.sampleRateController = createSampleRateController(reloaded);
+		this.sampleRateMilliseconds = reloaded.getSampleRateMilliseconds();
+		log.info("Applied the reloaded config");
+	}
+
+	/**
+	 * Swaps in the sample rate set through {@link #setSampleRateMilliseconds(long)}, if there is one.
+	 */
+	private void applyRequestedSampleRate() {
+		long requested = requestedSampleRateMilliseconds.getAndSet(0);
+		if (requested == 0) {
+			return;
+		}
+		sampleRateController.setSampleRateMilliseconds(requested);
+		if (jfrSampler != null) {
+			setJfrSampleRate(requested);
+		}
+		log.info(() -> "Sampling every " + requested + " ms");
+	}
+
+	private void setJfrSampleRate(long sampleRateMilliseconds) {
+		try {
+			jfrSampler.setSampleRateMilliseconds(sampleRateMilliseconds);
+		}
+		catch (ReflectiveOperationException | RuntimeException exception) {
+			log.severe("Could not restart JFR sampling: " + exception);
+		}
+	}
+
+	/**
+	 * Starts sampling on the monitoring thread, or resumes it if it is paused.
+	 */
+	public synchronized void start() {
+		state = State.RUNNING;
+		startMonitoringThreadIfNeeded();
+		LockSupport.unpark(monitoringThread);
+		log.info("Starting monitoring thread");
+	}
+
+	/**
+	 * Pauses sampling after the current window. While paused, the monitoring thread is
+	 * parked and JFR is not sampling, so the agent uses no CPU time until it is started
+	 * again. Pausing a stopped service starts its monitoring thread in the paused state.
+	 */
+	public synchronized void pause() {
+		state = State.PAUSED;
+		startMonitoringThreadIfNeeded();
+		log.info("Pausing monitoring thread");
+	}
+
+	/**
+	 * Stops sampling, waits for the monitoring thread to end and closes the recording.
+	 * It can be started again, which starts a new recording.
+	 */
+	public synchronized void stop() {
+		state = State.STOPPED;
+		if (monitoringThread == null) {
+			return;
+		}
+		log.info("Stopping monitoring thread");
+		monitoringThread.interrupt();
+		try {
+			monitoringThread.join();
+		}
+		catch (InterruptedException exception) {
+			Thread.currentThread().interrupt();
+		}
+		monitoringThread = null;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the configured, and with adaptive sampling shortest, interval between samples
+	 */
+	public long getSampleRateMilliseconds() {
+		return sampleRateMilliseconds;
+	}
+
+	/**
+	 * Changes the interval between samples, from the next window on.
+	 * @throws IllegalArgumentException if the interval is shorter than 1 ms or longer than a window
+	 */
+	public void setSampleRateMilliseconds(long sampleRateMilliseconds) {
+		if (sampleRateMilliseconds < 1 || sampleRateMilliseconds > sampleTimeMilliseconds) {
+			throw new IllegalArgumentException("The sample rate must be between 1 and " + sampleTimeMilliseconds + " ms");
+		}
+		this.sampleRateMilliseconds = sampleRateMilliseconds;
+		requestedSampleRateMilliseconds.set(sampleRateMilliseconds);
+	}
+
+	synchronized Thread getMonitoringThread() {
+		return monitoringThread;
+	}
+
+	private void startMonitoringThreadIfNeeded() {
+		if (monitoringThread == null) {
+			monitoringThread = new Thread(this, COMPUTATION_THREAD_NAME);
+			monitoringThread.setDaemon(true);
+			monitoringThread.start();
+		}
+	}
+
 	@Override
 	public void run() {
 		log.info("Started monitoring application");
-
-		while (!Thread.currentThread().isInterrupted()) { // While loop will stop when the jvm and/or thread is destroyed. Until then, we need this loop to be active
-			try {
-				var samples = sample();
-				var methodsStatsFiltered = extractStats(samples, properties::isInPackageToMonitor);
-				calculateAndStoreMethodTimeInSeconds(methodsStatsFiltered);
-				Thread.sleep(sampleRateMilliseconds);
+		openWindowRecorder();
+		try {
+			while (awaitRunning()) {
+				sampleWindows();
 			}
-			catch (InterruptedException exception) {
+		}
+		catch (InterruptedException exception) {
+			if (state != State.STOPPED) {
 				log.severe("Stopping monitoring application due to interruption" + exception.getMessage());
-				Thread.currentThread().interrupt();
-				break;
 			}
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if (jfrSampler != null) {
+				jfrSampler.close();
+			}
+			if (procThreadCpuTime != null) {
+				procThreadCpuTime.close();
+			}
+			closeWindowRecorder();
+			log.info("Stopped monitoring application");
 		}
 	}
 
 	/**
-	 * Performs the sampling step. Collects a set of stack traces for each thread. The
-	 * sampling step is performed multiple time at the frequency of
-	 * SAMPLE_RATE_MILLSECONDS, for the duration of SAMPLE_TIME_MILLISECONDS
-	 * @return for each Thread, a List of it's the stack traces
+	 * Parks the monitoring thread while sampling is paused, with JFR sampling stopped.
+	 * @return whether to sample, false when sampling is stopped
 	 */
-    private Map<Thread, List<StackTraceElement[]>> sample() {
-		Map<Thread, List<StackTraceElement[]>> result = new HashMap<>();
+	private boolean awaitRunning() {
+		if (state == State.PAUSED) {
+			if (jfrSampler != null) {
+				jfrSampler.close();
+			}
+			log.info("Paused monitoring application");
+			while (state == State.PAUSED && !Thread.currentThread().isInterrupted()) {
+				LockSupport.park(this);
+			}
+		}
+		return state == State.RUNNING && !Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * Samples window after window, until sampling is paused or stopped.
+	 */
+	private void sampleWindows() throws InterruptedException {
+		if (jfrSampler != null) {
+			try {
+				jfrSampler.start();
+			}
+			catch (ReflectiveOperationException | RuntimeException exception) {
+				log.severe("Could not restart JFR sampling: " + exception);
+			}
+		}
+
+		// Record the CPU time used so far as baseline, so the first window only gets what it used
+		threadSampler.refreshThreadIds();
+		cpuTracker.update(threadSampler.getThreadIds());
+		if (allocationTracker != null) {
+			allocationTracker.update(threadSampler.getThreadIds());
+		}
+		// The process CPU time keeps its first baseline, so CPU time used while paused counts as unattributed
+		if (processCpuTime != null && previousProcessCpuNanos == ProcessCpuTime.UNAVAILABLE) {
+			previousProcessCpuNanos = processCpuTime.read();
+		}
+
+		if (sampleRing != null) {
+			startSafepointSampler();
+		}
 		try {
-			for (long duration = 0; duration < SAMPLE_TIME_MILLISECONDS; duration += sampleRateMilliseconds) {
-				for (var entry : Thread.getAllStackTraces().entrySet()) {
-					String threadName = entry.getKey().getName();
-					// Ignoring agent related threads, if option is enabled
-					if (this.properties.getHideAgentConsumption() && (threadName.equals(COMPUTATION_THREAD_NAME))) {
-						continue; // Ignoring the thread
-					}
-
-					// Only check runnable threads (not waiting or blocked)
-					if (entry.getKey().getState() == Thread.State.RUNNABLE) {
-						var target = result.computeIfAbsent(entry.getKey(), t -> new ArrayList<>(sampleIterations));
-
-						target.add(entry.getValue());
-					}
+			long sampleTimeNanos = TimeUnit.MILLISECONDS.toNanos(sampleTimeMilliseconds);
+			long windowEnd = System.nanoTime() + sampleTimeNanos;
+			while (state == State.RUNNING && !Thread.currentThread().isInterrupted()) {
+				applyReloadedProperties();
+				applyRequestedSampleRate();
+				if (safepointSampler != null) {
+					safepointSampler.setSampleRateNanos(sampleRateController.getSampleRateNanos());
+				}
+				long windowStart = System.nanoTime();
+				long windowCpuTimeStart = agentCpuTime();
+				WindowStats stats = sampleWindow(windowEnd);
+				long aggregationStart = System.nanoTime();
+				calculateAndStoreMethodTimeInSeconds(stats, windowThreadIds);
+				agentMetrics.observeAggregationDuration(System.nanoTime() - aggregationStart);
+				stats.clear();
+				if (flameGraph != null) {
+					flameGraph.rotate(System.currentTimeMillis());
 				}
 
-				Thread.sleep(sampleRateMilliseconds);
+				// Adapt the sample rate to the CPU time used by the agent threads for the window
+				sampleRateController.update(agentCpuTime() - windowCpuTimeStart, System.nanoTime() - windowStart);
+				agentMetrics.sampleRate(sampleRateController.getSampleRateNanos());
+
+				// The next window starts where this one ended, unless the aggregation took longer than a window
+				windowEnd = Math.max(windowEnd + sampleTimeNanos, System.nanoTime());
 			}
 		}
-		catch (InterruptedException exception) {
-			Thread.currentThread().interrupt();
+		finally {
+			if (safepointSampler != null) {
+				stopSafepointSampler();
+			}
 		}
+	}
 
-		return result;
+	private void startSafepointSampler() {
+		windowThreadIds = threadSampler.getThreadIds();
+		sampleRing.clear();
+		safepointSampler = new SafepointSampler(threadSampler, sampleRing, agentMetrics, Thread.currentThread(),
+				sampleRateController.getSampleRateNanos());
+		safepointSampler.start();
+	}
+
+	private void stopSafepointSampler() throws InterruptedException {
+		try {
+			safepointSampler.stop();
+		}
+		finally {
+			safepointSampler = null;
+		}
 	}
 
 	/**
-	 * Return the occurrences of each method call during monitoring loop, per thread.
-	 * @param samples the result of the sampling step. A List of StackTraces of each
-	 * Thread
-	 * @param covers a Predicate, used to filter method names
-	 * @return for each Thread, a Map of each method and its occurences during the last
-	 * monitoring loop
+	 * @return the CPU time used so far by this thread and the sampler thread
 	 */
-    Map<Thread, Map<String, Integer>> extractStats(Map<Thread, List<StackTraceElement[]>> samples,
-                                                   Predicate<String> covers) {
-		Map<Thread, Map<String, Integer>> stats = new HashMap<>();
+	private long agentCpuTime() {
+		long cpuTime = threadBean.getCurrentThreadCpuTime();
+		long samplerThreadId = safepointSampler == null ? -1 : safepointSampler.getThreadId();
+		if (samplerThreadId != -1) {
+			cpuTime += Math.max(threadBean.getThreadCpuTime(samplerThreadId), 0);
+		}
+		return cpuTime;
+	}
 
-		for (var entry : samples.entrySet()) {
-			Map<String, Integer> target = new HashMap<>();
-			stats.put(entry.getKey(), target);
+	/**
+	 * Collects the samples of one window, either from the sampler thread or by waiting
+	 * for the samples JFR delivers during the window.
+	 * @param windowEnd the System.nanoTime at which the window ends
+	 * @return the samples of the window
+	 */
+	private WindowStats sampleWindow(long windowEnd) throws InterruptedException {
+		if (jfrSampler == null) {
+			return consumeWindow(windowEnd);
+		}
+		long remainingNanos = windowEnd - System.nanoTime();
+		if (remainingNanos > 0) {
+			TimeUnit.NANOSECONDS.sleep(remainingNanos);
+		}
+		// The CPU time is still read for the threads known to the ThreadMXBean
+		threadSampler.refreshThreadIds();
+		windowThreadIds = threadSampler.getThreadIds();
+		carrierThreads.refresh();
+		return jfrSampler.swap();
+	}
 
-			for (StackTraceElement[] stackTrace : entry.getValue()) {
-				for (StackTraceElement stackTraceElement : stackTrace) {
-					Optional<String> groupingPackageName = properties.getGroupingPackageNames().stream()
-							.filter(packageNameToGroup -> stackTraceElement.getClassName().contains(packageNameToGroup))
-							.findFirst();
-					String methodName = groupingPackageName.orElse(stackTraceElement.getClassName() + "." + stackTraceElement.getMethodName());
-					if (covers.test(methodName)) {
-						target.merge(methodName, 1, Integer::sum);
-						break;
-					}
+	/**
+	 * Folds the batches published by the sampler thread into the window stats, as they
+	 * arrive, until the first batch sampled after the end of the window. That batch is
+	 * left in the ring for the next window, so consecutive windows are contiguous.
+	 * @param windowEnd the System.nanoTime at which the window ends
+	 * @return the samples of the window
+	 */
+	WindowStats consumeWindow(long windowEnd) throws InterruptedException {
+		while (true) {
+			SampleBatch batch = sampleRing.peek();
+			if (batch == null) {
+				long remainingNanos = windowEnd - System.nanoTime();
+				if (remainingNanos <= 0) {
+					return windowStats;
+				}
+				// Woken up by the sampler thread when it publishes a batch
+				LockSupport.parkNanos(this, remainingNanos);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
 				}
+				continue;
+			}
+			if (batch.getTimestampNanos() - windowEnd >= 0) {
+				return windowStats;
+			}
+			for (int i = 0; i < batch.size(); i++) {
+				extractStats(batch.getThreadId(i), batch.getStackTrace(i), windowStats);
 			}
+			windowThreadIds = batch.getKnownThreadIds();
+			batch.clear();
+			sampleRing.release();
 		}
+	}
 
-		return stats;
+	/**
+	 * @return the ring the sampler thread publishes its samples to, or null when sampling through JFR
+	 */
+	SampleRing getSampleRing() {
+		return sampleRing;
 	}
 
-	<K> void calculateAndStoreMethodTimeInSeconds(Map<Thread, Map<K, Integer>> stats) {
+	/**
+	 * Counts the occurrences of each method in a single sample, per thread. For each
+	 * stack trace, the first frame that resolves to a monitored label is counted.
+	 * @param snapshot the threads sampled in one sampling step, with their stack traces
+	 * @param target the stats of the current window, to add the sample to
+	 */
+	void extractStats(ThreadInfo[] snapshot, WindowStats target) {
+		for (ThreadInfo threadInfo : snapshot) {
+			if (threadInfo != null) {
+				extractStats(threadInfo.getThreadId(), threadInfo.getStackTrace(), target);
+			}
+		}
+	}
+
+	/**
+	 * Counts the method found in a single stack trace of a thread, and adds the whole
+	 * stack trace to the flame graph if it is enabled.
+	 */
+	void extractStats(long threadId, StackTraceElement[] stackTrace, WindowStats target) {
+		target.record(threadId, resolveLabel(stackTrace));
+		if (flameGraph != null) {
+			flameGraph.record(stackTrace);
+		}
+	}
+
+	private int resolveLabel(StackTraceElement[] stackTrace) {
+		for (StackTraceElement stackTraceElement : stackTrace) {
+			int labelId = frameResolver.resolve(stackTraceElement);
+			if (labelId != FrameResolver.NOT_MONITORED) {
+				return labelId;
+			}
+		}
+		return FrameResolver.NOT_MONITORED;
+	}
+
+	/**
+	 * Attributes the CPU time that each thread used during the window to the labels it
+	 * was sampled in, in proportion to the number of samples taken of that thread. The
+	 * bytes each thread allocated are attributed the same way, if the JVM measures them.
+	 * Samples of a thread that did not resolve to a monitored label leave their share of
+	 * the CPU time unattributed. The usage per label is reported through the
+	 * LabelLimiter, which bounds the number of labels of the counters, and published to
+	 * scrapes at once when the whole window has been attributed. If a recording file is
+	 * configured, the reported CPU time per label is recorded there as well. With thread
+	 * pool grouping, each label is reported per thread pool of the thread. The CPU time
+	 * of the whole process in the window is balanced against the attributed CPU time, to
+	 * count the CPU time that could not be attributed.
+	 * @param stats the samples of the window
+	 * @param threadIds the threads to read the CPU time of, including all sampled threads
+	 */
+	void calculateAndStoreMethodTimeInSeconds(WindowStats stats, long[] threadIds) {
+		calculateAndStoreMethodTimeInSeconds(stats, threadIds,
+				carrierThreads == null ? CarrierThreads.NONE : carrierThreads.getThreadIds());
+	}
+
+	/**
+	 * Attributes the usage of the window like {@link #calculateAndStoreMethodTimeInSeconds(WindowStats, long[])},
+	 * except for the carrier threads of virtual threads. Their usage is added up and
+	 * spread over the samples of the carriers and of the virtual threads together.
+	 * @param carrierThreadIds the sorted ids of the carrier threads
+	 */
+	void calculateAndStoreMethodTimeInSeconds(WindowStats stats, long[] threadIds, long[] carrierThreadIds) {
 		log.fine("Saving results with time spent in methods (in seconds)");
 
-		for (var statEntry : stats.entrySet()) {
-			long threadId = statEntry.getKey().getId();
-			long threadCpuTime = threadBean.getThreadCpuTime(threadId);
-			if (threadCpuTime == -1) {
-				log.warning(() -> "Thread CPU time is unavailable for thread ID: " + threadId);
+		long[] cpuTimeDeltas = cpuTracker.update(threadIds);
+		// A single batched read of the allocated bytes of all threads
+		long[] allocatedBytesDeltas = allocationTracker == null ? null : allocationTracker.update(threadIds);
+		long processCpuNanos = processCpuTime == null ? ProcessCpuTime.UNAVAILABLE : processCpuTime.read();
+		double attributedSeconds = 0;
+
+		ThreadStats virtualThreadStats = stats.get(CarrierThreads.POOL_THREAD_ID);
+		long poolCpuTime = 0;
+		long poolAllocatedBytes = 0;
+		int poolSamples = virtualThreadStats == null ? 0 : virtualThreadStats.getSamples();
+		for (int i = 0; i < threadIds.length; i++) {
+			long threadId = threadIds[i];
+			long cpuTimeDelta = cpuTimeDeltas[i];
+			long allocatedBytesDelta = allocatedBytesDeltas == null ? 0 : Math.max(allocatedBytesDeltas[i], 0);
+			boolean carrier = CarrierThreads.isCarrier(carrierThreadIds, threadId);
+			if (carrier && cpuTimeDelta != ThreadUsageTracker.UNAVAILABLE) {
+				poolCpuTime += cpuTimeDelta;
+				poolAllocatedBytes += allocatedBytesDelta;
+			}
+			ThreadStats threadStats = stats.get(threadId);
+			if (threadStats == null) {
+				if (unattributedUsage != null && !carrier && cpuTimeDelta != ThreadUsageTracker.UNAVAILABLE) {
+					unattributedUsage.carry(threadId, cpuTimeDelta, allocatedBytesDelta);
+				}
+				continue;
+			}
+			if (carrier) {
+				poolSamples += threadStats.getSamples();
+				continue;
+			}
+			if (cpuTimeDelta == ThreadUsageTracker.UNAVAILABLE) {
+				log.fine(() -> "Thread CPU time is unavailable for thread ID: " + threadId);
 				continue;
 			}
-			double threadCpuTimeInSeconds = threadCpuTime / 1_000_000_000.0; // Convert nanoseconds to seconds
+			UnattributedUsage.Usage carried = unattributedUsage == null ? null : unattributedUsage.take(threadId);
+			if (carried != null) {
+				cpuTimeDelta += carried.getCpuTime();
+				allocatedBytesDelta += carried.getAllocatedBytes();
+			}
+			attributedSeconds += attribute(threadStats, cpuTimeDelta, allocatedBytesDelta, threadStats.getSamples(),
+					threadPool(threadId));
+		}
 
-			for (var entry : statEntry.getValue().entrySet()) {
-				K methodName = entry.getKey();
-				int methodOccurrences = entry.getValue();
-				double timeSpentInSeconds = threadCpuTimeInSeconds * (methodOccurrences / 100.0);
+		if (unattributedUsage != null) {
+			// The carriers are a single pool, carried under the id of the virtual threads
+			if (poolSamples == 0) {
+				unattributedUsage.carry(CarrierThreads.POOL_THREAD_ID, poolCpuTime, poolAllocatedBytes);
+			}
+			else {
+				UnattributedUsage.Usage carried = unattributedUsage.take(CarrierThreads.POOL_THREAD_ID);
+				if (carried != null) {
+					poolCpuTime += carried.getCpuTime();
+					poolAllocatedBytes += carried.getAllocatedBytes();
+				}
+			}
+			unattributedUsage.endWindow();
+		}
+		if (poolSamples > 0) {
+			for (long carrierThreadId : carrierThreadIds) {
+				ThreadStats carrierStats = stats.get(carrierThreadId);
+				if (carrierStats != null) {
+					attributedSeconds += attribute(carrierStats, poolCpuTime, poolAllocatedBytes, poolSamples,
+							threadPool(carrierThreadId));
+				}
+			}
+			if (virtualThreadStats != null) {
+				attributedSeconds += attribute(virtualThreadStats, poolCpuTime, poolAllocatedBytes, poolSamples,
+						threadPool(CarrierThreads.POOL_THREAD_ID));
+			}
+		}
+		if (threadPools != null) {
+			threadPools.endWindow();
+		}
+		if (windowRecorder != null) {
+			windowRecorder.beginWindow(System.currentTimeMillis());
+		}
+		labelLimiter.endWindow(reporter);
+		if (windowRecorder != null) {
+			windowRecorder.endWindow();
+		}
+		methodMetrics.publish();
 
-				GaugeDataPoint gaugeDataPoint = gauge.labelValues(methodName.toString());
-				gaugeDataPoint.inc(timeSpentInSeconds);
+		// The first reading only records a baseline, like the thread CPU time
+		if (processCpuNanos != ProcessCpuTime.UNAVAILABLE) {
+			if (previousProcessCpuNanos != ProcessCpuTime.UNAVAILABLE) {
+				agentMetrics.windowCpu(Math.max(processCpuNanos - previousProcessCpuNanos, 0), attributedSeconds);
+			}
+			previousProcessCpuNanos = processCpuNanos;
+		}
+	}
+
+	/**
+	 * @return the index of the thread pool of the thread, or -1 if the CPU time is not reported per thread pool
+	 */
+	private int threadPool(long threadId) {
+		return threadPools == null ? -1 : threadPools.indexOf(threadId);
+	}
+
+	/**
+	 * Attributes CPU time and allocated bytes to the labels of the samples in stats.
+	 * @param samples the number of samples the usage is spread over
+	 * @param threadPool the index of the thread pool to report the labels for, or -1
+	 * @return the CPU time attributed to labels, in seconds
+	 */
+	private double attribute(ThreadStats threadStats, long cpuTime, long allocatedBytes, int samples,
+			int threadPool) {
+		// Convert nanoseconds to seconds, spread over all samples
+		double secondsPerSample = cpuTime / 1_000_000_000.0 / samples;
+		double allocatedBytesPerSample = (double) allocatedBytes / samples;
 
-				log.fine(() -> String.format("Method: %s, Time Spent: %.2f seconds", methodName, timeSpentInSeconds));
-				log.fine(() -> "Current total value for method: " + methodName + " is: " + gaugeDataPoint.get());
+		int attributedSamples = 0;
+		IntIntMap labelCounts = threadStats.getLabelCounts();
+		for (int labelSlot = 0; labelSlot < labelCounts.capacity(); labelSlot++) {
+			int labelId = labelCounts.keyAt(labelSlot);
+			if (labelId == IntIntMap.EMPTY) {
+				continue;
+			}
+			int methodOccurrences = labelCounts.valueAt(labelSlot);
+			if (threadPool != -1) {
+				labelId = threadPools.label(labelId, threadPool);
 			}
+			labelLimiter.add(labelId, secondsPerSample * methodOccurrences,
+					allocatedBytesPerSample * methodOccurrences);
+			attributedSamples += methodOccurrences;
 		}
+		return secondsPerSample * attributedSamples;
 	}
 }
@@ -0,0 +1,143 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled prefix trie over a prioritized list of package names.
+ * <p>
+ * Matching walks the characters of a name without creating any intermediate strings,
+ * and returns the index of the highest priority (lowest index) prefix that matched.
+ */
+final class PackageTrie {
+	static final int NO_MATCH = -1;
+
+	private static final char[] NO_CHARS = new char[0];
+	private static final int[] NO_NODES = new int[0];
+
+	// Per node: the characters of its outgoing edges, the node each edge leads to, and
+	// the index of the prefix that ends in the node (or NO_MATCH)
+	private char[][] edgeChars = new char[1][];
+	private int[][] edgeTargets = new int[1][];
+	private int[] prefixIndexes = new int[1];
+	private int nodeCount = 1;
+
+	private PackageTrie() {
+		edgeChars[0] = NO_CHARS;
+		edgeTargets[0] = NO_NODES;
+		prefixIndexes[0] = NO_MATCH;
+	}
+
+	/**
+	 * @param prefixes the prefixes to match, ordered by priority
+	 * @return a trie matching any of the prefixes
+	 */
+	static PackageTrie compile(List<String> prefixes) {
+		PackageTrie trie = new PackageTrie();
+		for (int i = 0; i < prefixes.size(); i++) {
+			trie.add(prefixes.get(i), i);
+		}
+		return trie;
+	}
+
+	/**
+	 * @return the index of the prefix that name starts with, or NO_MATCH
+	 */
+	int match(String name) {
+		int best = NO_MATCH;
+		int node = 0;
+		for (int i = 0; i < name.length() && node != NO_MATCH; i++) {
+			node = child(node, name.charAt(i));
+			best = better(best, node);
+		}
+		return best;
+	}
+
+	/**
+	 * Matches the name {@code className + "." + methodName}, without concatenating it.
+	 * @return the index of the prefix that the full method name starts with, or NO_MATCH
+	 */
+	int match(String className, String methodName) {
+		int best = NO_MATCH;
+		int node = 0;
+		for (int i = 0; i < className.length() && node != NO_MATCH; i++) {
+			node = child(node, className.charAt(i));
+			best = better(best, node);
+		}
+		if (node == NO_MATCH) {
+			return best;
+		}
+		node = child(node, '.');
+		best = better(best, node);
+		for (int i = 0; i < methodName.length() && node != NO_MATCH; i++) {
+			node = child(node, methodName.charAt(i));
+			best = better(best, node);
+		}
+		return best;
+	}
+
+	private int better(int best, int node) {
+		if (node == NO_MATCH) {
+			return best;
+		}
+		int index = prefixIndexes[node];
+		if (index == NO_MATCH || (best != NO_MATCH && best < index)) {
+			return best;
+		}
+		return index;
+	}
+
+	private int child(int node, char c) {
+		char[] chars = edgeChars[node];
+		for (int i = 0; i < chars.length; i++) {
+			if (chars[i] == c) {
+				return edgeTargets[node][i];
+			}
+		}
+		return NO_MATCH;
+	}
+
+	private void add(String prefix, int index) {
+		int node = 0;
+		for (int i = 0; i < prefix.length(); i++) {
+			char c = prefix.charAt(i);
+			int next = child(node, c);
+			if (next == NO_MATCH) {
+				next = newNode();
+				edgeChars[node] = appendChar(edgeChars[node], c);
+				edgeTargets[node] = appendNode(edgeTargets[node], next);
+			}
+			node = next;
+		}
+		// Keep the first, highest priority, index for duplicate prefixes
+		if (prefixIndexes[node] == NO_MATCH) {
+			prefixIndexes[node] = index;
+		}
+	}
+
+	private int newNode() {
+		if (nodeCount == prefixIndexes.length) {
+			int capacity = nodeCount * 2;
+			edgeChars = Arrays.copyOf(edgeChars, capacity);
+			edgeTargets = Arrays.copyOf(edgeTargets, capacity);
+			prefixIndexes = Arrays.copyOf(prefixIndexes, capacity);
+		}
+		int node = nodeCount++;
+		edgeChars[node] = NO_CHARS;
+		edgeTargets[node] = NO_NODES;
+		prefixIndexes[node] = NO_MATCH;
+		return node;
+	}
+
+	private static char[] appendChar(char[] chars, char c) {
+		char[] result = Arrays.copyOf(chars, chars.length + 1);
+		result[chars.length] = c;
+		return result;
+	}
+
+	private static int[] appendNode(int[] nodes, int node) {
+		int[] result = Arrays.copyOf(nodes, nodes.length + 1);
+		result[nodes.length] = node;
+		return result;
+	}
+}
@@ -0,0 +1,326 @@
+package nl.first8.cputimeexporter.service;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Reads the CPU time of threads on Linux from /proc/self/task/&lt;tid&gt;/schedstat, of
+ * which the first field is the time the thread ran on a CPU, in nanoseconds.
+ * <p>
+ * The native thread id (tid) of a Java thread is not exposed by the ThreadMXBean, so
+ * threads are mapped by name: HotSpot names the native thread after the Java thread,
+ * truncated to the 15 bytes the kernel keeps in /proc/self/task/&lt;tid&gt;/comm. Only names
+ * that are unique among both the Java threads and the tasks are mapped, and only if
+ * the CPU time of the task matches that of the Java thread. The schedstat file of a
+ * mapped thread is kept open and reread into a reusable direct buffer, and parsed
+ * without allocating. Threads that cannot be mapped, such as threads with the same
+ * truncated name or threads that were renamed by another thread, are read with the
+ * batched call of the fallback reader instead.
+ * <p>
+ * New threads are mapped at most once per {@link #MAPPING_INTERVAL_NANOSECONDS}, as that
+ * reads the comm file of every task. This class is not thread safe.
+ */
+final class ProcThreadCpuTime implements ThreadUsageTracker.Reader, AutoCloseable {
+	private static final Logger log = Logger.getLogger(ProcThreadCpuTime.class.getName());
+
+	static final long MAPPING_INTERVAL_NANOSECONDS = 10_000_000_000L;
+	// Bytes of a thread name the kernel keeps, without the terminating null byte
+	static final int COMM_LENGTH = 15;
+	// The kernel only adds the running time of a thread to schedstat at a scheduler tick, which is 10 ms at the lowest HZ
+	static final long MAPPING_TOLERANCE_NANOSECONDS = 20_000_000L;
+	// Keeps the number of open schedstat files well below the usual limit on open files
+	static final int MAX_OPEN_FILES = 4096;
+
+	private static final Path PROC_SELF_TASK = Paths.get("/proc/self/task");
+	private static final int UNMAPPED = -1;
+
+	private final Path taskDirectory;
+	private final ThreadMXBean threadBean;
+	private final ThreadUsageTracker.Reader fallback;
+	private final LongObjectMap<Task> tasks = new LongObjectMap<>();
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+
+	private long[] values = new long[0];
+	private long[] fallbackIds = new long[0];
+	private int[] fallbackIndexes = new int[0];
+	private long generation;
+	private long lastMappingNanos;
+	private boolean mapped;
+	private int openFiles;
+
+	ProcThreadCpuTime(Path taskDirectory, ThreadMXBean threadBean, ThreadUsageTracker.Reader fallback) {
+		this.taskDirectory = taskDirectory;
+		this.threadBean = threadBean;
+		this.fallback = fallback;
+	}
+
+	/**
+	 * @return a reader of /proc/self/task that falls back to the given reader, or null
+	 * if the schedstat files cannot be read, such as on other operating systems
+	 */
+	static ProcThreadCpuTime create(ThreadMXBean threadBean, ThreadUsageTracker.Reader fallback) {
+		if (!Files.isReadable(PROC_SELF_TASK)) {
+			return null;
+		}
+		try (DirectoryStream<Path> taskDirectories = Files.newDirectoryStream(PROC_SELF_TASK)) {
+			for (Path taskDirectory : taskDirectories) {
+				if (!Files.isReadable(taskDirectory.resolve("schedstat"))) {
+					return null;
+				}
+				break;
+			}
+		}
+		catch (IOException exception) {
+			log.fine(() -> "Cannot read " + PROC_SELF_TASK + ": " + exception.getMessage());
+			return null;
+		}
+		return new ProcThreadCpuTime(PROC_SELF_TASK, threadBean, fallback);
+	}
+
+	@Override
+	public long[] read(long[] threadIds) {
+		if (values.length < threadIds.length) {
+			values = new long[threadIds.length];
+			fallbackIds = new long[threadIds.length];
+			fallbackIndexes = new int[threadIds.length];
+		}
+		generation++;
+		mapNewThreads(threadIds);
+
+		int fallbackCount = 0;
+		for (int i = 0; i < threadIds.length; i++) {
+			Task task = tasks.get(threadIds[i]);
+			if (task == null || task.channel == null) {
+				fallbackIds[fallbackCount] = threadIds[i];
+				fallbackIndexes[fallbackCount++] = i;
+				if (task != null) {
+					task.generation = generation;
+				}
+				continue;
+			}
+			task.generation = generation;
+			values[i] = readRunTime(task.channel);
+			if (values[i] == ThreadUsageTracker.UNAVAILABLE) {
+				// The thread ended, and the file of a task that ended cannot be read anymore
+				closeTask(task);
+				tasks.remove(threadIds[i]);
+			}
+		}
+
+		if (fallbackCount > 0) {
+			long[] fallbackValues = fallback.read(Arrays.copyOf(fallbackIds, fallbackCount));
+			for (int i = 0; i < fallbackCount; i++) {
+				values[fallbackIndexes[i]] = fallbackValues[i];
+			}
+		}
+
+		// Forget the threads that ended or were not part of this read
+		long current = generation;
+		tasks.removeIf(task -> {
+			if (task.generation == current) {
+				return false;
+			}
+			closeTask(task);
+			return true;
+		});
+		return values;
+	}
+
+	/**
+	 * Maps the threads that were not seen before to their task, if the mapping interval passed.
+	 */
+	private void mapNewThreads(long[] threadIds) {
+		long now = System.nanoTime();
+		if (mapped && now - lastMappingNanos < MAPPING_INTERVAL_NANOSECONDS) {
+			return;
+		}
+		int newCount = 0;
+		for (long threadId : threadIds) {
+			if (tasks.get(threadId) == null) {
+				fallbackIds[newCount++] = threadId;
+			}
+		}
+		if (newCount == 0) {
+			return;
+		}
+		mapped = true;
+		lastMappingNanos = now;
+
+		long[] newThreadIds = Arrays.copyOf(fallbackIds, newCount);
+		Map<String, Long> threadsByName = uniqueNames(threadBean.getThreadInfo(newThreadIds, 0));
+		Map<String, Integer> tasksByName = readTaskNames();
+		for (long threadId : newThreadIds) {
+			tasks.put(threadId, new Task(UNMAPPED));
+		}
+		for (Map.Entry<String, Long> thread : threadsByName.entrySet()) {
+			Integer tid = tasksByName.get(thread.getKey());
+			if (tid != null && tid != UNMAPPED && openFiles < MAX_OPEN_FILES) {
+				Task task = openTask(tid, thread.getValue());
+				if (task != null) {
+					tasks.put(thread.getValue(), task);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the threads by their name as the kernel keeps it, leaving out the names of
+	 * more than one thread
+	 */
+	private static Map<String, Long> uniqueNames(ThreadInfo[] threadInfos) {
+		Map<String, Long> threadsByName = new HashMap<>();
+		for (ThreadInfo threadInfo : threadInfos) {
+			if (threadInfo != null) {
+				threadsByName.merge(commName(threadInfo.getThreadName()), threadInfo.getThreadId(),
+						(first, second) -> (long) UNMAPPED);
+			}
+		}
+		threadsByName.values().removeIf(threadId -> threadId == UNMAPPED);
+		return threadsByName;
+	}
+
+	/**
+	 * @return the tasks of the process by their comm name, with UNMAPPED for the names of
+	 * more than one task
+	 */
+	private Map<String, Integer> readTaskNames() {
+		Map<String, Integer> tasksByName = new HashMap<>();
+		try (DirectoryStream<Path> taskDirectories = Files.newDirectoryStream(taskDirectory)) {
+			for (Path task : taskDirectories) {
+				try {
+					byte[] comm = Files.readAllBytes(task.resolve("comm"));
+					int length = comm.length > 0 && comm[comm.length - 1] == '\n' ? comm.length - 1 : comm.length;
+					tasksByName.merge(new String(comm, 0, length, StandardCharsets.ISO_8859_1),
+							Integer.parseInt(task.getFileName().toString()), (first, second) -> UNMAPPED);
+				}
+				catch (IOException | NumberFormatException exception) {
+					// The task ended while the directory was read
+				}
+			}
+		}
+		catch (IOException exception) {
+			log.fine(() -> "Cannot read " + taskDirectory + ": " + exception.getMessage());
+		}
+		return tasksByName;
+	}
+
+	/**
+	 * @return the name of a thread as the kernel keeps it, as ISO-8859-1 to compare it byte
+	 * by byte with a comm file, as the truncation may split a multibyte character
+	 */
+	static String commName(String threadName) {
+		byte[] name = threadName.getBytes(StandardCharsets.UTF_8);
+		return new String(name, 0, Math.min(name.length, COMM_LENGTH), StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the opened task, or null if its CPU time is not that of the Java thread
+	 */
+	private Task openTask(int tid, long threadId) {
+		Task task = null;
+		try {
+			task = new Task(tid);
+			task.channel = FileChannel.open(taskDirectory.resolve(Integer.toString(tid)).resolve("schedstat"),
+					StandardOpenOption.READ);
+			openFiles++;
+			long runTime = readRunTime(task.channel);
+			long cpuTime = threadBean.getThreadCpuTime(threadId);
+			if (runTime != ThreadUsageTracker.UNAVAILABLE && cpuTime >= 0
+					&& Math.abs(cpuTime - runTime) <= MAPPING_TOLERANCE_NANOSECONDS) {
+				return task;
+			}
+		}
+		catch (IOException exception) {
+			// The task ended since its comm file was read
+		}
+		closeTask(task);
+		return null;
+	}
+
+	private long readRunTime(FileChannel channel) {
+		try {
+			buffer.clear();
+			int length = 0;
+			int read;
+			// procfs generates the file on a read from the start
+			while ((read = channel.read(buffer, length)) > 0) {
+				length += read;
+			}
+			return parseRunTime(buffer, length);
+		}
+		catch (IOException exception) {
+			return ThreadUsageTracker.UNAVAILABLE;
+		}
+	}
+
+	/**
+	 * Parses the first field of a schedstat file.
+	 * @return the time the thread ran on a CPU in nanoseconds, or UNAVAILABLE if the contents are incomplete
+	 */
+	static long parseRunTime(ByteBuffer schedstat, int length) {
+		long runTime = 0;
+		int position = 0;
+		while (position < length) {
+			byte character = schedstat.get(position);
+			if (character < '0' || character > '9') {
+				break;
+			}
+			runTime = runTime * 10 + character - '0';
+			position++;
+		}
+		return position == 0 || position == length ? ThreadUsageTracker.UNAVAILABLE : runTime;
+	}
+
+	private void closeTask(Task task) {
+		if (task == null || task.channel == null) {
+			return;
+		}
+		try {
+			task.channel.close();
+		}
+		catch (IOException exception) {
+			log.fine(() -> "Cannot close the schedstat file of task " + task.tid + ": " + exception.getMessage());
+		}
+		task.channel = null;
+		openFiles--;
+	}
+
+	/**
+	 * @return the number of threads that are read from their schedstat file
+	 */
+	int mappedCount() {
+		return openFiles;
+	}
+
+	@Override
+	public void close() {
+		tasks.removeIf(task -> {
+			closeTask(task);
+			return true;
+		});
+		mapped = false;
+	}
+
+	private static final class Task {
+		private final int tid;
+		private FileChannel channel;
+		private long generation;
+
+		private Task(int tid) {
+			this.tid = tid;
+		}
+	}
+}
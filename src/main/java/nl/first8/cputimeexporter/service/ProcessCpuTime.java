@@ -0,0 +1,43 @@
+package nl.first8.cputimeexporter.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+
+/**
+ * Reads the CPU time used by the whole process, including the threads that are not
+ * sampled, such as the GC and JIT compiler threads, and threads that have ended.
+ * <p>
+ * It is read from the process CPU time of the OperatingSystemMXBean, which HotSpot
+ * measures in nanoseconds. On Linux that is the same counter as the user and system
+ * time in /proc/self/stat, without rounding it to clock ticks.
+ */
+final class ProcessCpuTime {
+	static final long UNAVAILABLE = -1;
+
+	private final com.sun.management.OperatingSystemMXBean operatingSystemBean;
+
+	private ProcessCpuTime(com.sun.management.OperatingSystemMXBean operatingSystemBean) {
+		this.operatingSystemBean = operatingSystemBean;
+	}
+
+	/**
+	 * @return a reader of the OperatingSystemMXBean, or null if the JVM does not offer the
+	 * process CPU time
+	 */
+	static ProcessCpuTime create() {
+		OperatingSystemMXBean operatingSystemBean = ManagementFactory.getOperatingSystemMXBean();
+		if (operatingSystemBean instanceof com.sun.management.OperatingSystemMXBean
+				&& ((com.sun.management.OperatingSystemMXBean) operatingSystemBean).getProcessCpuTime() >= 0) {
+			return new ProcessCpuTime((com.sun.management.OperatingSystemMXBean) operatingSystemBean);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the CPU time used by the process so far in nanoseconds, or UNAVAILABLE
+	 */
+	long read() {
+		long cpuTime = operatingSystemBean.getProcessCpuTime();
+		return cpuTime < 0 ? UNAVAILABLE : cpuTime;
+	}
+}
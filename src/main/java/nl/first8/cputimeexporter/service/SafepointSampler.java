@@ -0,0 +1,137 @@
+package nl.first8.cputimeexporter.service;
+
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the runnable threads at a fixed rate on a dedicated thread, and publishes
+ * each sample as a batch into a {@link SampleRing} for the monitoring thread.
+ * <p>
+ * The samples are scheduled at fixed times, so the interval between them does not
+ * drift with the time the monitoring thread takes to attribute a window. Samples that
+ * cannot be taken in time are skipped. If the monitoring thread falls behind and the
+ * ring is full, the sample is dropped and counted rather than waiting for room, so the
+ * sampler keeps its schedule. A sample that fails with an exception is dropped and
+ * counted as well.
+ */
+class SafepointSampler implements Runnable {
+	private static final Logger log = Logger.getLogger(SafepointSampler.class.getName());
+	static final String SAMPLER_THREAD_NAME = "Cpu Time Exporter sampler";
+
+	private final ThreadSampler threadSampler;
+	private final SampleRing ring;
+	private final AgentMetrics agentMetrics;
+	private final Thread consumer;
+
+	private volatile long sampleRateNanos;
+	private volatile Thread thread;
+
+	/**
+	 * @param consumer the thread reading the ring, which is woken up for every published batch
+	 */
+	SafepointSampler(ThreadSampler threadSampler, SampleRing ring, AgentMetrics agentMetrics, Thread consumer,
+			long sampleRateNanos) {
+		this.threadSampler = threadSampler;
+		this.ring = ring;
+		this.agentMetrics = agentMetrics;
+		this.consumer = consumer;
+		this.sampleRateNanos = sampleRateNanos;
+	}
+
+	/**
+	 * Changes the interval between samples, from the next sample on. Can be called from any thread.
+	 */
+	void setSampleRateNanos(long sampleRateNanos) {
+		this.sampleRateNanos = sampleRateNanos;
+	}
+
+	/**
+	 * Starts sampling on a new daemon thread.
+	 */
+	void start() {
+		Thread started = new Thread(this, SAMPLER_THREAD_NAME);
+		started.setDaemon(true);
+		thread = started;
+		started.start();
+	}
+
+	/**
+	 * Stops sampling and waits for the sampler thread to end.
+	 */
+	void stop() throws InterruptedException {
+		Thread stopped = thread;
+		if (stopped != null) {
+			stopped.interrupt();
+			stopped.join();
+			thread = null;
+		}
+	}
+
+	/**
+	 * @return the id of the sampler thread, or -1 if it is not running
+	 */
+	long getThreadId() {
+		Thread current = thread;
+		return current == null ? -1 : current.getId();
+	}
+
+	@Override
+	public void run() {
+		log.fine("Started sampling");
+		long nextSample = System.nanoTime();
+		// Only the first of consecutive failures is logged as a warning
+		boolean failing = false;
+		while (!Thread.currentThread().isInterrupted()) {
+			long rateNanos = sampleRateNanos;
+			long start = System.nanoTime();
+			long lateness = start - nextSample;
+			if (lateness > rateNanos / 2) {
+				long skippedSamples = lateness / rateNanos;
+				agentMetrics.lateSample(skippedSamples);
+				nextSample += skippedSamples * rateNanos;
+			}
+
+			try {
+				ThreadInfo[] snapshot = threadSampler.sample();
+				agentMetrics.observeSampleDuration(System.nanoTime() - start);
+				publish(start, snapshot);
+				failing = false;
+			}
+			catch (RuntimeException exception) {
+				// Keep the schedule, a later sample may succeed
+				agentMetrics.failedSample();
+				log.log(failing ? Level.FINE : Level.WARNING, "Could not take a sample, dropping it", exception);
+				failing = true;
+			}
+
+			nextSample += rateNanos;
+			long sleepNanos = nextSample - System.nanoTime();
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				}
+				catch (InterruptedException exception) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		log.fine("Stopped sampling");
+	}
+
+	/**
+	 * Publishes a sample to the monitoring thread, or drops it if the ring is full.
+	 */
+	void publish(long timestampNanos, ThreadInfo[] snapshot) {
+		SampleBatch batch = ring.claim();
+		if (batch == null) {
+			agentMetrics.droppedSampleBatch();
+			return;
+		}
+		batch.fill(timestampNanos, threadSampler.getThreadIds(), snapshot);
+		ring.publish();
+		LockSupport.unpark(consumer);
+	}
+}
@@ -0,0 +1,75 @@
+package nl.first8.cputimeexporter.service;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+/**
+ * The stack traces of the threads sampled in one sampling step, as handed from the
+ * sampler thread to the monitoring thread through a {@link SampleRing}.
+ * <p>
+ * Only the thread id and stack trace of each sampled thread are kept, so the rest of
+ * the ThreadInfo can be collected at once. The arrays are reused from batch to batch
+ * and only grow when more threads are sampled than fit.
+ */
+final class SampleBatch {
+	private long timestampNanos;
+	private long[] knownThreadIds = new long[0];
+	private int size;
+	private long[] threadIds = new long[0];
+	private StackTraceElement[][] stackTraces = new StackTraceElement[0][];
+
+	/**
+	 * Fills the batch with a sample, replacing its previous content.
+	 * @param timestampNanos the System.nanoTime at which the sample was taken
+	 * @param knownThreadIds the threads the sampler knew of, which is never modified afterwards
+	 * @param snapshot the sampled threads with their stack traces, null for threads that
+	 * ended while they were sampled
+	 */
+	void fill(long timestampNanos, long[] knownThreadIds, ThreadInfo[] snapshot) {
+		this.timestampNanos = timestampNanos;
+		this.knownThreadIds = knownThreadIds;
+		if (threadIds.length < snapshot.length) {
+			threadIds = new long[snapshot.length];
+			stackTraces = new StackTraceElement[snapshot.length][];
+		}
+		int filled = 0;
+		for (ThreadInfo info : snapshot) {
+			if (info != null) {
+				threadIds[filled] = info.getThreadId();
+				stackTraces[filled++] = info.getStackTrace();
+			}
+		}
+		this.size = filled;
+	}
+
+	/**
+	 * Drops the references to the stack traces, so they are not kept alive until the slot is reused.
+	 */
+	void clear() {
+		Arrays.fill(stackTraces, 0, size, null);
+		size = 0;
+	}
+
+	long getTimestampNanos() {
+		return timestampNanos;
+	}
+
+	/**
+	 * @return the threads the sampler knew of when it took the sample, a superset of the sampled threads
+	 */
+	long[] getKnownThreadIds() {
+		return knownThreadIds;
+	}
+
+	int size() {
+		return size;
+	}
+
+	long getThreadId(int index) {
+		return threadIds[index];
+	}
+
+	StackTraceElement[] getStackTrace(int index) {
+		return stackTraces[index];
+	}
+}
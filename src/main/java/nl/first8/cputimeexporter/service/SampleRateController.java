@@ -0,0 +1,81 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides the interval between two samples.
+ * <p>
+ * Without adaptive sampling the interval is fixed. With adaptive sampling, the CPU time
+ * used by the agent in each window is compared to the budget. As the cost of sampling
+ * grows linearly with the sample frequency, the interval is scaled by the ratio between
+ * the measured usage and a target just below the budget, so it gets longer when the
+ * budget is exceeded and shorter again when there is headroom, for instance because
+ * there are fewer threads to sample. The interval changes by at most a factor
+ * {@link #MAX_STEP} per window and stays between the configured minimum and maximum.
+ */
+final class SampleRateController {
+	// Aim a bit below the budget, so small fluctuations do not exceed it
+	private static final double TARGET_FRACTION_OF_BUDGET = 0.8;
+	private static final double MAX_STEP = 4;
+	// Keep the interval as it is while the usage is this close to the target
+	private static final double DEAD_BAND = 0.1;
+
+	private final boolean adaptive;
+	private final long configuredMaxSampleRateNanos;
+	private long minSampleRateNanos;
+	private long maxSampleRateNanos;
+	private final double cpuOverheadBudget;
+
+	private long sampleRateNanos;
+
+	/**
+	 * @param sampleRateMilliseconds the configured, and shortest, interval between samples
+	 * @param maxSampleRateMilliseconds the longest interval between samples
+	 * @param cpuOverheadBudget the CPU time the agent may use, as a fraction of one core
+	 * @param adaptive whether to adapt the interval to the budget
+	 */
+	SampleRateController(long sampleRateMilliseconds, long maxSampleRateMilliseconds, double cpuOverheadBudget,
+			boolean adaptive) {
+		this.adaptive = adaptive;
+		this.configuredMaxSampleRateNanos = TimeUnit.MILLISECONDS.toNanos(maxSampleRateMilliseconds);
+		this.cpuOverheadBudget = cpuOverheadBudget;
+		setSampleRateMilliseconds(sampleRateMilliseconds);
+	}
+
+	/**
+	 * Changes the configured, and shortest, interval between samples. The interval
+	 * starts over from there, also with adaptive sampling.
+	 */
+	void setSampleRateMilliseconds(long sampleRateMilliseconds) {
+		this.minSampleRateNanos = TimeUnit.MILLISECONDS.toNanos(sampleRateMilliseconds);
+		this.maxSampleRateNanos = Math.max(configuredMaxSampleRateNanos, minSampleRateNanos);
+		this.sampleRateNanos = minSampleRateNanos;
+	}
+
+	/**
+	 * @return the current interval between two samples, in nanoseconds
+	 */
+	long getSampleRateNanos() {
+		return sampleRateNanos;
+	}
+
+	/**
+	 * Adapts the interval to the CPU time used by the agent in the last window.
+	 * @param agentCpuTimeNanos the CPU time used by the agent during the window
+	 * @param windowNanos the duration of the window
+	 */
+	void update(long agentCpuTimeNanos, long windowNanos) {
+		if (!adaptive || windowNanos <= 0 || agentCpuTimeNanos < 0) {
+			return;
+		}
+		double usage = (double) agentCpuTimeNanos / windowNanos;
+		double factor = usage / (cpuOverheadBudget * TARGET_FRACTION_OF_BUDGET);
+		if (Math.abs(factor - 1) < DEAD_BAND) {
+			return;
+		}
+		factor = Math.max(1 / MAX_STEP, Math.min(MAX_STEP, factor));
+
+		long next = (long) (sampleRateNanos * factor);
+		sampleRateNanos = Math.max(minSampleRateNanos, Math.min(maxSampleRateNanos, next));
+	}
+}
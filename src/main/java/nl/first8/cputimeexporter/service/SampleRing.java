@@ -0,0 +1,92 @@
+package nl.first8.cputimeexporter.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded ring of preallocated sample batches, passed from a single producer thread
+ * to a single consumer thread without locks.
+ * <p>
+ * The producer claims the next free batch, fills it and publishes it. The consumer
+ * peeks at the oldest published batch, reads it and releases it. The head and tail
+ * only ever increase; publishing and releasing are ordered writes, so a batch is only
+ * read after it was filled and only refilled after it was read. When the ring is full,
+ * the producer gets no batch, so it never waits for the consumer.
+ */
+final class SampleRing {
+	private final SampleBatch[] batches;
+	private final int mask;
+	// The next batch to read, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+	// The next batch to fill, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+	// The last head seen by the producer, so it only reads the head when the ring looks full
+	private long cachedHead;
+
+	/**
+	 * @param capacity the number of batches, rounded up to a power of two
+	 */
+	SampleRing(int capacity) {
+		int size = Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1);
+		this.batches = new SampleBatch[size];
+		for (int i = 0; i < size; i++) {
+			batches[i] = new SampleBatch();
+		}
+		this.mask = size - 1;
+	}
+
+	int capacity() {
+		return batches.length;
+	}
+
+	/**
+	 * Producer side. The batch is not visible to the consumer until it is published.
+	 * @return the next batch to fill, or null if the ring is full
+	 */
+	SampleBatch claim() {
+		long next = tail.getPlain();
+		if (next - cachedHead >= batches.length) {
+			cachedHead = head.getAcquire();
+			if (next - cachedHead >= batches.length) {
+				return null;
+			}
+		}
+		return batches[(int) next & mask];
+	}
+
+	/**
+	 * Producer side. Hands the batch returned by the last claim to the consumer.
+	 */
+	void publish() {
+		tail.setRelease(tail.getPlain() + 1);
+	}
+
+	/**
+	 * Consumer side.
+	 * @return the oldest published batch, or null if there is none
+	 */
+	SampleBatch peek() {
+		long next = head.getPlain();
+		if (next >= tail.getAcquire()) {
+			return null;
+		}
+		return batches[(int) next & mask];
+	}
+
+	/**
+	 * Consumer side. Hands the batch returned by the last peek back to the producer.
+	 */
+	void release() {
+		head.setRelease(head.getPlain() + 1);
+	}
+
+	/**
+	 * Consumer side. Releases all published batches. Only to be called while the producer is not running.
+	 */
+	void clear() {
+		SampleBatch batch;
+		while ((batch = peek()) != null) {
+			batch.clear();
+			release();
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package nl.first8.cputimeexporter.service;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Exposes the start, pause and stop of a monitoring service and its sample rate as an MBean.
+ */
+public class SamplingControl implements SamplingControlMBean {
+	public static final String OBJECT_NAME = "nl.first8.cputimeexporter:type=SamplingControl";
+
+	private final MonitoringService monitoringService;
+
+	public SamplingControl(MonitoringService monitoringService) {
+		this.monitoringService = monitoringService;
+	}
+
+	/**
+	 * Registers this control in the MBean server under {@link #OBJECT_NAME}.
+	 */
+	public void register(MBeanServer mBeanServer) throws JMException {
+		mBeanServer.registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	@Override
+	public void start() {
+		monitoringService.start();
+	}
+
+	@Override
+	public void pause() {
+		monitoringService.pause();
+	}
+
+	@Override
+	public void stop() {
+		monitoringService.stop();
+	}
+
+	@Override
+	public String getState() {
+		return monitoringService.getState().name();
+	}
+
+	@Override
+	public long getSampleRateMilliseconds() {
+		return monitoringService.getSampleRateMilliseconds();
+	}
+
+	@Override
+	public void setSampleRateMilliseconds(long sampleRateMilliseconds) {
+		monitoringService.setSampleRateMilliseconds(sampleRateMilliseconds);
+	}
+}
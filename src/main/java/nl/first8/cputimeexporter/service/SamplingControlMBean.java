@@ -0,0 +1,33 @@
+package nl.first8.cputimeexporter.service;
+
+/**
+ * Controls the sampling of a running agent over JMX, registered as {@link SamplingControl#OBJECT_NAME}.
+ */
+public interface SamplingControlMBean {
+	/**
+	 * Starts sampling, or resumes it if it is paused.
+	 */
+	void start();
+
+	/**
+	 * Pauses sampling after the current window, parking the monitoring thread.
+	 */
+	void pause();
+
+	/**
+	 * Stops sampling and ends the monitoring thread.
+	 */
+	void stop();
+
+	/**
+	 * @return RUNNING, PAUSED or STOPPED
+	 */
+	String getState();
+
+	long getSampleRateMilliseconds();
+
+	/**
+	 * Changes the interval between samples from the next window on.
+	 */
+	void setSampleRateMilliseconds(long sampleRateMilliseconds);
+}
@@ -0,0 +1,149 @@
+package nl.first8.cputimeexporter.service;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Groups threads into thread pools by normalizing their names with the configured
+ * patterns, such as {@code http-nio-*-exec-*} to {@code http-nio-exec}, so the CPU time
+ * of the same method can be told apart per executor.
+ * <p>
+ * A {@code *} in a pattern matches any part of a thread name, and the first pattern
+ * that matches the whole name decides the thread pool. Threads that match no pattern
+ * belong to {@link #OTHER_THREAD_POOL}, so there are at most as many thread pools as
+ * patterns, plus one. The thread pool of a thread is looked up once, by the name it had
+ * when it was first attributed, and cached by thread id until the thread ends.
+ * <p>
+ * Each method label gets a label per thread pool in the {@link LabelTable}, whose
+ * other label is the other label of the method in the same thread pool. This class is
+ * not thread safe.
+ */
+final class ThreadPools {
+	static final String OTHER_THREAD_POOL = "other";
+
+	private final ThreadMXBean threadBean;
+	private final LabelTable labels;
+	private final Pattern[] patterns;
+	private final String[] names;
+	private final int otherIndex;
+
+	// Thread pool per thread id
+	private final LongObjectMap<CachedThreadPool> threads = new LongObjectMap<>();
+	// Label per method label id, per thread pool
+	private final IntIntMap[] poolLabelIds;
+	private int window;
+
+	/**
+	 * @param patterns the thread name pattern of each thread pool, in order of priority
+	 */
+	ThreadPools(Map<String, String> patterns, ThreadMXBean threadBean, LabelTable labels) {
+		this.threadBean = threadBean;
+		this.labels = labels;
+		this.patterns = new Pattern[patterns.size()];
+		List<String> poolNames = new ArrayList<>();
+		int index = 0;
+		for (Map.Entry<String, String> pattern : patterns.entrySet()) {
+			this.patterns[index++] = compile(pattern.getKey());
+			poolNames.add(pattern.getValue());
+		}
+		poolNames.add(OTHER_THREAD_POOL);
+		this.names = poolNames.toArray(new String[0]);
+		this.otherIndex = names.length - 1;
+		this.poolLabelIds = new IntIntMap[names.length];
+		for (int i = 0; i < poolLabelIds.length; i++) {
+			poolLabelIds[i] = new IntIntMap();
+		}
+	}
+
+	private static Pattern compile(String pattern) {
+		StringBuilder regex = new StringBuilder();
+		int start = 0;
+		for (int wildcard = pattern.indexOf('*'); wildcard != -1; wildcard = pattern.indexOf('*', start)) {
+			regex.append(Pattern.quote(pattern.substring(start, wildcard))).append(".*");
+			start = wildcard + 1;
+		}
+		return Pattern.compile(regex.append(Pattern.quote(pattern.substring(start))).toString());
+	}
+
+	/**
+	 * @return the index of the thread pool of a thread, looked up by its name the first time
+	 */
+	int indexOf(long threadId) {
+		CachedThreadPool cached = threads.get(threadId);
+		if (cached == null) {
+			cached = new CachedThreadPool(match(threadName(threadId)));
+			threads.put(threadId, cached);
+		}
+		cached.window = window;
+		return cached.index;
+	}
+
+	/**
+	 * @return the index of the thread pool the thread name belongs to
+	 */
+	int match(String threadName) {
+		if (threadName != null) {
+			for (int i = 0; i < patterns.length; i++) {
+				if (patterns[i].matcher(threadName).matches()) {
+					return i;
+				}
+			}
+		}
+		return otherIndex;
+	}
+
+	/**
+	 * @return the name of the thread, or null if it is not a live platform thread
+	 */
+	private String threadName(long threadId) {
+		if (threadId <= 0) {
+			return null;
+		}
+		ThreadInfo threadInfo = threadBean.getThreadInfo(threadId, 0);
+		return threadInfo == null ? null : threadInfo.getThreadName();
+	}
+
+	String name(int index) {
+		return names[index];
+	}
+
+	/**
+	 * @return the id of the label to report the CPU time of a method label under, when
+	 * it was used by a thread of the thread pool
+	 */
+	int label(int labelId, int index) {
+		IntIntMap labelIds = poolLabelIds[index];
+		if (labelIds.containsKey(labelId)) {
+			return labelIds.get(labelId);
+		}
+		int otherLabelId = labels.otherLabelId(labelId);
+		int poolOtherLabelId = otherLabelId == LabelTable.NO_OTHER_LABEL
+				? LabelTable.NO_OTHER_LABEL
+				: label(otherLabelId, index);
+		int poolLabelId = labels.intern(labels.name(labelId), poolOtherLabelId, names[index]);
+		labelIds.addTo(labelId, poolLabelId);
+		return poolLabelId;
+	}
+
+	/**
+	 * Forgets the thread pools of the threads that were not attributed in this window
+	 * and the previous one, which are most likely ended.
+	 */
+	void endWindow() {
+		window++;
+		threads.removeIf(cached -> window - cached.window > 2);
+	}
+
+	private static final class CachedThreadPool {
+		private final int index;
+		private int window;
+
+		private CachedThreadPool(int index) {
+			this.index = index;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package nl.first8.cputimeexporter.service;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static nl.first8.cputimeexporter.service.MonitoringService.COMPUTATION_THREAD_NAME;
+
+/**
+ * Takes depth-bounded stack samples of the runnable threads of the JVM.
+ * <p>
+ * A sample is taken in two steps. First the state of every known thread is queried
+ * without a stack trace, which does not require a safepoint. Then stack traces, limited
+ * to {@code maxStackDepth} frames, are taken for the threads that are RUNNABLE only.
+ * The set of known threads is refreshed every {@code refreshIntervalMilliseconds}, at
+ * which point the agent threads are left out if {@code hideAgentConsumption} is enabled.
+ * <p>
+ * Threads blocked in native I/O, such as a socket read or epoll, are RUNNABLE as well.
+ * With a CPU time reader, the CPU time of the RUNNABLE threads is read in one call
+ * between the two steps, and only the threads that used CPU time since the previous
+ * sample get a stack trace. Idle threads are then neither walked nor counted, so they
+ * do not take a share of the CPU time from the methods that used it.
+ */
+class ThreadSampler {
+	private static final ThreadInfo[] NO_THREADS = new ThreadInfo[0];
+	private static final long UNKNOWN_CPU_TIME = Long.MIN_VALUE;
+
+	private final ThreadMXBean threadBean;
+	private final int maxStackDepth;
+	private final long refreshIntervalNanos;
+	// Set by the monitoring thread, read by the sampler thread
+	private volatile boolean hideAgentConsumption;
+	private final ThreadUsageTracker.Reader cpuTimeReader;
+
+	private long[] threadIds = new long[0];
+	private long[] runnableThreadIds = new long[0];
+	private int[] runnableIndexes = new int[0];
+	// CPU time of each thread in threadIds at the previous sample it was RUNNABLE in, or UNKNOWN_CPU_TIME
+	private long[] previousCpuTimes = new long[0];
+	private long lastRefreshNanos;
+	private volatile boolean refreshed;
+
+	ThreadSampler(ThreadMXBean threadBean, int maxStackDepth, long refreshIntervalMilliseconds,
+			boolean hideAgentConsumption) {
+		this(threadBean, maxStackDepth, refreshIntervalMilliseconds, hideAgentConsumption, null);
+	}
+
+	/**
+	 * @param cpuTimeReader reads the CPU time of threads to skip the RUNNABLE threads that
+	 * used none since the previous sample, or null to take a stack trace of all of them
+	 */
+	ThreadSampler(ThreadMXBean threadBean, int maxStackDepth, long refreshIntervalMilliseconds,
+			boolean hideAgentConsumption, ThreadUsageTracker.Reader cpuTimeReader) {
+		this.threadBean = threadBean;
+		this.maxStackDepth = maxStackDepth;
+		this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(refreshIntervalMilliseconds);
+		this.hideAgentConsumption = hideAgentConsumption;
+		this.cpuTimeReader = cpuTimeReader;
+	}
+
+	/**
+	 * Takes a single sample of all runnable threads.
+	 * @return the thread info, including a stack trace of at most maxStackDepth frames,
+	 * of each thread that was RUNNABLE
+	 */
+	ThreadInfo[] sample() {
+		refreshThreadIdsIfDue();
+
+		int runnableCount = 0;
+		ThreadInfo[] infos = threadBean.getThreadInfo(threadIds, 0);
+		for (int i = 0; i < infos.length; i++) {
+			ThreadInfo info = infos[i];
+			// Threads that died since the last refresh are reported as null
+			if (info != null && info.getThreadState() == Thread.State.RUNNABLE) {
+				runnableIndexes[runnableCount] = i;
+				runnableThreadIds[runnableCount++] = info.getThreadId();
+			}
+		}
+		if (runnableCount > 0 && cpuTimeReader != null) {
+			runnableCount = retainThreadsThatUsedCpu(runnableCount);
+		}
+		if (runnableCount == 0) {
+			return NO_THREADS;
+		}
+
+		// Threads that died since they were found runnable are reported as null
+		return threadBean.getThreadInfo(Arrays.copyOf(runnableThreadIds, runnableCount), maxStackDepth);
+	}
+
+	/**
+	 * Keeps the RUNNABLE threads of which the CPU time went up since the previous sample
+	 * they were RUNNABLE in. A thread without a previous reading is kept.
+	 * @return the number of threads kept at the start of runnableThreadIds
+	 */
+	private int retainThreadsThatUsedCpu(int runnableCount) {
+		long[] cpuTimes = cpuTimeReader.read(Arrays.copyOf(runnableThreadIds, runnableCount));
+		int kept = 0;
+		for (int i = 0; i < runnableCount; i++) {
+			int index = runnableIndexes[i];
+			long previous = previousCpuTimes[index];
+			long cpuTime = cpuTimes[i];
+			previousCpuTimes[index] = cpuTime;
+			if (cpuTime == ThreadUsageTracker.UNAVAILABLE || (previous != UNKNOWN_CPU_TIME && cpuTime <= previous)) {
+				continue;
+			}
+			runnableThreadIds[kept] = runnableThreadIds[i];
+			runnableIndexes[kept++] = index;
+		}
+		return kept;
+	}
+
+	/**
+	 * Changes whether the agent threads are left out, as of the next sample.
+	 */
+	void setHideAgentConsumption(boolean hideAgentConsumption) {
+		this.hideAgentConsumption = hideAgentConsumption;
+		this.refreshed = false;
+	}
+
+	/**
+	 * @return the ids of the threads that are currently being sampled. A refresh replaces
+	 * the array rather than modifying it, so it can be handed to another thread
+	 */
+	long[] getThreadIds() {
+		return threadIds;
+	}
+
+	private void refreshThreadIdsIfDue() {
+		if (!refreshed || System.nanoTime() - lastRefreshNanos >= refreshIntervalNanos) {
+			refreshThreadIds();
+		}
+	}
+
+	/**
+	 * Refreshes the set of threads to sample.
+	 */
+	void refreshThreadIds() {
+		long[] allThreadIds = threadBean.getAllThreadIds();
+		if (hideAgentConsumption) {
+			allThreadIds = withoutAgentThreads(allThreadIds);
+		}
+
+		// Sorted, to carry the previous CPU times over to the new set of threads
+		Arrays.sort(allThreadIds);
+		previousCpuTimes = carryOverCpuTimes(threadIds, previousCpuTimes, allThreadIds);
+		threadIds = allThreadIds;
+		runnableThreadIds = new long[allThreadIds.length];
+		runnableIndexes = new int[allThreadIds.length];
+		lastRefreshNanos = System.nanoTime();
+		refreshed = true;
+	}
+
+	/**
+	 * @return the previous CPU time of each of the new threads, UNKNOWN_CPU_TIME for the threads that are new
+	 */
+	private static long[] carryOverCpuTimes(long[] oldThreadIds, long[] oldCpuTimes, long[] newThreadIds) {
+		long[] result = new long[newThreadIds.length];
+		int oldIndex = 0;
+		for (int i = 0; i < newThreadIds.length; i++) {
+			while (oldIndex < oldThreadIds.length && oldThreadIds[oldIndex] < newThreadIds[i]) {
+				oldIndex++;
+			}
+			boolean known = oldIndex < oldThreadIds.length && oldThreadIds[oldIndex] == newThreadIds[i];
+			result[i] = known ? oldCpuTimes[oldIndex] : UNKNOWN_CPU_TIME;
+		}
+		return result;
+	}
+
+	private long[] withoutAgentThreads(long[] allThreadIds) {
+		long[] result = new long[allThreadIds.length];
+		int count = 0;
+		ThreadInfo[] infos = threadBean.getThreadInfo(allThreadIds, 0);
+		for (ThreadInfo info : infos) {
+			// Ignoring agent related threads
+			if (info != null && !info.getThreadName().equals(COMPUTATION_THREAD_NAME)
+					&& !info.getThreadName().equals(SafepointSampler.SAMPLER_THREAD_NAME)) {
+				result[count++] = info.getThreadId();
+			}
+		}
+		return Arrays.copyOf(result, count);
+	}
+}
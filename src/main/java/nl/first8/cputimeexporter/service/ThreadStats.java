@@ -0,0 +1,49 @@
+package nl.first8.cputimeexporter.service;
+
+/**
+ * The samples of a single thread during a monitoring window: the number of times the
+ * thread was sampled, and how often each label was found in those samples.
+ */
+final class ThreadStats {
+	private final long threadId;
+	private final IntIntMap labelCounts = new IntIntMap();
+	private int samples;
+
+	ThreadStats(long threadId) {
+		this.threadId = threadId;
+	}
+
+	long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * @return the number of times this thread was sampled in the window
+	 */
+	int getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return for each label id, the number of samples of this thread that were attributed to it
+	 */
+	IntIntMap getLabelCounts() {
+		return labelCounts;
+	}
+
+	/**
+	 * Counts a sample of this thread, attributed to labelId, or to no label at all if
+	 * labelId is {@link FrameResolver#NOT_MONITORED}.
+	 */
+	void record(int labelId) {
+		samples++;
+		if (labelId != FrameResolver.NOT_MONITORED) {
+			labelCounts.addTo(labelId, 1);
+		}
+	}
+
+	void clear() {
+		samples = 0;
+		labelCounts.clear();
+	}
+}
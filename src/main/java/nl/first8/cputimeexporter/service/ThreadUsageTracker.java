@@ -0,0 +1,129 @@
+package nl.first8.cputimeexporter.service;
+
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Keeps an ever increasing counter of each thread, such as its CPU time or its
+ * allocated bytes, at the end of the previous window, to compute how much each thread
+ * used during the current window.
+ * <p>
+ * The first update only records a baseline, so usage from before the agent started is
+ * never reported. Threads that show up later are new, so all of their usage is used in
+ * the window they show up in. A counter that went down means the thread id was reused
+ * by a new thread, and threads that are no longer alive are forgotten.
+ */
+final class ThreadUsageTracker {
+	static final long UNAVAILABLE = -1;
+
+	/**
+	 * Reads the counter of each thread, or UNAVAILABLE for threads that are not alive.
+	 */
+	interface Reader {
+		long[] read(long[] threadIds);
+	}
+
+	private final Reader reader;
+	private final LongObjectMap<Reading> previous = new LongObjectMap<>();
+
+	private long[] deltas = new long[0];
+	private long generation;
+	private boolean initialized;
+
+	ThreadUsageTracker(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * @return a tracker of the CPU time of threads, in nanoseconds
+	 */
+	static ThreadUsageTracker cpuTime(ThreadMXBean threadBean) {
+		return new ThreadUsageTracker(cpuTimeReader(threadBean));
+	}
+
+	/**
+	 * @return a reader of the CPU time of threads, in nanoseconds
+	 */
+	static Reader cpuTimeReader(ThreadMXBean threadBean) {
+		// Use the batched call when the JVM offers it, to read all threads with a single call
+		if (threadBean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threadBean)::getThreadCpuTime;
+		}
+		return threadIds -> {
+			long[] cpuTimes = new long[threadIds.length];
+			for (int i = 0; i < threadIds.length; i++) {
+				cpuTimes[i] = threadBean.getThreadCpuTime(threadIds[i]);
+			}
+			return cpuTimes;
+		};
+	}
+
+	/**
+	 * @return a tracker of the bytes allocated by threads, or null if the JVM cannot
+	 * measure them
+	 */
+	static ThreadUsageTracker allocatedBytes(ThreadMXBean threadBean) {
+		if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean allocationThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+		if (!allocationThreadBean.isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		if (!allocationThreadBean.isThreadAllocatedMemoryEnabled()) {
+			allocationThreadBean.setThreadAllocatedMemoryEnabled(true);
+		}
+		return new ThreadUsageTracker(allocationThreadBean::getThreadAllocatedBytes);
+	}
+
+	/**
+	 * Reads the current counter of the threads and computes how much they used since
+	 * the previous update.
+	 * @param threadIds the threads to read, including all threads that were sampled
+	 * @return for each thread, at the same index, the usage or UNAVAILABLE if the thread
+	 * is no longer alive. The array is reused by the next update
+	 */
+	long[] update(long[] threadIds) {
+		long[] values = reader.read(threadIds);
+		if (deltas.length < threadIds.length) {
+			deltas = new long[threadIds.length];
+		}
+		generation++;
+
+		for (int i = 0; i < threadIds.length; i++) {
+			long value = values[i];
+			if (value == UNAVAILABLE) {
+				deltas[i] = UNAVAILABLE;
+				continue;
+			}
+			Reading reading = previous.get(threadIds[i]);
+			if (reading == null) {
+				reading = new Reading();
+				previous.put(threadIds[i], reading);
+				// Only usage after the first update is reported
+				reading.value = initialized ? 0 : value;
+			}
+			// A value lower than before belongs to a new thread that reused the id
+			deltas[i] = value >= reading.value ? value - reading.value : value;
+			reading.value = value;
+			reading.generation = generation;
+		}
+
+		// Forget the threads that died or were not part of this update
+		long current = generation;
+		previous.removeIf(reading -> reading.generation != current);
+		initialized = true;
+		return deltas;
+	}
+
+	/**
+	 * @return the number of threads of which a previous reading is kept
+	 */
+	int size() {
+		return previous.size();
+	}
+
+	private static final class Reading {
+		private long value;
+		private long generation;
+	}
+}
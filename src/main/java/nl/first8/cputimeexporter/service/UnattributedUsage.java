@@ -0,0 +1,78 @@
+package nl.first8.cputimeexporter.service;
+
+/**
+ * Carries the CPU time and allocated bytes of threads over to later windows, for the
+ * windows in which they used CPU time but no samples of them arrived.
+ * <p>
+ * JFR delivers its samples in batches, about once per second, so with windows of about
+ * a second or shorter, the samples of a busy thread regularly arrive in the window
+ * after the one in which it used the CPU time. Without carrying it over, the CPU time
+ * of a window without samples would be lost, as the baseline of the thread has already
+ * moved on. It is added to the usage of the first window in which samples of the thread
+ * arrive instead.
+ * <p>
+ * Usage that is not picked up within {@code maxWindows} windows of the first window it
+ * was carried from, such as that of threads running native code, is dropped, and stays
+ * unattributed like it would without JFR. This class is not thread safe.
+ */
+final class UnattributedUsage {
+	private final int maxWindows;
+	private final LongObjectMap<Usage> usages = new LongObjectMap<>();
+	private int window;
+
+	/**
+	 * @param maxWindows the number of windows after which usage that is not picked up is dropped
+	 */
+	UnattributedUsage(int maxWindows) {
+		this.maxWindows = maxWindows;
+	}
+
+	/**
+	 * Adds the usage of a thread without samples in this window.
+	 */
+	void carry(long threadId, long cpuTime, long allocatedBytes) {
+		if (cpuTime <= 0 && allocatedBytes <= 0) {
+			return;
+		}
+		Usage usage = usages.get(threadId);
+		if (usage == null) {
+			usage = new Usage(window);
+			usages.put(threadId, usage);
+		}
+		usage.cpuTime += cpuTime;
+		usage.allocatedBytes += allocatedBytes;
+	}
+
+	/**
+	 * @return the usage carried for the thread, which is no longer carried, or null if there is none
+	 */
+	Usage take(long threadId) {
+		return usages.remove(threadId);
+	}
+
+	/**
+	 * Drops the usage that was carried for more than maxWindows windows.
+	 */
+	void endWindow() {
+		window++;
+		usages.removeIf(usage -> window - usage.firstWindow > maxWindows);
+	}
+
+	static final class Usage {
+		private final int firstWindow;
+		private long cpuTime;
+		private long allocatedBytes;
+
+		private Usage(int firstWindow) {
+			this.firstWindow = firstWindow;
+		}
+
+		long getCpuTime() {
+			return cpuTime;
+		}
+
+		long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+	}
+}
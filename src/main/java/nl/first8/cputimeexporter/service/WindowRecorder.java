@@ -0,0 +1,160 @@
+package nl.first8.cputimeexporter.service;
+
+import nl.first8.cputimeexporter.recording.RecordingFormat;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Records the CPU time reported per label for each window into a fixed-size ring in a
+ * memory-mapped file, see {@link RecordingFormat}, so the attribution of a past moment
+ * can be read at full resolution with the RecordingReader.
+ * <p>
+ * A record is written with absolute puts into the mapping, so the write path does not
+ * allocate and leaves flushing to the operating system. Only the first time a label is
+ * recorded, its name is appended to the labels file, followed by its thread pool in
+ * brackets if it has one. The recording starts over each
+ * time the agent starts, as label ids are only valid within one run. The recording of
+ * the previous run is kept at {@link RecordingFormat#previousPath(Path)}, as a restart
+ * is often when it is needed most.
+ */
+final class WindowRecorder implements LabelLimiter.Reporter, AutoCloseable {
+	private static final Logger log = Logger.getLogger(WindowRecorder.class.getName());
+
+	private final LabelTable labels;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final long capacity;
+	private final Writer labelWriter;
+
+	private boolean[] labelRecorded = new boolean[64];
+	private boolean labelsAdded;
+	private long written;
+	private long windowTimestampMillis;
+
+	/**
+	 * @param path the recording file, an existing one is moved to the previous path
+	 * @param sizeBytes the size of the recording file, at most 2 GiB
+	 */
+	WindowRecorder(Path path, long sizeBytes, LabelTable labels) throws IOException {
+		this.labels = labels;
+		this.capacity = (sizeBytes - RecordingFormat.HEADER_SIZE) / RecordingFormat.RECORD_SIZE;
+		if (capacity < 1 || sizeBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid recording size: " + sizeBytes + " bytes");
+		}
+		rotate(path);
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				RecordingFormat.HEADER_SIZE + capacity * RecordingFormat.RECORD_SIZE);
+		buffer.putInt(0, RecordingFormat.MAGIC);
+		buffer.putInt(4, RecordingFormat.VERSION);
+		buffer.putLong(RecordingFormat.CAPACITY_OFFSET, capacity);
+		buffer.putLong(RecordingFormat.WRITTEN_OFFSET, 0);
+		this.labelWriter = Files.newBufferedWriter(RecordingFormat.labelsPath(path), StandardCharsets.UTF_8);
+		log.info(() -> "Recording the attribution per window to " + path + ", keeping the last " + capacity + " records");
+	}
+
+	/**
+	 * Moves the recording of the previous run and its labels to the previous path,
+	 * replacing the one before it.
+	 */
+	private static void rotate(Path path) throws IOException {
+		if (Files.exists(path)) {
+			Path previousPath = RecordingFormat.previousPath(path);
+			Files.move(path, previousPath, StandardCopyOption.REPLACE_EXISTING);
+			Path labelsPath = RecordingFormat.labelsPath(path);
+			if (Files.exists(labelsPath)) {
+				Files.move(labelsPath, RecordingFormat.labelsPath(previousPath), StandardCopyOption.REPLACE_EXISTING);
+			}
+			else {
+				Files.deleteIfExists(RecordingFormat.labelsPath(previousPath));
+			}
+		}
+	}
+
+	/**
+	 * Starts the records of a window.
+	 * @param timestampMillis the end of the window, in epoch milliseconds
+	 */
+	void beginWindow(long timestampMillis) {
+		this.windowTimestampMillis = timestampMillis;
+	}
+
+	@Override
+	public void report(int labelId, double seconds, double allocatedBytes) {
+		long cpuNanos = Math.round(seconds * 1_000_000_000.0);
+		if (cpuNanos <= 0) {
+			return;
+		}
+		if (labelId >= labelRecorded.length || !labelRecorded[labelId]) {
+			addLabel(labelId);
+		}
+		int offset = RecordingFormat.recordOffset(written, capacity);
+		buffer.putLong(offset, windowTimestampMillis);
+		buffer.putInt(offset + RecordingFormat.LABEL_ID_OFFSET, labelId);
+		buffer.putLong(offset + RecordingFormat.CPU_NANOS_OFFSET, cpuNanos);
+		written++;
+	}
+
+	@Override
+	public void expire(int labelId) {
+		// Past records of the label stay in the ring until they are overwritten
+	}
+
+	/**
+	 * Makes the records of the window visible to readers.
+	 */
+	void endWindow() {
+		buffer.putLong(RecordingFormat.WRITTEN_OFFSET, written);
+		if (labelsAdded) {
+			try {
+				labelWriter.flush();
+			}
+			catch (IOException exception) {
+				log.warning("Could not write the recorded label names: " + exception.getMessage());
+			}
+			labelsAdded = false;
+		}
+	}
+
+	private void addLabel(int labelId) {
+		if (labelId >= labelRecorded.length) {
+			labelRecorded = Arrays.copyOf(labelRecorded, Math.max(labelRecorded.length * 2, labelId + 1));
+		}
+		String threadPool = labels.threadPool(labelId);
+		String name = threadPool == null ? labels.name(labelId) : labels.name(labelId) + " [" + threadPool + "]";
+		try {
+			labelWriter.write(labelId + "\t" + name + "\n");
+		}
+		catch (IOException exception) {
+			log.warning("Could not write the recorded label names: " + exception.getMessage());
+		}
+		labelRecorded[labelId] = true;
+		labelsAdded = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			buffer.force();
+		}
+		finally {
+			try {
+				labelWriter.close();
+			}
+			finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package nl.first8.cputimeexporter.service;
+
+/**
+ * Aggregates the samples of a monitoring window as they are taken, as counts per thread
+ * id and label id. Its size depends on the number of active threads and distinct labels
+ * only, not on the number of samples.
+ * <p>
+ * The per-thread counters are reused from one window to the next, and dropped once a
+ * thread was not sampled during a whole window. This class is not thread safe.
+ */
+final class WindowStats {
+	private final LongObjectMap<ThreadStats> threads = new LongObjectMap<>();
+
+	/**
+	 * Counts a sample of a thread, attributed to labelId, or to no label at all if
+	 * labelId is {@link FrameResolver#NOT_MONITORED}.
+	 */
+	void record(long threadId, int labelId) {
+		ThreadStats stats = threads.get(threadId);
+		if (stats == null) {
+			stats = new ThreadStats(threadId);
+			threads.put(threadId, stats);
+		}
+		stats.record(labelId);
+	}
+
+	/**
+	 * @return the stats of the thread, or null if it was not sampled in this window
+	 */
+	ThreadStats get(long threadId) {
+		ThreadStats stats = threads.get(threadId);
+		return stats == null || stats.getSamples() == 0 ? null : stats;
+	}
+
+	int capacity() {
+		return threads.capacity();
+	}
+
+	/**
+	 * @return the stats in the given slot, or null if the slot is empty or the thread
+	 * was not sampled in this window
+	 */
+	ThreadStats statsAt(int slot) {
+		ThreadStats stats = threads.valueAt(slot);
+		return stats == null || stats.getSamples() == 0 ? null : stats;
+	}
+
+	/**
+	 * Starts a new window.
+	 */
+	void clear() {
+		threads.removeIf(stats -> stats.getSamples() == 0);
+		for (int slot = 0; slot < threads.capacity(); slot++) {
+			ThreadStats stats = threads.valueAt(slot);
+			if (stats != null) {
+				stats.clear();
+			}
+		}
+	}
+}
@@ -4,8 +4,10 @@ import io.prometheus.metrics.exporter.httpserver.HTTPServer;
 import io.prometheus.metrics.model.registry.PrometheusRegistry;
 import nl.first8.cputimeexporter.config.AgentProperties;
 import nl.first8.cputimeexporter.service.MonitoringService;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockedConstruction;
@@ -13,6 +15,14 @@ import org.mockito.MockedStatic;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.CALLS_REAL_METHODS;
@@ -34,8 +44,35 @@ class AgentTest {
     @Mock
     private HTTPServer httpServer;
 
+    @BeforeEach
+    void setUp() {
+        Agent.started.set(false);
+    }
+
+    @Test
+    void testStart_CanBeRetriedAfterFailedStart(@TempDir Path directory) throws IOException {
+        // A config without packages to monitor is invalid
+        Path emptyConfig = Files.createFile(directory.resolve("empty.properties"));
+        String configPath = System.getProperty(AgentProperties.CONFIG_PATH_PROPERTY);
+        try (MockedConstruction<MonitoringService> monitoringServiceMockedConstruction =
+                     mockConstruction(MonitoringService.class)) {
+            Agent.start(emptyConfig.toString(), null);
+            assertThat(Agent.started).isFalse();
+
+            Agent.start(emptyConfig.toString(), null);
+            assertThat(Agent.started).isFalse();
+            assertThat(monitoringServiceMockedConstruction.constructed()).isEmpty();
+        } finally {
+            if (configPath == null) {
+                System.clearProperty(AgentProperties.CONFIG_PATH_PROPERTY);
+            } else {
+                System.setProperty(AgentProperties.CONFIG_PATH_PROPERTY, configPath);
+            }
+        }
+    }
+
     @Test
-    void testPremain_InitializesComponentsAndStartsMonitoring() throws IOException {
+    void testStart_InitializesComponentsAndStartsMonitoring() throws IOException {
         try (
                 MockedStatic<HTTPServer> httpServerMockedStatic = mockStatic(HTTPServer.class, RETURNS_DEEP_STUBS);
                 MockedStatic<Runtime> runtimeMockedStatic = mockStatic(Runtime.class, CALLS_REAL_METHODS);
@@ -60,16 +97,21 @@ class AgentTest {
             Runtime runtimeMock = mock(Runtime.class);
             runtimeMockedStatic.when(Runtime::getRuntime).thenReturn(runtimeMock);
 
-            // Run agent's premain method
-            Agent.premain(null, null);
+            // Start the agent on this thread, as the static mocks only apply to it
+            Agent.start(null, null);
 
-            // Verify the MonitoringService was instantiated and started in a thread
+            // Verify the MonitoringService was instantiated and started its thread
             assertThat(monitoringServiceMockedConstruction.constructed()).hasSize(1);
             MonitoringService createdService = monitoringServiceMockedConstruction.constructed().get(0);
-            verify(createdService, times(1)).run();
+            verify(createdService, times(1)).start();
 
             verify(runtimeMock, times(1)).addShutdownHook(threadCaptor.capture());
             verify(builder, times(1)).buildAndStart();
+
+            // The shutdown hook stops the monitoring, closing the recording, and the HTTP server
+            threadCaptor.getValue().run();
+            verify(createdService, times(1)).stop();
+            verify(httpServer, times(1)).close();
         }
     }
 
@@ -86,4 +128,40 @@ class AgentTest {
             verify(agentProperties).getPort();
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    void testStartHttpServer_ReturnsNullWhenPortIsInUse() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            AgentProperties agentProperties = mock(AgentProperties.class);
+            when(agentProperties.getPort()).thenReturn(socket.getLocalPort());
+
+            assertThat(Agent.startHttpServer(agentProperties, new PrometheusRegistry())).isNull();
+        }
+    }
+
+    @Test
+    void testStartHttpServer_ServesFlameGraphNextToMetrics() throws IOException {
+        AgentProperties agentProperties = mock(AgentProperties.class);
+        HTTPServer server = Agent.startHttpServer(agentProperties, new PrometheusRegistry(), Optional.of(exchange -> {
+            byte[] body = "main;work 3\n".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        }));
+        try {
+            assertThat(get(server, Agent.FLAME_GRAPH_PATH)).isEqualTo("main;work 3\n");
+            assertThat(get(server, "/metrics")).doesNotContain("main;work");
+        } finally {
+            server.close();
+        }
+    }
+
+    private static String get(HTTPServer server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+        try (InputStream input = connection.getInputStream()) {
+            return new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package nl.first8.cputimeexporter.accuracy;
+
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.HistogramSnapshot.HistogramDataPointSnapshot;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+import static nl.first8.cputimeexporter.accuracy.WorkloadMonitor.properties;
+import static nl.first8.cputimeexporter.accuracy.WorkloadMonitor.runMonitored;
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Measures the CPU time the agent uses while sampling a synthetic workload of 10, 1,000
+ * and 10,000 threads, and the time a single sample takes. The measurements are written
+ * to target/agent-overhead.csv.
+ * <p>
+ * Tagged as a benchmark, as it runs for about half a minute and starts up to 10,000
+ * threads. The regular build excludes it and nothing runs it by default, so it only
+ * runs by hand with {@code ./mvnw -Pbenchmark test}. The bounds are about
+ * one and a half times what a single CPU measures, with two threads burning next to the agent.
+ * On a single CPU most of a sample is spent waiting for the burners to be scheduled and reach
+ * a safepoint.
+ */
+@Tag("benchmark")
+class AgentOverheadTest {
+
+    private static final Path OVERHEAD_REPORT = Paths.get("target", "agent-overhead.csv");
+    private static final int MAX_BLOCKED_THREADS = 200;
+
+    @BeforeAll
+    static void createReport() throws IOException {
+        Files.createDirectories(OVERHEAD_REPORT.getParent());
+        Files.writeString(OVERHEAD_REPORT, "threads,agent_cpu_seconds,wall_seconds,overhead,mean_sample_seconds\n",
+                StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testOverhead_With10Threads() throws Exception {
+        Overhead overhead = measureOverhead(10);
+
+        assertThat(overhead.fraction).isLessThan(0.05);
+        assertThat(overhead.meanSampleSeconds).isLessThan(0.008);
+    }
+
+    @Test
+    void testOverhead_With1000Threads() throws Exception {
+        Overhead overhead = measureOverhead(1_000);
+
+        assertThat(overhead.fraction).isLessThan(0.35);
+        assertThat(overhead.meanSampleSeconds).isLessThan(0.015);
+    }
+
+    @Test
+    void testOverhead_With10000Threads() throws Exception {
+        Overhead overhead = measureOverhead(10_000);
+
+        assertThat(overhead.fraction).isLessThan(0.50);
+        assertThat(overhead.meanSampleSeconds).isLessThan(0.080);
+    }
+
+    /**
+     * @return the CPU time of the agent threads as a fraction of the wall time they were running,
+     * and the mean wall time of a sample
+     */
+    private static Overhead measureOverhead(int threads) throws Exception {
+        PrometheusRegistry registry = new PrometheusRegistry();
+        int blockedThreads = Math.min(threads / 10, MAX_BLOCKED_THREADS);
+        try (SyntheticWorkload workload = new SyntheticWorkload(1, 1, blockedThreads, threads - 2 - blockedThreads)) {
+            long start = System.nanoTime();
+            double agentCpuSeconds = runMonitored(workload, properties("safepoint"), registry);
+            double wallSeconds = (System.nanoTime() - start) / 1e9;
+            double fraction = agentCpuSeconds / wallSeconds;
+            HistogramDataPointSnapshot sampleDuration = (HistogramDataPointSnapshot) registry
+                    .scrape(name -> name.equals("cpu_time_exporter_sample_duration_seconds"))
+                    .get(0).getDataPoints().get(0);
+            double meanSampleSeconds = sampleDuration.getSum() / sampleDuration.getCount();
+            Files.writeString(OVERHEAD_REPORT, String.format(Locale.ROOT, "%d,%.3f,%.3f,%.4f,%.6f%n",
+                    workload.threadCount(), agentCpuSeconds, wallSeconds, fraction, meanSampleSeconds),
+                    StandardOpenOption.APPEND);
+            return new Overhead(fraction, meanSampleSeconds);
+        }
+    }
+
+    private static final class Overhead {
+        private final double fraction;
+        private final double meanSampleSeconds;
+
+        private Overhead(double fraction, double meanSampleSeconds) {
+            this.fraction = fraction;
+            this.meanSampleSeconds = meanSampleSeconds;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package nl.first8.cputimeexporter.accuracy;
+
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static nl.first8.cputimeexporter.accuracy.WorkloadMonitor.counterTotals;
+import static nl.first8.cputimeexporter.accuracy.WorkloadMonitor.properties;
+import static nl.first8.cputimeexporter.accuracy.WorkloadMonitor.runMonitored;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Runs the monitoring against a synthetic workload with a known CPU usage per method,
+ * to check the accuracy of the attribution. The overhead of the agent at scale is
+ * measured by {@link AgentOverheadTest}.
+ */
+class AttributionAccuracyTest {
+
+    // Error allowed in the CPU time attributed to all methods together, as a fraction of all CPU time burned
+    private static final double TOTAL_TOLERANCE = 0.05;
+    // Error allowed per method, as a fraction of the CPU time burned in that method
+    private static final double METHOD_TOLERANCE = 0.10;
+
+    /**
+     * The burners poll for safepoints in every iteration, so safepoint sampling finds them in the
+     * method they burn in.
+     */
+    @Test
+    void testAttribution_MatchesMeasuredCpuTimePerMethodWithSafepointSampling() throws Exception {
+        checkAttribution("safepoint");
+    }
+
+    /**
+     * The windows have the default length, so JFR regularly delivers the samples of a burner a window late.
+     */
+    @Test
+    void testAttribution_MatchesMeasuredCpuTimePerMethodWithJfrSampling() throws Exception {
+        assumeTrue(Runtime.version().feature() >= 17, "JFR streaming requires JDK 17");
+        checkAttribution("jfr");
+    }
+
+    private static void checkAttribution(String samplingMode) throws Exception {
+        PrometheusRegistry registry = new PrometheusRegistry();
+        try (SyntheticWorkload workload = new SyntheticWorkload(3, 1, 20, 20)) {
+            runMonitored(workload, properties(samplingMode), registry);
+            Map<String, Double> truth = workload.truthSeconds();
+            Map<String, Double> attributed = counterTotals(registry, "method_cpu_seconds", "method_name");
+
+            double truthTotal = truth.values().stream().mapToDouble(Double::doubleValue).sum();
+            double attributedTotal = attributed.values().stream().mapToDouble(Double::doubleValue).sum();
+            assertThat(attributedTotal)
+                    .as("CPU seconds attributed to all methods")
+                    .isCloseTo(truthTotal, within(TOTAL_TOLERANCE * truthTotal));
+            for (String method : truth.keySet()) {
+                assertThat(attributed.getOrDefault(method, 0.0))
+                        .as("CPU seconds attributed to %s", method)
+                        .isCloseTo(truth.get(method), within(METHOD_TOLERANCE * truth.get(method)));
+            }
+            assertThat(attributed.getOrDefault(SyntheticWorkload.IDLE_METHOD, 0.0)).isLessThan(0.01);
+            assertThat(attributed.getOrDefault(SyntheticWorkload.BLOCKED_METHOD, 0.0)).isLessThan(0.01);
+        }
+    }
+}
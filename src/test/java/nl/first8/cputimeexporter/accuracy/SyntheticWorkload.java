@@ -0,0 +1,152 @@
+package nl.first8.cputimeexporter.accuracy;
+
+import nl.first8.cputimeexporter.accuracy.workload.alpha.AlphaWork;
+import nl.first8.cputimeexporter.accuracy.workload.beta.BetaWork;
+import nl.first8.cputimeexporter.accuracy.workload.idle.IdleWork;
+import nl.first8.cputimeexporter.accuracy.workload.io.BlockedWork;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Threads with a known CPU usage per method, to run the monitoring against.
+ * <p>
+ * Burner threads each burn in either {@link AlphaWork} or {@link BetaWork}, and measure
+ * the CPU time they use, which is the truth the attribution is compared with. Blocked
+ * threads wait in a socket read and idle threads on a latch; both use no CPU time. All
+ * threads are created up front, and the burners only start burning at {@link #startBurning()}.
+ */
+final class SyntheticWorkload implements AutoCloseable {
+    static final String ALPHA_METHOD = AlphaWork.class.getName() + ".burn";
+    static final String BETA_METHOD = BetaWork.class.getName() + ".burn";
+    static final String IDLE_METHOD = IdleWork.class.getName() + ".await";
+    static final String BLOCKED_METHOD = BlockedWork.class.getName() + ".receive";
+    static final String PACKAGE = "nl.first8.cputimeexporter.accuracy.workload";
+
+    // Iterations of one unit of work, roughly a few hundred microseconds
+    private static final long ITERATIONS_PER_UNIT = 200_000;
+    private static final long STACK_SIZE = 256 * 1024;
+
+    private final CountDownLatch burning = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final List<Burner> burners = new ArrayList<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final List<DatagramSocket> sockets = new ArrayList<>();
+    private volatile boolean stopped;
+
+    /**
+     * @param alphaThreads the number of threads burning CPU in AlphaWork
+     * @param betaThreads the number of threads burning CPU in BetaWork
+     */
+    SyntheticWorkload(int alphaThreads, int betaThreads, int blockedThreads, int idleThreads) throws IOException {
+        for (int i = 0; i < alphaThreads + betaThreads; i++) {
+            Burner burner = new Burner(i < alphaThreads);
+            burners.add(burner);
+            start(burner, (burner.alpha ? "alpha-burner-" : "beta-burner-") + i);
+        }
+        for (int i = 0; i < blockedThreads; i++) {
+            DatagramSocket socket = new DatagramSocket();
+            sockets.add(socket);
+            start(() -> BlockedWork.receive(socket), "blocked-" + i);
+        }
+        for (int i = 0; i < idleThreads; i++) {
+            start(() -> IdleWork.await(released), "idle-" + i);
+        }
+    }
+
+    int threadCount() {
+        return threads.size();
+    }
+
+    private void start(Runnable runnable, String name) {
+        Thread thread = new Thread(null, runnable, name, STACK_SIZE);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    void startBurning() {
+        burning.countDown();
+    }
+
+    /**
+     * Stops the burners and waits until they have stopped, so the truth no longer changes.
+     */
+    void stopBurning() throws InterruptedException {
+        stopped = true;
+        burning.countDown();
+        for (Thread thread : threads.subList(0, burners.size())) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return the CPU time the burners used in each method, in seconds. Only complete after stopBurning
+     */
+    Map<String, Double> truthSeconds() {
+        long alphaNanos = 0;
+        long betaNanos = 0;
+        for (Burner burner : burners) {
+            if (burner.alpha) {
+                alphaNanos += burner.cpuNanos;
+            }
+            else {
+                betaNanos += burner.cpuNanos;
+            }
+        }
+        Map<String, Double> result = new HashMap<>();
+        result.put(ALPHA_METHOD, alphaNanos / 1e9);
+        result.put(BETA_METHOD, betaNanos / 1e9);
+        return result;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        stopBurning();
+        released.countDown();
+        for (DatagramSocket socket : sockets) {
+            socket.close();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private final class Burner implements Runnable {
+        private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        private final boolean alpha;
+        private volatile long cpuNanos;
+        private long sink;
+        // Read from a field, so the JIT does not see the stride of the work loops as a constant
+        private int stride = 1;
+
+        private Burner(boolean alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        public void run() {
+            try {
+                burning.await();
+            } catch (InterruptedException exception) {
+                return;
+            }
+            // Only read before and after burning: on a busy CPU, a thread is often descheduled in the system
+            // call that reads it, and safepoint sampling would find it there rather than in the work
+            long start = threadBean.getCurrentThreadCpuTime();
+            while (!stopped) {
+                sink += alpha
+                        ? AlphaWork.burn(ITERATIONS_PER_UNIT, stride, sink)
+                        : BetaWork.burn(ITERATIONS_PER_UNIT, stride, sink);
+            }
+            cpuNanos = threadBean.getCurrentThreadCpuTime() - start;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package nl.first8.cputimeexporter.accuracy;
+
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.DataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.MetricSnapshot;
+import nl.first8.cputimeexporter.config.AgentProperties;
+import nl.first8.cputimeexporter.service.MonitoringService;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs the monitoring against a {@link SyntheticWorkload}, for the accuracy and overhead tests.
+ */
+final class WorkloadMonitor {
+
+    private static final long BURN_MILLISECONDS = 6000;
+    // JFR delivers the samples of the last window about a second after it ended
+    private static final long JFR_DELIVERY_MILLISECONDS = 1000;
+
+    /**
+     * Monitors the workload while it burns, and until the windows in which it burned are attributed.
+     * @return the CPU time used by the monitoring and sampler threads, in seconds
+     */
+    static double runMonitored(SyntheticWorkload workload, AgentProperties properties,
+                               PrometheusRegistry registry) throws InterruptedException {
+        MonitoringService monitoringService = new MonitoringService(properties, registry);
+        monitoringService.start();
+        try {
+            // Let the monitoring thread take its baseline before the burners start
+            Thread.sleep(100);
+            workload.startBurning();
+            Thread.sleep(BURN_MILLISECONDS);
+            workload.stopBurning();
+            Thread.sleep(2 * properties.getSampleTimeMilliseconds() + JFR_DELIVERY_MILLISECONDS);
+            // Scraped while the agent threads are alive, as their CPU time is read from the threads themselves
+            Map<String, Double> agentThreads = counterTotals(registry, "cpu_time_exporter_thread_cpu_seconds", "thread");
+            return agentThreads.getOrDefault("monitoring", 0.0) + agentThreads.getOrDefault("sampler", 0.0);
+        } finally {
+            monitoringService.stop();
+        }
+    }
+
+    /**
+     * @return the properties to monitor the workload with, with the default window length
+     */
+    static AgentProperties properties(String samplingMode) {
+        Properties properties = new Properties();
+        properties.setProperty("sampling-mode", samplingMode);
+        properties.setProperty("package-names-to-monitor", SyntheticWorkload.PACKAGE);
+        properties.setProperty("port", "0");
+        properties.setProperty("sample-rate-milliseconds", "10");
+        properties.setProperty("max-method-labels", "100");
+        properties.setProperty("hide-agent-consumption", "true");
+        return new AgentProperties(properties);
+    }
+
+    static Map<String, Double> counterTotals(PrometheusRegistry registry, String metricName, String labelName) {
+        Map<String, Double> result = new HashMap<>();
+        for (MetricSnapshot snapshot : registry.scrape(name -> name.equals(metricName))) {
+            for (DataPointSnapshot dataPoint : snapshot.getDataPoints()) {
+                result.put(dataPoint.getLabels().get(labelName), ((CounterDataPointSnapshot) dataPoint).getValue());
+            }
+        }
+        return result;
+    }
+
+    private WorkloadMonitor() {
+    }
+}
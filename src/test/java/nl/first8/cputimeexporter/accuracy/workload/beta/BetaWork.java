@@ -0,0 +1,22 @@
+package nl.first8.cputimeexporter.accuracy.workload.beta;
+
+/**
+ * CPU-bound work in a package of its own, so the harness can tell its samples apart.
+ */
+public final class BetaWork {
+
+    private BetaWork() {
+    }
+
+    /**
+     * @param stride the step of the loop, which is not a constant, so the JIT cannot turn it into a
+     * counted loop without safepoint polls, and safepoint sampling finds the thread in this method
+     */
+    public static long burn(long iterations, int stride, long seed) {
+        long value = seed;
+        for (long i = 0; i < iterations; i += stride) {
+            value = value * 2862933555777941757L + 3037000493L;
+        }
+        return value;
+    }
+}
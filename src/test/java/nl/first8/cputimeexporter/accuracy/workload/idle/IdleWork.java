@@ -0,0 +1,20 @@
+package nl.first8.cputimeexporter.accuracy.workload.idle;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Waits without using CPU time, in a WAITING state.
+ */
+public final class IdleWork {
+
+    private IdleWork() {
+    }
+
+    public static void await(CountDownLatch released) {
+        try {
+            released.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
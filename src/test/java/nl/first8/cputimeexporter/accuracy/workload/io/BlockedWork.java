@@ -0,0 +1,25 @@
+package nl.first8.cputimeexporter.accuracy.workload.io;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+
+/**
+ * Blocks in a socket read without using CPU time, which the JVM reports as RUNNABLE.
+ */
+public final class BlockedWork {
+
+    private BlockedWork() {
+    }
+
+    /**
+     * Returns once the socket is closed.
+     */
+    public static void receive(DatagramSocket socket) {
+        try {
+            socket.receive(new DatagramPacket(new byte[1], 1));
+        } catch (IOException exception) {
+            // Closed
+        }
+    }
+}
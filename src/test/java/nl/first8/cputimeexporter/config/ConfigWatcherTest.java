@@ -0,0 +1,69 @@
+package nl.first8.cputimeexporter.config;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ConfigWatcherTest {
+
+    private static final String CONFIG_PROPERTY = "cputimeexporter.config";
+
+    @TempDir
+    Path directory;
+
+    private Path configPath;
+    private final List<AgentProperties> reloaded = new ArrayList<>();
+    private ConfigWatcher configWatcher;
+
+    @BeforeEach
+    void setup() throws IOException {
+        configPath = directory.resolve("config.properties");
+        Files.writeString(configPath, "package-names-to-monitor=nl.first8\nport=9091\n");
+        System.setProperty(CONFIG_PROPERTY, configPath.toString());
+        configWatcher = new ConfigWatcher(FileSystems.getDefault(), reloaded::add);
+    }
+
+    @AfterEach
+    void cleanup() {
+        System.clearProperty(CONFIG_PROPERTY);
+    }
+
+    @Test
+    void testReload_PassesValidConfig() throws IOException {
+        Files.writeString(configPath, "package-names-to-monitor=org.example\nport=9091\nsample-rate-milliseconds=20\n");
+
+        configWatcher.reload();
+
+        assertThat(reloaded).hasSize(1);
+        assertThat(reloaded.get(0).getPackageNamesToMonitor()).containsExactly("org.example");
+        assertThat(reloaded.get(0).getSampleRateMilliseconds()).isEqualTo(20);
+    }
+
+    @Test
+    void testReload_IgnoresInvalidConfig() throws IOException {
+        Files.writeString(configPath, "package-names-to-monitor=org.example\nport=9091\nsample-rate-milliseconds=fast\n");
+
+        configWatcher.reload();
+
+        assertThat(reloaded).isEmpty();
+    }
+
+    @Test
+    void testAgentProperties_ThrowsOnInvalidValue() throws IOException {
+        Files.writeString(configPath, "package-names-to-monitor=\n");
+
+        assertThatThrownBy(() -> new AgentProperties(FileSystems.getDefault()))
+                .isInstanceOf(InvalidConfigurationException.class);
+    }
+}
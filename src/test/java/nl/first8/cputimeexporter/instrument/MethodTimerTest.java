@@ -0,0 +1,64 @@
+package nl.first8.cputimeexporter.instrument;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MethodTimerTest {
+
+    private final AtomicLong cpuClock = new AtomicLong();
+    private final MethodTimer timer = new MethodTimer(List.of("com.example.A.run", "com.example.B.run"), cpuClock::get);
+
+    @Test
+    void testExit_AddsCpuTimeBetweenEntryAndExit() {
+        long entry = timer.enter(0);
+        cpuClock.addAndGet(300);
+        timer.exit(0, entry);
+
+        assertThat(totals()).containsExactly(300, 1, 0, 0);
+    }
+
+    @Test
+    void testEnter_OnlyTimesOutermostCallOfReentrantMethod() {
+        long outer = timer.enter(0);
+        cpuClock.addAndGet(100);
+        long inner = timer.enter(0);
+        cpuClock.addAndGet(200);
+        timer.exit(0, inner);
+        long other = timer.enter(1);
+        cpuClock.addAndGet(50);
+        timer.exit(1, other);
+        timer.exit(0, outer);
+
+        assertThat(inner).isEqualTo(MethodTimer.NOT_TIMED);
+        assertThat(totals()).containsExactly(350, 1, 50, 1);
+    }
+
+    @Test
+    void testTotals_KeepsCountersOfThreadsThatEnded() throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            long entry = timer.enter(1);
+            cpuClock.addAndGet(70);
+            timer.exit(1, entry);
+        });
+        thread.start();
+        thread.join();
+
+        assertThat(totals()).containsExactly(0, 0, 70, 1);
+        // Folded into the retired totals by the previous call
+        assertThat(totals()).containsExactly(0, 0, 70, 1);
+    }
+
+    /**
+     * @return the CPU time and calls of each method, interleaved
+     */
+    private long[] totals() {
+        long[] cpuNanos = new long[2];
+        long[] calls = new long[2];
+        timer.totals(cpuNanos, calls);
+        return new long[]{cpuNanos[0], calls[0], cpuNanos[1], calls[1]};
+    }
+}
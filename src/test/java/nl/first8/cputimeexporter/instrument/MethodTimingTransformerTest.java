@@ -0,0 +1,93 @@
+package nl.first8.cputimeexporter.instrument;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MethodTimingTransformerTest {
+
+    private static final String TARGET = TimedTarget.class.getName();
+
+    private final AtomicLong cpuClock = new AtomicLong();
+    private final MethodTimer timer = new MethodTimer(List.of(TARGET + ".work", TARGET + ".fail"), cpuClock::get);
+
+    @AfterEach
+    void cleanup() {
+        MethodTimers.install(null);
+    }
+
+    @Test
+    void testTransform_TimesReturningAndThrowingCalls() throws Exception {
+        MethodTimers.install(timer);
+        Class<?> instrumented = loadInstrumented();
+        Object target = instrumented.getDeclaredConstructor().newInstance();
+
+        assertThat(instrumented.getMethod("work", int.class).invoke(target, 3)).isEqualTo(6);
+        assertThatThrownBy(() -> instrumented.getMethod("fail").invoke(target))
+                .isInstanceOf(InvocationTargetException.class)
+                .hasCauseInstanceOf(IllegalStateException.class);
+        // Calls fail once more, and catches its exception
+        assertThat(instrumented.getMethod("recover").invoke(target)).isEqualTo(-1);
+
+        long[] cpuNanos = new long[2];
+        long[] calls = new long[2];
+        timer.totals(cpuNanos, calls);
+        assertThat(calls).containsExactly(1, 2);
+    }
+
+    @Test
+    void testTransform_SkipsClassesWithoutInstrumentedMethods() {
+        MethodTimingTransformer transformer = new MethodTimingTransformer(timer.getMethodNames());
+
+        assertThat(transformer.transform(getClass().getClassLoader(), "com/example/Other", null, null, new byte[0]))
+                .isNull();
+        assertThat(transformer.instruments(TARGET)).isTrue();
+    }
+
+    private Class<?> loadInstrumented() throws IOException {
+        MethodTimingTransformer transformer = new MethodTimingTransformer(timer.getMethodNames());
+        byte[] original;
+        try (InputStream input = getClass().getResourceAsStream("MethodTimingTransformerTest$TimedTarget.class")) {
+            original = input.readAllBytes();
+        }
+        byte[] instrumented = transformer.transform(getClass().getClassLoader(), TARGET.replace('.', '/'), null,
+                null, original);
+        assertThat(instrumented).isNotNull();
+        return new ClassLoader(getClass().getClassLoader()) {
+            Class<?> define() {
+                return defineClass(TARGET, instrumented, 0, instrumented.length);
+            }
+        }.define();
+    }
+
+    public static class TimedTarget {
+        public int work(int value) {
+            int result = 0;
+            for (int i = 1; i <= value; i++) {
+                result += i;
+            }
+            return result;
+        }
+
+        public void fail() {
+            throw new IllegalStateException("failed");
+        }
+
+        public int recover() {
+            try {
+                fail();
+                return 0;
+            } catch (IllegalStateException exception) {
+                return -1;
+            }
+        }
+    }
+}
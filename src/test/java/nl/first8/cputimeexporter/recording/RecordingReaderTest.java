@@ -0,0 +1,79 @@
+package nl.first8.cputimeexporter.recording;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecordingReaderTest {
+
+    @TempDir
+    Path directory;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    @Test
+    void testRun_PrintsUsageForUnknownCommand() {
+        int exitCode = run("list", "recording.bin");
+
+        assertThat(exitCode).isEqualTo(2);
+        assertThat(err.toString(StandardCharsets.UTF_8)).startsWith("Usage:");
+    }
+
+    @Test
+    void testRun_RejectsFileThatIsNoRecording() throws IOException {
+        Path path = Files.writeString(directory.resolve("config.properties"), "port=9091\n");
+
+        int exitCode = run("dump", path.toString());
+
+        assertThat(exitCode).isEqualTo(1);
+        assertThat(err.toString(StandardCharsets.UTF_8)).contains("Not a recording");
+    }
+
+    @Test
+    void testRun_RejectsRecordingWithCapacityBeyondFile() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RecordingFormat.HEADER_SIZE + 2 * RecordingFormat.RECORD_SIZE);
+        header.putInt(0, RecordingFormat.MAGIC);
+        header.putInt(4, RecordingFormat.VERSION);
+        header.putLong(RecordingFormat.CAPACITY_OFFSET, 3);
+        Path path = Files.write(directory.resolve("recording.bin"), header.array());
+
+        int exitCode = run("dump", path.toString());
+
+        assertThat(exitCode).isEqualTo(1);
+        assertThat(err.toString(StandardCharsets.UTF_8)).contains("Corrupt recording, capacity 3");
+    }
+
+    @Test
+    void testRun_RejectsRecordingWithoutCapacity() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RecordingFormat.HEADER_SIZE);
+        header.putInt(0, RecordingFormat.MAGIC);
+        header.putInt(4, RecordingFormat.VERSION);
+        Path path = Files.write(directory.resolve("recording.bin"), header.array());
+
+        int exitCode = run("dump", path.toString());
+
+        assertThat(exitCode).isEqualTo(1);
+        assertThat(err.toString(StandardCharsets.UTF_8)).contains("Corrupt recording, capacity 0");
+    }
+
+    @Test
+    void testParseTime_AcceptsInstantAndEpochMilliseconds() {
+        assertThat(RecordingReader.parseTime("1970-01-01T00:00:01Z")).isEqualTo(1_000L);
+        assertThat(RecordingReader.parseTime("1500")).isEqualTo(1_500L);
+    }
+
+    private int run(String... args) {
+        return RecordingReader.run(args, new PrintStream(out, true, StandardCharsets.UTF_8),
+                new PrintStream(err, true, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,134 @@
+package nl.first8.cputimeexporter.service;
+
+import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.MetricSnapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+import static nl.first8.cputimeexporter.service.MonitoringService.COMPUTATION_THREAD_NAME;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class AgentMetricsTest {
+
+    @Mock
+    private ThreadMXBean threadBean;
+
+    private final PrometheusRegistry registry = new PrometheusRegistry();
+
+    @Test
+    void testThreadCpuSeconds_KeepsCpuTimeOfThreadsThatDied() {
+        new AgentMetrics(registry, threadBean, new LabelTable());
+        ThreadInfo monitoring = threadInfo(1L, COMPUTATION_THREAD_NAME);
+        ThreadInfo http = threadInfo(2L, "prometheus-http-1-1");
+        ThreadInfo application = threadInfo(3L, "main");
+
+        when(threadBean.getAllThreadIds()).thenReturn(new long[]{1L, 2L, 3L}, new long[]{1L, 3L});
+        when(threadBean.getThreadInfo(any(long[].class), eq(0)))
+                .thenReturn(new ThreadInfo[]{monitoring, http, application}, new ThreadInfo[]{monitoring, application});
+        when(threadBean.getThreadCpuTime(1L)).thenReturn(1_000_000_000L, 1_500_000_000L);
+        when(threadBean.getThreadCpuTime(2L)).thenReturn(250_000_000L, -1L);
+
+        assertThat(threadCpuSeconds("monitoring")).isCloseTo(1.0, within(1e-9));
+        assertThat(threadCpuSeconds("http")).isCloseTo(0.25, within(1e-9));
+
+        // The HTTP thread is gone, its CPU time stays part of the total
+        assertThat(threadCpuSeconds("monitoring")).isCloseTo(1.5, within(1e-9));
+        assertThat(threadCpuSeconds("http")).isCloseTo(0.25, within(1e-9));
+    }
+
+    @Test
+    void testThreadUsage_ReadsAgentThreadsOncePerScrape() {
+        com.sun.management.ThreadMXBean allocationThreadBean = mock(com.sun.management.ThreadMXBean.class);
+        when(allocationThreadBean.isThreadAllocatedMemorySupported()).thenReturn(true);
+        new AgentMetrics(registry, allocationThreadBean, new LabelTable());
+        ThreadInfo monitoring = threadInfo(1L, COMPUTATION_THREAD_NAME);
+        ThreadInfo application = threadInfo(3L, "main");
+
+        when(allocationThreadBean.getAllThreadIds()).thenReturn(new long[]{1L, 3L});
+        when(allocationThreadBean.getThreadInfo(new long[]{1L, 3L}, 0)).thenReturn(new ThreadInfo[]{monitoring, application});
+        when(allocationThreadBean.getThreadCpuTime(new long[]{1L})).thenReturn(new long[]{1_000_000_000L}, new long[]{2_000_000_000L});
+        when(allocationThreadBean.getThreadAllocatedBytes(new long[]{1L})).thenReturn(new long[]{4096L}, new long[]{8192L});
+
+        registry.scrape();
+        registry.scrape();
+
+        assertThat(threadCpuSeconds("monitoring")).isCloseTo(2.0, within(1e-9));
+        // Both counters of a scrape share a single reading, and the agent threads are only looked up once
+        verify(allocationThreadBean, times(3)).getThreadCpuTime(new long[]{1L});
+        verify(allocationThreadBean, times(3)).getThreadAllocatedBytes(new long[]{1L});
+        verify(allocationThreadBean, times(1)).getAllThreadIds();
+    }
+
+    @Test
+    void testLateSample_CountsLateAndDroppedSamples() {
+        AgentMetrics agentMetrics = new AgentMetrics(registry, threadBean, new LabelTable());
+
+        agentMetrics.lateSample(0);
+        agentMetrics.lateSample(3);
+
+        assertThat(counterValue("cpu_time_exporter_late_samples")).isEqualTo(2);
+        assertThat(counterValue("cpu_time_exporter_dropped_samples")).isEqualTo(3);
+    }
+
+    @Test
+    void testWindowCpu_BalancesProcessCpuAgainstAttributedCpu() {
+        AgentMetrics agentMetrics = new AgentMetrics(registry, threadBean, new LabelTable());
+
+        agentMetrics.windowCpu(1_000_000_000L, 0.75);
+        assertThat(counterValue("cpu_time_exporter_unattributed_cpu_seconds")).isCloseTo(0.25, within(1e-9));
+
+        // More was attributed than the process used in this window, the counter cannot go down
+        agentMetrics.windowCpu(500_000_000L, 0.6);
+        assertThat(counterValue("cpu_time_exporter_unattributed_cpu_seconds")).isCloseTo(0.25, within(1e-9));
+
+        agentMetrics.windowCpu(1_000_000_000L, 0.5);
+        assertThat(counterValue("cpu_time_exporter_process_cpu_seconds")).isCloseTo(2.5, within(1e-9));
+        assertThat(counterValue("cpu_time_exporter_unattributed_cpu_seconds")).isCloseTo(0.65, within(1e-9));
+    }
+
+    @Test
+    void testAgentThreadKind_RecognizesAgentThreads() {
+        assertThat(AgentMetrics.agentThreadKind(COMPUTATION_THREAD_NAME)).isEqualTo("monitoring");
+        assertThat(AgentMetrics.agentThreadKind(SafepointSampler.SAMPLER_THREAD_NAME)).isEqualTo("sampler");
+        assertThat(AgentMetrics.agentThreadKind("prometheus-http-1-3")).isEqualTo("http");
+        assertThat(AgentMetrics.agentThreadKind("http-nio-8080-exec-1")).isNull();
+    }
+
+    private double threadCpuSeconds(String kind) {
+        CounterSnapshot snapshot = (CounterSnapshot) registry
+                .scrape(name -> name.equals("cpu_time_exporter_thread_cpu_seconds"))
+                .get(0);
+        return snapshot.getDataPoints().stream()
+                .filter(dataPoint -> kind.equals(dataPoint.getLabels().get("thread")))
+                .mapToDouble(CounterDataPointSnapshot::getValue)
+                .sum();
+    }
+
+    private double counterValue(String name) {
+        MetricSnapshot snapshot = registry.scrape(name::equals).get(0);
+        return ((CounterDataPointSnapshot) snapshot.getDataPoints().get(0)).getValue();
+    }
+
+    private static ThreadInfo threadInfo(long threadId, String threadName) {
+        ThreadInfo info = mock(ThreadInfo.class);
+        when(info.getThreadName()).thenReturn(threadName);
+        lenient().when(info.getThreadId()).thenReturn(threadId);
+        return info;
+    }
+}
@@ -0,0 +1,64 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CallTreeTest {
+
+    @Test
+    void testDescend_MergesSharedPrefixes() {
+        CallTree tree = new CallTree(64);
+
+        addSample(tree, 1, 2, 3);
+        addSample(tree, 1, 2, 4);
+        addSample(tree, 1, 2, 3);
+
+        // Root, 1, 1;2, 1;2;3 and 1;2;4
+        assertThat(tree.size()).isEqualTo(5);
+        assertThat(tree.totalSamples(CallTree.ROOT)).isEqualTo(3);
+    }
+
+    @Test
+    void testPrune_RemovesColdestSubtreesAndKeepsTheirSamples() {
+        CallTree tree = new CallTree(8);
+        for (int i = 0; i < 10; i++) {
+            addSample(tree, 1, 2);
+        }
+        // Cold stacks, each seen once, until the tree is pruned
+        for (int frame = 10; frame < 17; frame++) {
+            addSample(tree, 1, frame);
+        }
+
+        assertThat(tree.size()).isLessThanOrEqualTo(8);
+        int selfSamples = 0;
+        for (int node = 0; node < tree.size(); node++) {
+            selfSamples += tree.selfSamples(node);
+        }
+        assertThat(selfSamples).isEqualTo(17);
+        assertThat(tree.totalSamples(CallTree.ROOT)).isEqualTo(17);
+    }
+
+    @Test
+    void testPrune_KeepsNodesTiedAtTheThreshold() {
+        CallTree tree = new CallTree(8);
+        // Leaves that are all seen once, so they all have as many samples as the threshold
+        for (int frame = 10; frame < 18; frame++) {
+            addSample(tree, frame);
+        }
+
+        // Root and the three oldest leaves, with the samples of the pruned leaves in the root
+        assertThat(tree.size()).isEqualTo(4);
+        assertThat(tree.frameId(1)).isEqualTo(10);
+        assertThat(tree.selfSamples(CallTree.ROOT)).isEqualTo(5);
+        assertThat(tree.totalSamples(CallTree.ROOT)).isEqualTo(8);
+    }
+
+    private static void addSample(CallTree tree, int... frameIds) {
+        int node = tree.enter();
+        for (int frameId : frameIds) {
+            node = tree.descend(node, frameId);
+        }
+        tree.addSample(node);
+    }
+}
@@ -0,0 +1,71 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.entry;
+
+class FlameGraphTest {
+
+    private static final StackTraceElement RUN = new StackTraceElement("java.lang.Thread", "run", "Thread.java", 1);
+    private static final StackTraceElement HANDLE = new StackTraceElement("com.example.Controller", "handle", "Controller.java", 1);
+    private static final StackTraceElement FIND = new StackTraceElement("com.example.Repository", "find", "Repository.java", 1);
+
+    @Test
+    void testFolded_ListsStacksFromOutermostFrame() {
+        FlameGraph flameGraph = new FlameGraph(64, 4);
+
+        flameGraph.record(new StackTraceElement[]{FIND, HANDLE, RUN});
+        flameGraph.record(new StackTraceElement[]{FIND, HANDLE, RUN});
+        flameGraph.record(new StackTraceElement[]{HANDLE, RUN});
+        flameGraph.rotate(1_000);
+
+        assertThat(flameGraph.folded(Long.MIN_VALUE)).containsOnly(
+                entry("java.lang.Thread.run;com.example.Controller.handle;com.example.Repository.find", 2L),
+                entry("java.lang.Thread.run;com.example.Controller.handle", 1L));
+    }
+
+    @Test
+    void testFolded_IncludesOnlyRequestedAndKeptWindows() {
+        FlameGraph flameGraph = new FlameGraph(64, 2);
+
+        for (long window = 1; window <= 3; window++) {
+            flameGraph.record(new StackTraceElement[]{HANDLE, RUN});
+            flameGraph.rotate(window * 1_000);
+        }
+
+        // The first window is no longer kept
+        assertThat(flameGraph.folded(Long.MIN_VALUE)).containsOnly(entry("java.lang.Thread.run;com.example.Controller.handle", 2L));
+        assertThat(flameGraph.folded(3_000)).containsOnly(entry("java.lang.Thread.run;com.example.Controller.handle", 1L));
+    }
+
+    @Test
+    void testRotate_DropsFramesOfTreesThatAreNoLongerKept() {
+        FlameGraph flameGraph = new FlameGraph(64, 2);
+
+        for (int window = 1; window <= 100; window++) {
+            for (int method = 0; method < 50; method++) {
+                flameGraph.record(new StackTraceElement[]{
+                        new StackTraceElement("com.example.Generated" + window, "method" + method, null, 1), RUN});
+            }
+            flameGraph.rotate(window * 1_000L);
+        }
+
+        // 5,000 distinct frames were sampled, but only those of the last windows are kept
+        assertThat(flameGraph.frameCount()).isLessThan(2_100);
+        assertThat(flameGraph.folded(100_000)).hasSize(50)
+                .containsEntry("java.lang.Thread.run;com.example.Generated100.method7", 1L);
+        assertThat(flameGraph.folded(Long.MIN_VALUE)).hasSize(100)
+                .containsEntry("java.lang.Thread.run;com.example.Generated99.method0", 1L);
+    }
+
+    @Test
+    void testSinceMillis_ParsesSecondsParameter() {
+        assertThat(FlameGraphHandler.sinceMillis(null, 100_000)).isEqualTo(Long.MIN_VALUE);
+        assertThat(FlameGraphHandler.sinceMillis("format=folded&seconds=30", 100_000)).isEqualTo(70_000);
+        assertThat(FlameGraphHandler.sinceMillis("seconds=" + Long.MAX_VALUE / 10, 100_000)).isEqualTo(Long.MIN_VALUE);
+        assertThatThrownBy(() -> FlameGraphHandler.sinceMillis("seconds=-1", 100_000))
+                .isInstanceOf(NumberFormatException.class);
+    }
+}
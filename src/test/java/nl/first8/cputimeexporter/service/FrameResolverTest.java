@@ -0,0 +1,122 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FrameResolverTest {
+
+    private final LabelTable labels = new LabelTable();
+
+    @Test
+    void testResolve_UsesGroupingPackageLabel() {
+        FrameResolver resolver = new FrameResolver(List.of("org.springframework", "com.example"),
+                List.of("org.springframework"), labels, 64);
+
+        int labelId = resolver.resolve("org.springframework.web.DispatcherServlet", "doService");
+
+        assertThat(labels.name(labelId)).isEqualTo("org.springframework");
+    }
+
+    @Test
+    void testResolve_UsesMethodLabelOutsideGroupingPackages() {
+        FrameResolver resolver = new FrameResolver(List.of("com.example"), List.of("org.springframework"), labels, 64);
+
+        int labelId = resolver.resolve("com.example.OrderService", "placeOrder");
+
+        assertThat(labels.name(labelId)).isEqualTo("com.example.OrderService.placeOrder");
+    }
+
+    @Test
+    void testResolve_UsesMatchedPackageAsOtherLabel() {
+        FrameResolver resolver = new FrameResolver(List.of("com.example", "org"), List.of("org.springframework"),
+                labels, 64);
+
+        int methodLabelId = resolver.resolve("com.example.OrderService", "placeOrder");
+        int groupingLabelId = resolver.resolve("org.springframework.web.DispatcherServlet", "doService");
+
+        assertThat(labels.name(labels.otherLabelId(methodLabelId))).isEqualTo("com.example.*");
+        assertThat(labels.otherLabelId(groupingLabelId)).isEqualTo(LabelTable.NO_OTHER_LABEL);
+    }
+
+    @Test
+    void testResolve_MatchesPackagesToMonitorAcrossClassAndMethodName() {
+        FrameResolver resolver = new FrameResolver(List.of("com.example.OrderService.place"), List.of(), labels, 64);
+
+        assertThat(resolver.resolve("com.example.OrderService", "placeOrder"))
+                .isNotEqualTo(FrameResolver.NOT_MONITORED);
+        assertThat(resolver.resolve("com.example.OrderService", "cancelOrder"))
+                .isEqualTo(FrameResolver.NOT_MONITORED);
+    }
+
+    @Test
+    void testResolve_SkipsGroupingPackagesThatAreNotMonitored() {
+        FrameResolver resolver = new FrameResolver(List.of("com.example"), List.of("org.springframework"), labels, 64);
+
+        assertThat(resolver.resolve("org.springframework.web.DispatcherServlet", "doService"))
+                .isEqualTo(FrameResolver.NOT_MONITORED);
+        assertThat(resolver.resolve("java.lang.Thread", "run"))
+                .isEqualTo(FrameResolver.NOT_MONITORED);
+    }
+
+    @Test
+    void testResolve_PrefersGroupingPackageWithHighestPriority() {
+        FrameResolver resolver = new FrameResolver(List.of("com"), List.of("com.example.web", "com.example"), labels, 64);
+
+        assertThat(labels.name(resolver.resolve("com.example.web.Controller", "get"))).isEqualTo("com.example.web");
+        assertThat(labels.name(resolver.resolve("com.example.Repository", "find"))).isEqualTo("com.example");
+    }
+
+    @Test
+    void testResolve_StaysCorrectWhenCacheEvicts() {
+        FrameResolver resolver = new FrameResolver(List.of("com.example"), List.of(), labels, 4);
+
+        for (int i = 0; i < 100; i++) {
+            int labelId = resolver.resolve("com.example.Service" + i, "apply");
+            assertThat(labels.name(labelId)).isEqualTo("com.example.Service" + i + ".apply");
+        }
+        int labelId = resolver.resolve("com.example.Service0", "apply");
+
+        assertThat(labels.name(labelId)).isEqualTo("com.example.Service0.apply");
+        // The methods and the other label of com.example
+        assertThat(labels.size()).isEqualTo(101);
+    }
+
+    @Test
+    void testResolve_SharesLabelOfGeneratedClasses() {
+        FrameResolver resolver = new FrameResolver(List.of("com.example"), List.of(), labels, 4);
+
+        for (int i = 0; i < 100; i++) {
+            resolver.resolve("com.example.Main$$Lambda$" + i + "/0x00000008000c" + Integer.toHexString(i), "run");
+            resolver.resolve("com.example.Main$$Lambda/0x00000008010c" + Integer.toHexString(i), "run");
+            resolver.resolve("com.example.OrderService$$EnhancerBySpringCGLIB$$" + Integer.toHexString(i * 7919),
+                    "placeOrder");
+        }
+
+        assertThat(labels.size()).isEqualTo(3);
+        assertThat(labels.name(resolver.resolve("com.example.Main$$Lambda$3/0x0000000800c03000", "run")))
+                .isEqualTo("com.example.Main$$Lambda.run");
+        assertThat(labels.name(resolver.resolve("com.example.OrderService$$EnhancerBySpringCGLIB$$1a2b3c4d",
+                "placeOrder"))).isEqualTo("com.example.OrderService$$EnhancerBySpringCGLIB.placeOrder");
+    }
+
+    @Test
+    void testNormalizeClassName_StripsGeneratedNumbersAndHashes() {
+        assertThat(FrameResolver.normalizeClassName("com.example.OrderService")).isEqualTo("com.example.OrderService");
+        assertThat(FrameResolver.normalizeClassName("com.example.OrderService$Line")).isEqualTo("com.example.OrderService$Line");
+        assertThat(FrameResolver.normalizeClassName("com.example.OrderService$1")).isEqualTo("com.example.OrderService$1");
+        assertThat(FrameResolver.normalizeClassName("com.example.Main$$Lambda/0x0000000800c03000"))
+                .isEqualTo("com.example.Main$$Lambda");
+        assertThat(FrameResolver.normalizeClassName("com.example.Main$$Lambda$14/0x0000000800c03000"))
+                .isEqualTo("com.example.Main$$Lambda");
+        assertThat(FrameResolver.normalizeClassName("com.example.Main$$Lambda.0x0000000800c03000"))
+                .isEqualTo("com.example.Main$$Lambda");
+        assertThat(FrameResolver.normalizeClassName("jdk.proxy2.$Proxy12")).isEqualTo("jdk.proxy2.$Proxy");
+        assertThat(FrameResolver.normalizeClassName("com.example.OrderService$$SpringCGLIB$$0"))
+                .isEqualTo("com.example.OrderService$$SpringCGLIB");
+        assertThat(FrameResolver.normalizeClassName("com.example.Order$HibernateProxy$Kd8Ld2a1"))
+                .isEqualTo("com.example.Order$HibernateProxy");
+    }
+}
@@ -0,0 +1,56 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class JfrSamplerTest {
+
+    private final LabelTable labels = new LabelTable();
+
+    private volatile boolean spinning = true;
+    private volatile long sink;
+
+    @Test
+    void testSwap_ContainsExecutionSamplesOfBusyThread() throws Exception {
+        assumeTrue(JfrSampler.isSupported());
+        FrameResolver frameResolver = new FrameResolver(List.of("nl.first8"), List.of(), labels, 64);
+        Thread busyThread = new Thread(this::spin, "jfr-sampler-test-busy");
+        busyThread.setDaemon(true);
+        busyThread.start();
+
+        try (JfrSampler sampler = new JfrSampler(frameResolver, null, 10)) {
+            sampler.start();
+
+            ThreadStats busyStats = null;
+            // JFR delivers the events in batches, about once per second
+            for (int attempt = 0; attempt < 100 && busyStats == null; attempt++) {
+                TimeUnit.MILLISECONDS.sleep(100);
+                WindowStats stats = sampler.swap();
+                busyStats = stats.get(busyThread.getId());
+                if (busyStats == null) {
+                    stats.clear();
+                }
+            }
+
+            assertThat(busyStats).isNotNull();
+            int spinLabelId = labels.intern(JfrSamplerTest.class.getName() + ".spin");
+            assertThat(busyStats.getLabelCounts().get(spinLabelId)).isPositive();
+        }
+        finally {
+            spinning = false;
+        }
+    }
+
+    private void spin() {
+        long value = 0;
+        while (spinning) {
+            value = value * 31 + System.nanoTime();
+        }
+        sink = value;
+    }
+}
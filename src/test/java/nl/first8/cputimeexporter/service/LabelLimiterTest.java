@@ -0,0 +1,102 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LabelLimiterTest {
+
+    private final LabelTable labels = new LabelTable();
+    private final RecordingReporter reporter = new RecordingReporter();
+
+    private int other;
+    private int grouping;
+
+    @BeforeEach
+    void setup() {
+        other = labels.intern("nl.first8.*");
+        grouping = labels.intern("com.example");
+    }
+
+    @Test
+    void testEndWindow_ReportsOnlyTheTopLabelsByThemselves() {
+        LabelLimiter limiter = new LabelLimiter(labels, 2, 10);
+        int hot = method("hot");
+        int warm = method("warm");
+
+        // Many methods with a little CPU time each, and two heavy hitters
+        for (int window = 0; window < 20; window++) {
+            limiter.add(hot, 1.0, 0);
+            limiter.add(warm, 0.5, 0);
+            for (int i = 0; i < 10; i++) {
+                limiter.add(method("cold" + (window * 10 + i)), 0.01, 0);
+            }
+            limiter.add(grouping, 0.3, 0);
+            limiter.endWindow(reporter);
+        }
+
+        assertThat(reporter.reported).containsOnlyKeys(hot, warm, other, grouping);
+        assertThat(reporter.reported.get(hot)).isCloseTo(20.0, within(1e-9));
+        assertThat(reporter.reported.get(other)).isCloseTo(2.0, within(1e-9));
+        assertThat(reporter.reported.get(grouping)).isCloseTo(6.0, within(1e-9));
+    }
+
+    @Test
+    void testEndWindow_ExpiresLabelsThatDroppedOutOfTheTop() {
+        LabelLimiter limiter = new LabelLimiter(labels, 1, 3);
+        int old = method("old");
+        int current = method("current");
+
+        limiter.add(old, 1.0, 0);
+        limiter.endWindow(reporter);
+        assertThat(limiter.isTop(old)).isTrue();
+
+        for (int window = 0; window < 10 && reporter.expired.isEmpty(); window++) {
+            limiter.add(current, 1.0, 0);
+            limiter.endWindow(reporter);
+        }
+
+        assertThat(limiter.isTop(current)).isTrue();
+        assertThat(reporter.expired).containsExactly(old);
+    }
+
+    @Test
+    void testEndWindow_DoesNotExpireLabelsThatStayInTheTop() {
+        LabelLimiter limiter = new LabelLimiter(labels, 2, 3);
+        int idle = method("idle");
+
+        limiter.add(idle, 1.0, 0);
+        limiter.endWindow(reporter);
+        for (int window = 0; window < 10; window++) {
+            limiter.endWindow(reporter);
+        }
+
+        assertThat(reporter.expired).isEmpty();
+    }
+
+    private int method(String methodName) {
+        return labels.intern("nl.first8.Service." + methodName, other);
+    }
+
+    private static final class RecordingReporter implements LabelLimiter.Reporter {
+        private final Map<Integer, Double> reported = new HashMap<>();
+        private final List<Integer> expired = new ArrayList<>();
+
+        @Override
+        public void report(int labelId, double seconds, double allocatedBytes) {
+            reported.merge(labelId, seconds, Double::sum);
+        }
+
+        @Override
+        public void expire(int labelId) {
+            expired.add(labelId);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongObjectMapTest {
+
+    @Test
+    void testPutGetRemove_BehavesLikeHashMap() {
+        Random random = new Random(42);
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+
+        for (int i = 0; i < 10_000; i++) {
+            long key = random.nextInt(500);
+            if (random.nextBoolean()) {
+                assertThat(map.put(key, "v" + i)).isEqualTo(expected.put(key, "v" + i));
+            } else {
+                assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(expected.size());
+        expected.forEach((key, value) -> assertThat(map.get(key)).isEqualTo(value));
+    }
+
+    @Test
+    void testRemoveIf_RemovesAllMatchingEntries() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        for (long key = 0; key < 1000; key++) {
+            map.put(key, key);
+        }
+
+        map.removeIf(value -> value % 3 != 0);
+
+        assertThat(map.size()).isEqualTo(334);
+        for (long key = 0; key < 1000; key++) {
+            assertThat(map.get(key)).isEqualTo(key % 3 == 0 ? key : null);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package nl.first8.cputimeexporter.service;
+
+import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.DataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.MetricSnapshot;
+import io.prometheus.metrics.model.snapshots.MetricSnapshots;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MethodMetricsTest {
+
+    private final LabelTable labels = new LabelTable();
+
+    @Test
+    void testCollect_OnlySeesPublishedWindows() {
+        MethodMetrics methodMetrics = new MethodMetrics(labels, true);
+        int compute = labels.intern("nl.first8.Service.compute");
+
+        methodMetrics.report(compute, 1.5, 2048);
+        assertThat(totals(methodMetrics.collect(), MethodMetrics.CPU_SECONDS_NAME)).isEmpty();
+
+        methodMetrics.publish();
+        MetricSnapshots published = methodMetrics.collect();
+        methodMetrics.report(compute, 0.5, 0);
+
+        // Scrapes keep reading the same snapshot until the next window is published
+        assertThat(methodMetrics.collect()).isSameAs(published);
+        assertThat(totals(published, MethodMetrics.CPU_SECONDS_NAME)).containsExactly(Map.entry("nl.first8.Service.compute", 1.5));
+        assertThat(totals(published, MethodMetrics.ALLOCATED_BYTES_NAME)).containsExactly(Map.entry("nl.first8.Service.compute", 2048.0));
+
+        methodMetrics.publish();
+        assertThat(totals(methodMetrics.collect(), MethodMetrics.CPU_SECONDS_NAME)).containsExactly(Map.entry("nl.first8.Service.compute", 2.0));
+    }
+
+    @Test
+    void testPublish_LeavesOutExpiredLabels() {
+        MethodMetrics methodMetrics = new MethodMetrics(labels, false);
+        int compute = labels.intern("nl.first8.Service.compute");
+        int find = labels.intern("nl.first8.Repository.find");
+
+        methodMetrics.report(compute, 1.0, 0);
+        methodMetrics.report(find, 1.0, 0);
+        methodMetrics.expire(compute);
+        methodMetrics.publish();
+
+        assertThat(methodMetrics.collect().size()).isEqualTo(1);
+        assertThat(totals(methodMetrics.collect(), MethodMetrics.CPU_SECONDS_NAME)).containsOnlyKeys("nl.first8.Repository.find");
+    }
+
+    @Test
+    void testPublish_AddsThreadPoolLabel() {
+        MethodMetrics methodMetrics = new MethodMetrics(labels, false);
+        int compute = labels.intern("nl.first8.Service.compute");
+        int computeInExecutor = labels.intern("nl.first8.Service.compute", LabelTable.NO_OTHER_LABEL, "executor");
+
+        methodMetrics.report(compute, 1.0, 0);
+        methodMetrics.report(computeInExecutor, 2.0, 0);
+        methodMetrics.publish();
+
+        Map<String, Double> totals = new HashMap<>();
+        for (DataPointSnapshot dataPoint : methodMetrics.collect().get(0).getDataPoints()) {
+            totals.put(String.valueOf(dataPoint.getLabels().get("thread_pool")),
+                    ((CounterDataPointSnapshot) dataPoint).getValue());
+        }
+        assertThat(totals).containsOnly(Map.entry("null", 1.0), Map.entry("executor", 2.0));
+    }
+
+    private static Map<String, Double> totals(MetricSnapshots snapshots, String name) {
+        Map<String, Double> result = new HashMap<>();
+        for (MetricSnapshot snapshot : snapshots) {
+            if (!snapshot.getMetadata().getName().equals(name)) {
+                continue;
+            }
+            for (DataPointSnapshot dataPoint : snapshot.getDataPoints()) {
+                result.put(dataPoint.getLabels().get("method_name"), ((CounterDataPointSnapshot) dataPoint).getValue());
+            }
+        }
+        return result;
+    }
+}
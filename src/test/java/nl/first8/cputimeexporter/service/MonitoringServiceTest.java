@@ -1,8 +1,9 @@
 package nl.first8.cputimeexporter.service;
 
-import io.prometheus.metrics.core.datapoints.GaugeDataPoint;
-import io.prometheus.metrics.core.metrics.Gauge;
 import io.prometheus.metrics.model.registry.PrometheusRegistry;
+import io.prometheus.metrics.model.snapshots.CounterSnapshot.CounterDataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.DataPointSnapshot;
+import io.prometheus.metrics.model.snapshots.MetricSnapshot;
 import nl.first8.cputimeexporter.config.AgentProperties;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -13,117 +14,418 @@ import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
-import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
-import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 @ExtendWith(MockitoExtension.class)
 class MonitoringServiceTest {
 
-    @Mock
-    private AgentProperties properties;
+    private static final long THREAD_ID = 1L;
+    private static final long[] THREAD_IDS = {THREAD_ID};
 
     @Mock
-    private PrometheusRegistry registry;
+    private AgentProperties properties;
 
     @Mock
     private ThreadMXBean threadBean;
-    @Mock
-    private Gauge gauge;
-    @Mock
-    private GaugeDataPoint gaugeDataPoint;
+
+    private final PrometheusRegistry registry = new PrometheusRegistry();
 
     private MonitoringService monitoringService;
 
     @BeforeEach
     void setup() {
-        try (MockedStatic<Gauge> gaugeMockedStatic = Mockito.mockStatic(Gauge.class, RETURNS_DEEP_STUBS);
-             MockedStatic<ManagementFactory> managementFactoryMockedStatic = Mockito.mockStatic(ManagementFactory.class)) {
+        when(properties.getPackageNamesToMonitor()).thenReturn(List.of("com.example", "nl.first8"));
+        when(properties.getGroupingPackageNames()).thenReturn(List.of("com.example"));
+        when(properties.getFrameCacheSize()).thenReturn(64);
+        when(properties.getMaxMethodLabels()).thenReturn(2);
+        when(properties.getMethodLabelExpiryWindows()).thenReturn(10);
+        lenient().when(properties.getSampleRateMilliseconds()).thenReturn(10L);
+        lenient().when(properties.getSampleTimeMilliseconds()).thenReturn(100L);
+        lenient().when(properties.getSampleBufferSize()).thenReturn(4);
+        monitoringService = createMonitoringService(threadBean, registry);
+    }
 
-            managementFactoryMockedStatic.when(ManagementFactory::getThreadMXBean).thenReturn(threadBean);
-            when(threadBean.isThreadCpuTimeSupported()).thenReturn(true);
+    private MonitoringService createMonitoringService(ThreadMXBean threadMXBean, PrometheusRegistry prometheusRegistry) {
+        try (MockedStatic<ManagementFactory> managementFactoryMockedStatic = Mockito.mockStatic(ManagementFactory.class)) {
 
-            gaugeMockedStatic.when(() -> Gauge.builder()
-                    .name("method_cpu_time_in_seconds")
-                    .labelNames("method_name")
-                    .register(registry)).thenReturn(gauge);
-            monitoringService = new MonitoringService(properties, registry);
+            managementFactoryMockedStatic.when(ManagementFactory::getThreadMXBean).thenReturn(threadMXBean);
+            when(threadMXBean.isThreadCpuTimeSupported()).thenReturn(true);
+            return new MonitoringService(properties, prometheusRegistry);
         }
-
     }
 
     @Test
     void testExtractStats_FiltersAndCountsCorrectly() {
-        StackTraceElement[] myMethods = {
-                new StackTraceElement("com.example.MyClass", "myMethod", "MyClass.java", 10),
-        };
-        StackTraceElement[] myMethods2 = {
-                new StackTraceElement("com.example.MyClass2", "myMethod", "MyClass.java", 10)
+        WindowStats stats = new WindowStats();
+
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                new StackTraceElement("com.example.MyClass", "myMethod", "MyClass.java", 10))}, stats);
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                new StackTraceElement("com.example.MyClass2", "myMethod", "MyClass.java", 10))}, stats);
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                new StackTraceElement("nl.first8.example.MyClass", "myMethod", "MyClass.java", 10))}, stats);
+
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(0L, 3_000_000_000L); // 3 sec
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+
+        assertThat(stats.get(THREAD_ID).getSamples()).isEqualTo(3);
+        assertThat(counterTotals()).containsOnlyKeys("com.example", "nl.first8.example.MyClass.myMethod");
+        assertThat(counterTotals().get("com.example")).isCloseTo(2.0, within(1e-9)); // 3s * (2 / 3)
+        assertThat(counterTotals().get("nl.first8.example.MyClass.myMethod")).isCloseTo(1.0, within(1e-9)); // 3s * (1 / 3)
+    }
+
+    @Test
+    void testExtractStats_CountsFirstMonitoredFrame() {
+        WindowStats stats = new WindowStats();
+
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                new StackTraceElement("java.lang.Thread", "run", "Thread.java", 10),
+                new StackTraceElement("nl.first8.example.MyClass", "myMethod", "MyClass.java", 10),
+                new StackTraceElement("com.example.MyClass", "myMethod", "MyClass.java", 10))}, stats);
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                new StackTraceElement("java.lang.Thread", "run", "Thread.java", 10))}, stats);
+
+        assertThat(stats.get(THREAD_ID).getSamples()).isEqualTo(2);
+        assertThat(stats.get(THREAD_ID).getLabelCounts().size()).isEqualTo(1);
+    }
+
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_AttributesCpuTimeDeltaOnly() {
+        WindowStats stats = statsOf(THREAD_ID, new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10), 10);
+
+        // Cumulative CPU time of the thread at the end of each window
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(5_000_000_000L, 6_000_000_000L, 6_500_000_000L);
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS); // baseline
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+        assertThat(counterTotals().get("nl.first8.MyClass.myMethod")).isCloseTo(1.0, within(1e-9));
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+        assertThat(counterTotals().get("nl.first8.MyClass.myMethod")).isCloseTo(1.5, within(1e-9));
+    }
+
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_UsesActualSampleCount() {
+        WindowStats stats = statsOf(THREAD_ID, new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10), 37);
+
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(0L, 2_000_000_000L);
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+
+        // All samples were taken in the method, so it gets all CPU time regardless of the sample count
+        assertThat(counterTotals().get("nl.first8.MyClass.myMethod")).isCloseTo(2.0, within(1e-9));
+    }
+
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_SumMatchesTotalCpuTime() {
+        long[] threadIds = {1L, 2L, 3L};
+        long[][] cpuTimes = {
+                {1_000_000_000L, 1_250_000_000L, 2_000_000_000L},
+                {0L, 700_000_000L, 900_000_000L},
+                {4_000_000_000L, 4_000_000_000L, 4_300_000_000L},
         };
-        StackTraceElement[] myMethodsNotGrouped = {
-                new StackTraceElement("nl.first8.example.MyClass", "myMethod", "MyClass.java", 10)
+        for (int i = 0; i < threadIds.length; i++) {
+            when(threadBean.getThreadCpuTime(threadIds[i])).thenReturn(cpuTimes[i][0], cpuTimes[i][1], cpuTimes[i][2]);
+        }
+        StackTraceElement[] frames = {
+                new StackTraceElement("com.example.web.Controller", "get", "Controller.java", 10),
+                new StackTraceElement("nl.first8.Service", "compute", "Service.java", 10),
+                new StackTraceElement("nl.first8.Repository", "find", "Repository.java", 10),
         };
-        List<StackTraceElement[]> myMethod = new ArrayList<>();
-        myMethod.add(myMethods);
-        myMethod.add(myMethods2);
-        myMethod.add(myMethodsNotGrouped);
+        WindowStats stats = new WindowStats();
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, threadIds);
+
+        for (int window = 0; window < 2; window++) {
+            for (int sample = 0; sample < 100; sample++) {
+                for (int i = 0; i < threadIds.length; i++) {
+                    // Spread the samples of each thread unevenly over the frames
+                    StackTraceElement frame = frames[(sample * (i + 1) + window) % frames.length];
+                    monitoringService.extractStats(new ThreadInfo[]{threadInfo(threadIds[i], frame)}, stats);
+                }
+            }
+            monitoringService.calculateAndStoreMethodTimeInSeconds(stats, threadIds);
+            stats.clear();
+        }
+
+        long totalCpuTime = 0;
+        for (long[] threadCpuTimes : cpuTimes) {
+            totalCpuTime += threadCpuTimes[2] - threadCpuTimes[0];
+        }
+        double attributed = counterTotals().values().stream().mapToDouble(Double::doubleValue).sum();
+        assertThat(attributed).isCloseTo(totalCpuTime / 1_000_000_000.0, within(1e-9));
+    }
 
-        Map<Thread, List<StackTraceElement[]>> samples = Map.of(
-                Thread.currentThread(), myMethod
-        );
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_SkipsWhenCpuTimeUnavailable() {
+        WindowStats stats = statsOf(THREAD_ID, new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10), 10);
 
-        when(properties.getGroupingPackageNames()).thenReturn(Set.of("com.example"));
+        when(threadBean.getThreadCpuTime(anyLong())).thenReturn(1_000_000_000L, -1L);
 
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
 
-        Map<Thread, Map<String, Integer>> stats = monitoringService.extractStats(samples, method -> true);
+        assertThat(counterTotals()).isEmpty();
+    }
 
-        assertThat(stats)
-                .isNotEmpty()
-                .containsKey(Thread.currentThread());
-        assertThat(stats.get(Thread.currentThread())).containsEntry("com.example", 2);
-        assertThat(stats.get(Thread.currentThread())).containsEntry("nl.first8.example.MyClass.myMethod", 1);
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_HandlesThreadIdReuse() {
+        WindowStats stats = statsOf(THREAD_ID, new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10), 10);
 
+        // The thread died, and a new thread with the same id used 0.2 seconds so far
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(9_000_000_000L, 200_000_000L);
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+
+        assertThat(counterTotals().get("nl.first8.MyClass.myMethod")).isCloseTo(0.2, within(1e-9));
     }
 
     @Test
-    void testCalculateAndStoreMethodTimeInSeconds_UpdatesGaugeCorrectly() {
-        Map<Thread, Map<String, Integer>> stats = Map.of(
-                Thread.currentThread(), Map.of("com.example.MyClass.myMethod", 10)
-        );
+    void testCalculateAndStoreMethodTimeInSeconds_AttributesAllCpuTimeOfNewThreads() {
+        long newThreadId = 2L;
+        WindowStats stats = statsOf(newThreadId, new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10), 10);
 
-        when(threadBean.getThreadCpuTime(anyLong())).thenReturn(1_000_000_000L); // 1 sec
-        when(gauge.labelValues(any())).thenReturn(gaugeDataPoint);
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(1_000_000_000L);
+        when(threadBean.getThreadCpuTime(newThreadId)).thenReturn(300_000_000L);
 
-        monitoringService.calculateAndStoreMethodTimeInSeconds(stats);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, new long[]{newThreadId});
 
-        verify(gaugeDataPoint).inc(0.1); // 1s * (10 / 100)
+        assertThat(counterTotals().get("nl.first8.MyClass.myMethod")).isCloseTo(0.3, within(1e-9));
+    }
 
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_FoldsMethodsBeyondTheLimit() {
+        WindowStats stats = new WindowStats();
+        String[] methods = {"compute", "find", "map"};
+        int[] occurrences = {5, 3, 2};
+        for (int i = 0; i < methods.length; i++) {
+            for (int sample = 0; sample < occurrences[i]; sample++) {
+                monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                        new StackTraceElement("nl.first8.Service", methods[i], "Service.java", 10))}, stats);
+            }
+        }
+
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(0L, 1_000_000_000L);
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+
+        // Only the two methods with the most CPU time keep their own label
+        assertThat(counterTotals()).containsOnlyKeys("nl.first8.Service.compute", "nl.first8.Service.find", "nl.first8.*");
+        assertThat(counterTotals().get("nl.first8.*")).isCloseTo(0.2, within(1e-9));
     }
 
     @Test
-    void testCalculateAndStoreMethodTimeInSeconds_SkipsWhenCpuTimeUnavailable() {
-        Map<Thread, Map<String, Integer>> stats = Map.of(
-                Thread.currentThread(), Map.of("com.example.MyClass.myMethod", 10)
-        );
+    void testCalculateAndStoreMethodTimeInSeconds_ReportsCpuTimePerThreadPool() {
+        when(properties.getThreadPoolPatterns()).thenReturn(Map.of("http-nio-*-exec-*", "http-nio-exec"));
+        PrometheusRegistry poolRegistry = new PrometheusRegistry();
+        ThreadMXBean poolThreadBean = mock(ThreadMXBean.class);
+        monitoringService = createMonitoringService(poolThreadBean, poolRegistry);
+        long batchThreadId = 2L;
+        StackTraceElement frame = new StackTraceElement("nl.first8.Service", "compute", "Service.java", 10);
+        WindowStats stats = statsOf(THREAD_ID, frame, 1);
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(batchThreadId, frame)}, stats);
 
-        when(threadBean.getThreadCpuTime(anyLong())).thenReturn(-1L);
+        ThreadInfo requestThread = mock(ThreadInfo.class);
+        when(requestThread.getThreadName()).thenReturn("http-nio-8080-exec-1");
+        when(poolThreadBean.getThreadInfo(THREAD_ID, 0)).thenReturn(requestThread);
+        ThreadInfo batchThread = mock(ThreadInfo.class);
+        when(batchThread.getThreadName()).thenReturn("batch-1");
+        when(poolThreadBean.getThreadInfo(batchThreadId, 0)).thenReturn(batchThread);
+        when(poolThreadBean.getThreadCpuTime(THREAD_ID)).thenReturn(0L, 3_000_000_000L);
+        when(poolThreadBean.getThreadCpuTime(batchThreadId)).thenReturn(0L, 1_000_000_000L);
 
-        try (MockedStatic<Gauge> gaugeMockedStatic = Mockito.mockStatic(Gauge.class, RETURNS_DEEP_STUBS)) {
-            gaugeMockedStatic.when(() -> Gauge.builder().register(registry)).thenReturn(gauge);
-            monitoringService.calculateAndStoreMethodTimeInSeconds(stats);
+        long[] threadIds = {THREAD_ID, batchThreadId};
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), threadIds);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, threadIds);
 
-            verifyNoInteractions(gaugeDataPoint);
+        Map<String, Double> totals = new HashMap<>();
+        for (DataPointSnapshot dataPoint : poolRegistry.scrape(name -> name.equals("method_cpu_seconds")).get(0).getDataPoints()) {
+            assertThat(dataPoint.getLabels().get("method_name")).isEqualTo("nl.first8.Service.compute");
+            totals.put(dataPoint.getLabels().get("thread_pool"), ((CounterDataPointSnapshot) dataPoint).getValue());
         }
+        assertThat(totals).containsOnlyKeys("http-nio-exec", ThreadPools.OTHER_THREAD_POOL);
+        assertThat(totals.get("http-nio-exec")).isCloseTo(3.0, within(1e-9));
+        assertThat(totals.get(ThreadPools.OTHER_THREAD_POOL)).isCloseTo(1.0, within(1e-9));
+    }
+
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_AttributesAllocatedBytesBySampleCount() {
+        com.sun.management.ThreadMXBean allocationThreadBean = mock(com.sun.management.ThreadMXBean.class);
+        when(allocationThreadBean.isThreadAllocatedMemorySupported()).thenReturn(true);
+        when(allocationThreadBean.getThreadCpuTime(THREAD_IDS)).thenReturn(new long[]{0L}, new long[]{1_000_000_000L});
+        when(allocationThreadBean.getThreadAllocatedBytes(THREAD_IDS)).thenReturn(new long[]{1_000L}, new long[]{4_001_000L});
+        PrometheusRegistry allocationRegistry = new PrometheusRegistry();
+        MonitoringService service = createMonitoringService(allocationThreadBean, allocationRegistry);
+
+        WindowStats stats = new WindowStats();
+        for (int sample = 0; sample < 4; sample++) {
+            StackTraceElement frame = sample == 0
+                    ? new StackTraceElement("nl.first8.Parser", "parse", "Parser.java", 10)
+                    : new StackTraceElement("nl.first8.Mapper", "map", "Mapper.java", 10);
+            service.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID, frame)}, stats);
+        }
+        service.calculateAndStoreMethodTimeInSeconds(new WindowStats(), THREAD_IDS);
+        service.calculateAndStoreMethodTimeInSeconds(stats, THREAD_IDS);
+
+        // Both batched calls are used, and the allocated bytes follow the sample counts like the CPU time does
+        verify(allocationThreadBean).setThreadAllocatedMemoryEnabled(true);
+        assertThat(counterTotals(allocationRegistry, "method_allocated_bytes"))
+                .containsEntry("nl.first8.Parser.parse", 1_000_000.0)
+                .containsEntry("nl.first8.Mapper.map", 3_000_000.0);
+        assertThat(counterTotals(allocationRegistry, "method_cpu_seconds").get("nl.first8.Mapper.map"))
+                .isCloseTo(0.75, within(1e-9));
+    }
+
+    @Test
+    void testCalculateAndStoreMethodTimeInSeconds_SpreadsCarrierCpuTimeOverVirtualThreadSamples() {
+        long[] threadIds = {THREAD_ID, 5L, 6L};
+        long[] carrierThreadIds = {5L, 6L};
+        when(threadBean.getThreadCpuTime(THREAD_ID)).thenReturn(0L, 1_000_000_000L);
+        when(threadBean.getThreadCpuTime(5L)).thenReturn(0L, 600_000_000L);
+        when(threadBean.getThreadCpuTime(6L)).thenReturn(0L, 400_000_000L);
+
+        WindowStats stats = new WindowStats();
+        for (int sample = 0; sample < 8; sample++) {
+            monitoringService.extractStats(new ThreadInfo[]{threadInfo(CarrierThreads.POOL_THREAD_ID,
+                    new StackTraceElement("nl.first8.Handler", "handle", "Handler.java", 10))}, stats);
+        }
+        for (int sample = 0; sample < 2; sample++) {
+            monitoringService.extractStats(new ThreadInfo[]{threadInfo(5L,
+                    new StackTraceElement("java.util.concurrent.ForkJoinPool", "runWorker", "ForkJoinPool.java", 10))}, stats);
+        }
+        monitoringService.extractStats(new ThreadInfo[]{threadInfo(THREAD_ID,
+                new StackTraceElement("nl.first8.Batch", "run", "Batch.java", 10))}, stats);
+
+        monitoringService.calculateAndStoreMethodTimeInSeconds(new WindowStats(), threadIds, carrierThreadIds);
+        monitoringService.calculateAndStoreMethodTimeInSeconds(stats, threadIds, carrierThreadIds);
+
+        // The carriers used 1 second in total, of which the virtual threads got 8 of the 10 samples
+        assertThat(counterTotals().get("nl.first8.Handler.handle")).isCloseTo(0.8, within(1e-9));
+        assertThat(counterTotals().get("nl.first8.Batch.run")).isCloseTo(1.0, within(1e-9));
+    }
+
+    @Test
+    void testReload_AppliesPackagesFromNextWindow() {
+        AgentProperties reloaded = mock(AgentProperties.class);
+        when(reloaded.getPackageNamesToMonitor()).thenReturn(List.of("org.example"));
+        when(reloaded.getGroupingPackageNames()).thenReturn(List.of());
+        StackTraceElement oldFrame = new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10);
+        StackTraceElement newFrame = new StackTraceElement("org.example.MyClass", "myMethod", "MyClass.java", 10);
+
+        monitoringService.reload(reloaded);
+        // Not applied until the monitoring thread starts the next window
+        assertThat(statsOf(THREAD_ID, newFrame, 1).get(THREAD_ID).getLabelCounts().size()).isZero();
+
+        monitoringService.applyReloadedProperties();
+        assertThat(statsOf(THREAD_ID, newFrame, 1).get(THREAD_ID).getLabelCounts().size()).isEqualTo(1);
+        assertThat(statsOf(THREAD_ID, oldFrame, 1).get(THREAD_ID).getLabelCounts().size()).isZero();
+    }
+
+    @Test
+    void testPause_ParksMonitoringThreadUntilStartedAgain() throws InterruptedException {
+        lenient().when(threadBean.getAllThreadIds()).thenReturn(new long[0]);
+        lenient().when(threadBean.getThreadInfo(any(long[].class), anyInt())).thenReturn(new ThreadInfo[0]);
+
+        monitoringService.pause();
+        Thread monitoringThread = monitoringService.getMonitoringThread();
+        awaitThreadState(monitoringThread, Thread.State.WAITING);
+        assertThat(monitoringService.getState()).isEqualTo(MonitoringService.State.PAUSED);
+
+        monitoringService.start();
+        assertThat(monitoringService.getMonitoringThread()).isSameAs(monitoringThread);
+        assertThat(monitoringService.getState()).isEqualTo(MonitoringService.State.RUNNING);
+
+        monitoringService.stop();
+        assertThat(monitoringThread.isAlive()).isFalse();
+        assertThat(monitoringService.getState()).isEqualTo(MonitoringService.State.STOPPED);
     }
-}
 
+    @Test
+    void testConsumeWindow_LeavesBatchesSampledAfterTheWindowForTheNext() throws InterruptedException {
+        SampleRing ring = monitoringService.getSampleRing();
+        StackTraceElement frame = new StackTraceElement("nl.first8.MyClass", "myMethod", "MyClass.java", 10);
+        ThreadInfo[] snapshot = {threadInfo(THREAD_ID, frame)};
+        for (long timestamp : new long[]{100, 200, 300}) {
+            ring.claim().fill(timestamp, THREAD_IDS, snapshot);
+            ring.publish();
+        }
+
+        WindowStats stats = monitoringService.consumeWindow(300);
+
+        assertThat(stats.get(THREAD_ID).getSamples()).isEqualTo(2);
+        assertThat(ring.peek().getTimestampNanos()).isEqualTo(300);
+    }
+
+    @Test
+    void testSetSampleRateMilliseconds_RejectsRateOutsideWindow() {
+        assertThatThrownBy(() -> monitoringService.setSampleRateMilliseconds(0))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testConstructor_SkipsAllocatedBytesWhenUnsupported() {
+        assertThat(registry.scrape(name -> name.equals("method_allocated_bytes"))).isEmpty();
+    }
+
+    /**
+     * @return the value of each data point of the method CPU time counter
+     */
+    private Map<String, Double> counterTotals() {
+        return counterTotals(registry, "method_cpu_seconds");
+    }
+
+    private static Map<String, Double> counterTotals(PrometheusRegistry prometheusRegistry, String metricName) {
+        Map<String, Double> result = new HashMap<>();
+        for (MetricSnapshot snapshot : prometheusRegistry.scrape(name -> name.equals(metricName))) {
+            for (DataPointSnapshot dataPoint : snapshot.getDataPoints()) {
+                result.put(dataPoint.getLabels().get("method_name"), ((CounterDataPointSnapshot) dataPoint).getValue());
+            }
+        }
+        return result;
+    }
+
+    private WindowStats statsOf(long threadId, StackTraceElement frame, int occurrences) {
+        WindowStats stats = new WindowStats();
+        ThreadInfo[] snapshot = {threadInfo(threadId, frame)};
+        for (int i = 0; i < occurrences; i++) {
+            monitoringService.extractStats(snapshot, stats);
+        }
+        return stats;
+    }
+
+    private static void awaitThreadState(Thread thread, Thread.State expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (thread.getState() != expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(thread.getState()).isEqualTo(expected);
+    }
+
+    private static ThreadInfo threadInfo(long threadId, StackTraceElement... stackTrace) {
+        ThreadInfo info = mock(ThreadInfo.class);
+        when(info.getThreadId()).thenReturn(threadId);
+        when(info.getStackTrace()).thenReturn(stackTrace);
+        return info;
+    }
+}
@@ -0,0 +1,190 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ProcThreadCpuTimeTest {
+
+    @TempDir
+    Path taskDirectory;
+
+    @Mock
+    private ThreadMXBean threadBean;
+
+    private final List<long[]> fallbackReads = new ArrayList<>();
+
+    @Test
+    void testParseRunTime_ReadsFirstField() {
+        assertThat(parse("123456789 4242 17\n")).isEqualTo(123_456_789L);
+    }
+
+    @Test
+    void testParseRunTime_RejectsIncompleteContents() {
+        assertThat(parse("")).isEqualTo(ThreadUsageTracker.UNAVAILABLE);
+        assertThat(parse("12345")).isEqualTo(ThreadUsageTracker.UNAVAILABLE);
+    }
+
+    @Test
+    void testCommName_TruncatesToBytesTheKernelKeeps() {
+        assertThat(ProcThreadCpuTime.commName("worker-xyz-long-name-here")).isEqualTo("worker-xyz-long");
+        assertThat(ProcThreadCpuTime.commName("main")).isEqualTo("main");
+        assertThat(ProcThreadCpuTime.commName("werker-éééé"))
+                .isEqualTo(new String("werker-éééé".getBytes(StandardCharsets.UTF_8), 0, 15,
+                        StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    void testRead_ReadsMappedThreadsFromSchedstat() throws IOException {
+        task(101, "worker-1", 5_000_000);
+        task(102, "worker-2", 7_000_000);
+        threads(thread(1L, "worker-1"), thread(2L, "worker-2"));
+        when(threadBean.getThreadCpuTime(1L)).thenReturn(5_000_000L);
+        when(threadBean.getThreadCpuTime(2L)).thenReturn(7_000_000L);
+
+        try (ProcThreadCpuTime reader = reader()) {
+            assertThat(reader.read(new long[]{1L, 2L})).startsWith(5_000_000L, 7_000_000L);
+            task(101, "worker-1", 9_000_000);
+
+            assertThat(reader.read(new long[]{1L, 2L})).startsWith(9_000_000L, 7_000_000L);
+            assertThat(reader.mappedCount()).isEqualTo(2);
+            assertThat(fallbackReads).isEmpty();
+        }
+    }
+
+    @Test
+    void testRead_FallsBackForThreadsWithTheSameTruncatedName() throws IOException {
+        task(101, "pool-1-thread-1", 5_000_000);
+        task(102, "pool-1-thread-1", 7_000_000);
+        threads(thread(1L, "pool-1-thread-10"), thread(2L, "pool-1-thread-11"));
+
+        try (ProcThreadCpuTime reader = reader()) {
+            assertThat(reader.read(new long[]{1L, 2L})).startsWith(1L, 2L);
+            assertThat(reader.mappedCount()).isZero();
+            assertThat(fallbackReads).containsExactly(new long[]{1L, 2L});
+        }
+    }
+
+    @Test
+    void testRead_FallsBackWhenCpuTimeDoesNotMatch() throws IOException {
+        // A thread that was renamed by another thread keeps its old native name
+        task(101, "worker-1", 5_000_000);
+        threads(thread(1L, "worker-1"));
+        when(threadBean.getThreadCpuTime(1L)).thenReturn(900_000_000L);
+
+        try (ProcThreadCpuTime reader = reader()) {
+            assertThat(reader.read(new long[]{1L})).startsWith(1L);
+            assertThat(reader.mappedCount()).isZero();
+        }
+    }
+
+    @Test
+    void testRead_ReturnsUnavailableForEndedThreads() throws IOException {
+        task(101, "worker-1", 5_000_000);
+        threads(thread(1L, "worker-1"));
+        when(threadBean.getThreadCpuTime(1L)).thenReturn(5_000_000L);
+
+        try (ProcThreadCpuTime reader = reader()) {
+            reader.read(new long[]{1L});
+            Files.write(taskDirectory.resolve("101").resolve("schedstat"), new byte[0]);
+
+            assertThat(reader.read(new long[]{1L})).startsWith(ThreadUsageTracker.UNAVAILABLE);
+            assertThat(reader.mappedCount()).isZero();
+        }
+    }
+
+    @Test
+    void testRead_MatchesThreadMXBeanOnLinux() throws InterruptedException {
+        ThreadMXBean platformThreadBean = ManagementFactory.getThreadMXBean();
+        ProcThreadCpuTime reader = ProcThreadCpuTime.create(platformThreadBean, this::fallback);
+        assumeTrue(reader != null, "/proc/self/task is not available");
+
+        CountDownLatch burned = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
+        Thread worker = new Thread(() -> {
+            long end = System.nanoTime() + 50_000_000L;
+            while (System.nanoTime() < end) {
+                Thread.onSpinWait();
+            }
+            burned.countDown();
+            try {
+                read.await();
+            }
+            catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }, "proc-cpu-time-test-worker");
+        worker.start();
+        try (reader) {
+            burned.await();
+            long cpuTime = reader.read(new long[]{worker.getId()})[0];
+
+            assertThat(reader.mappedCount()).isEqualTo(1);
+            assertThat(fallbackReads).isEmpty();
+            assertThat(cpuTime).isCloseTo(platformThreadBean.getThreadCpuTime(worker.getId()),
+                    within(ProcThreadCpuTime.MAPPING_TOLERANCE_NANOSECONDS));
+        }
+        finally {
+            read.countDown();
+            worker.join();
+        }
+    }
+
+    private ProcThreadCpuTime reader() {
+        return new ProcThreadCpuTime(taskDirectory, threadBean, this::fallback);
+    }
+
+    private long[] fallback(long[] threadIds) {
+        fallbackReads.add(threadIds);
+        // The thread ids as values, to tell them apart from the schedstat values
+        return Arrays.copyOf(threadIds, threadIds.length);
+    }
+
+    private void threads(ThreadInfo... threadInfos) {
+        long[] threadIds = Arrays.stream(threadInfos).mapToLong(ThreadInfo::getThreadId).toArray();
+        when(threadBean.getThreadInfo(threadIds, 0)).thenReturn(threadInfos);
+    }
+
+    private static ThreadInfo thread(long threadId, String name) {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        lenient().when(threadInfo.getThreadId()).thenReturn(threadId);
+        lenient().when(threadInfo.getThreadName()).thenReturn(name);
+        return threadInfo;
+    }
+
+    private void task(int tid, String comm, long runTime) throws IOException {
+        Path task = Files.createDirectories(taskDirectory.resolve(Integer.toString(tid)));
+        Files.writeString(task.resolve("comm"), ProcThreadCpuTime.commName(comm) + "\n");
+        Files.writeString(task.resolve("schedstat"), runTime + " 1000 3\n");
+    }
+
+    private static long parse(String schedstat) {
+        byte[] bytes = schedstat.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(128);
+        buffer.put(bytes);
+        return ProcThreadCpuTime.parseRunTime(buffer, bytes.length);
+    }
+}
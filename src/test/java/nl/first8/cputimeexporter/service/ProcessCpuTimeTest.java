@@ -0,0 +1,21 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ProcessCpuTimeTest {
+
+    @Test
+    void testRead_ReturnsIncreasingCpuTime() {
+        ProcessCpuTime processCpuTime = ProcessCpuTime.create();
+        assumeTrue(processCpuTime != null, "Process CPU time is not available");
+
+        long first = processCpuTime.read();
+        long second = processCpuTime.read();
+
+        assertThat(first).isPositive();
+        assertThat(second).isGreaterThanOrEqualTo(first);
+    }
+}
@@ -0,0 +1,90 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.lang.management.ThreadInfo;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class SafepointSamplerTest {
+
+    private static final long[] THREAD_IDS = {1L, 2L};
+
+    @Mock
+    private ThreadSampler threadSampler;
+
+    @Mock
+    private AgentMetrics agentMetrics;
+
+    @Test
+    void testPublish_DropsAndCountsSamplesWhenRingIsFull() {
+        SampleRing ring = new SampleRing(2);
+        SafepointSampler sampler = new SafepointSampler(threadSampler, ring, agentMetrics, Thread.currentThread(), 10);
+        when(threadSampler.getThreadIds()).thenReturn(THREAD_IDS);
+        ThreadInfo[] snapshot = {threadInfo(2L)};
+
+        for (long timestamp = 1; timestamp <= 3; timestamp++) {
+            sampler.publish(timestamp, snapshot);
+        }
+
+        verify(agentMetrics, times(1)).droppedSampleBatch();
+        SampleBatch batch = ring.peek();
+        assertThat(batch.getTimestampNanos()).isEqualTo(1);
+        assertThat(batch.getKnownThreadIds()).isSameAs(THREAD_IDS);
+        assertThat(batch.size()).isEqualTo(1);
+        assertThat(batch.getThreadId(0)).isEqualTo(2L);
+    }
+
+    @Test
+    void testPublish_SkipsThreadsThatEndedWhileSampled() {
+        SampleRing ring = new SampleRing(2);
+        SafepointSampler sampler = new SafepointSampler(threadSampler, ring, agentMetrics, Thread.currentThread(), 10);
+        when(threadSampler.getThreadIds()).thenReturn(THREAD_IDS);
+
+        sampler.publish(1, new ThreadInfo[]{null, threadInfo(2L)});
+
+        SampleBatch batch = ring.peek();
+        assertThat(batch.size()).isEqualTo(1);
+        assertThat(batch.getThreadId(0)).isEqualTo(2L);
+    }
+
+    @Test
+    void testRun_KeepsSamplingAfterAFailedSample() throws InterruptedException {
+        SampleRing ring = new SampleRing(4);
+        SafepointSampler sampler = new SafepointSampler(threadSampler, ring, agentMetrics, Thread.currentThread(),
+                1_000_000);
+        ThreadInfo[] snapshot = {threadInfo(2L)};
+        when(threadSampler.getThreadIds()).thenReturn(THREAD_IDS);
+        when(threadSampler.sample()).thenThrow(new IllegalStateException("Thread ended")).thenReturn(snapshot);
+
+        sampler.start();
+        try {
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (ring.peek() == null && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        finally {
+            sampler.stop();
+        }
+
+        verify(agentMetrics).failedSample();
+        assertThat(ring.peek()).isNotNull();
+        assertThat(ring.peek().getThreadId(0)).isEqualTo(2L);
+    }
+
+    private static ThreadInfo threadInfo(long threadId) {
+        ThreadInfo info = mock(ThreadInfo.class);
+        when(info.getThreadId()).thenReturn(threadId);
+        when(info.getStackTrace()).thenReturn(new StackTraceElement[0]);
+        return info;
+    }
+}
@@ -0,0 +1,79 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SampleRateControllerTest {
+
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long TEN_MILLISECONDS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    void testUpdate_KeepsFixedRateWhenNotAdaptive() {
+        SampleRateController controller = new SampleRateController(10, 200, 0.01, false);
+
+        controller.update(TimeUnit.MILLISECONDS.toNanos(500), WINDOW_NANOS);
+
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TEN_MILLISECONDS);
+    }
+
+    @Test
+    void testUpdate_SlowsDownWhenOverBudget() {
+        SampleRateController controller = new SampleRateController(10, 200, 0.01, true);
+
+        // 2% of a core used, twice the budget
+        controller.update(TimeUnit.MILLISECONDS.toNanos(20), WINDOW_NANOS);
+
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(25));
+    }
+
+    @Test
+    void testUpdate_LimitsStepAndMaximum() {
+        SampleRateController controller = new SampleRateController(10, 100, 0.01, true);
+
+        controller.update(WINDOW_NANOS, WINDOW_NANOS);
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(40));
+
+        controller.update(WINDOW_NANOS, WINDOW_NANOS);
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    void testUpdate_SpeedsUpAgainWithHeadroom() {
+        SampleRateController controller = new SampleRateController(10, 200, 0.01, true);
+        controller.update(WINDOW_NANOS, WINDOW_NANOS);
+
+        // Far below the budget, for instance because most threads are gone
+        controller.update(TimeUnit.MILLISECONDS.toNanos(1), WINDOW_NANOS);
+        controller.update(TimeUnit.MILLISECONDS.toNanos(1), WINDOW_NANOS);
+
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TEN_MILLISECONDS);
+    }
+
+    @Test
+    void testUpdate_KeepsRateCloseToTarget() {
+        SampleRateController controller = new SampleRateController(10, 200, 0.01, true);
+        controller.update(TimeUnit.MILLISECONDS.toNanos(16), WINDOW_NANOS);
+        long sampleRate = controller.getSampleRateNanos();
+
+        controller.update(TimeUnit.MILLISECONDS.toNanos(8), WINDOW_NANOS);
+
+        assertThat(controller.getSampleRateNanos()).isEqualTo(sampleRate);
+    }
+
+    @Test
+    void testSetSampleRateMilliseconds_StartsOverFromNewRate() {
+        SampleRateController controller = new SampleRateController(10, 100, 0.01, true);
+        controller.update(WINDOW_NANOS, WINDOW_NANOS);
+
+        controller.setSampleRateMilliseconds(150);
+
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(150));
+        // The maximum does not keep the rate below the new minimum
+        controller.update(WINDOW_NANOS, WINDOW_NANOS);
+        assertThat(controller.getSampleRateNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(150));
+    }
+}
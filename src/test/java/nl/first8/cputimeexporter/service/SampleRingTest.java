@@ -0,0 +1,67 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ThreadInfo;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SampleRingTest {
+
+    private static final ThreadInfo[] NO_THREADS = new ThreadInfo[0];
+    private static final long[] THREAD_IDS = {1L};
+
+    @Test
+    void testCapacity_RoundsUpToPowerOfTwo() {
+        assertThat(new SampleRing(1).capacity()).isEqualTo(1);
+        assertThat(new SampleRing(3).capacity()).isEqualTo(4);
+        assertThat(new SampleRing(256).capacity()).isEqualTo(256);
+    }
+
+    @Test
+    void testPeek_ReturnsBatchesInPublishOrder() {
+        SampleRing ring = new SampleRing(4);
+        assertThat(ring.peek()).isNull();
+
+        for (int round = 0; round < 3; round++) {
+            publish(ring, 1);
+            publish(ring, 2);
+
+            assertThat(ring.peek().getTimestampNanos()).isEqualTo(1);
+            ring.release();
+            assertThat(ring.peek().getTimestampNanos()).isEqualTo(2);
+            ring.release();
+            assertThat(ring.peek()).isNull();
+        }
+    }
+
+    @Test
+    void testClaim_ReturnsNullWhenFullUntilReleased() {
+        SampleRing ring = new SampleRing(2);
+        publish(ring, 1);
+        publish(ring, 2);
+
+        assertThat(ring.claim()).isNull();
+
+        ring.peek();
+        ring.release();
+        assertThat(ring.claim()).isNotNull();
+    }
+
+    @Test
+    void testClear_ReleasesAllBatches() {
+        SampleRing ring = new SampleRing(2);
+        publish(ring, 1);
+        publish(ring, 2);
+
+        ring.clear();
+
+        assertThat(ring.peek()).isNull();
+        assertThat(ring.claim()).isNotNull();
+    }
+
+    private static void publish(SampleRing ring, long timestampNanos) {
+        ring.claim().fill(timestampNanos, THREAD_IDS, NO_THREADS);
+        ring.publish();
+    }
+}
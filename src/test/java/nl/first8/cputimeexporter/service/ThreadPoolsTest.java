@@ -0,0 +1,97 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ThreadPoolsTest {
+
+    @Mock
+    private ThreadMXBean threadBean;
+
+    private final LabelTable labels = new LabelTable();
+    private ThreadPools threadPools;
+
+    @BeforeEach
+    void setUp() {
+        Map<String, String> patterns = new LinkedHashMap<>();
+        patterns.put("http-nio-*-exec-*", "http-nio-exec");
+        patterns.put("scheduling-*", "scheduler");
+        patterns.put("*-exec-*", "executor");
+        threadPools = new ThreadPools(patterns, threadBean, labels);
+    }
+
+    @Test
+    void testMatch_UsesFirstPatternMatchingTheWholeName() {
+        assertThat(threadPools.name(threadPools.match("http-nio-8080-exec-12"))).isEqualTo("http-nio-exec");
+        assertThat(threadPools.name(threadPools.match("batch-exec-3"))).isEqualTo("executor");
+        assertThat(threadPools.name(threadPools.match("scheduling-1"))).isEqualTo("scheduler");
+        assertThat(threadPools.name(threadPools.match("my-scheduling-1"))).isEqualTo(ThreadPools.OTHER_THREAD_POOL);
+        assertThat(threadPools.name(threadPools.match("main"))).isEqualTo(ThreadPools.OTHER_THREAD_POOL);
+    }
+
+    @Test
+    void testIndexOf_LooksUpThreadNameOncePerThread() {
+        ThreadInfo threadInfo = mock(ThreadInfo.class);
+        when(threadInfo.getThreadName()).thenReturn("http-nio-8080-exec-1");
+        when(threadBean.getThreadInfo(42L, 0)).thenReturn(threadInfo);
+
+        int index = threadPools.indexOf(42);
+        threadPools.endWindow();
+        assertThat(threadPools.indexOf(42)).isEqualTo(index);
+
+        assertThat(threadPools.name(index)).isEqualTo("http-nio-exec");
+        verify(threadBean, times(1)).getThreadInfo(42L, 0);
+    }
+
+    @Test
+    void testIndexOf_LooksUpThreadNameAgainAfterThreadWasNotAttributed() {
+        when(threadBean.getThreadInfo(42L, 0)).thenReturn(null);
+
+        threadPools.indexOf(42);
+        threadPools.endWindow();
+        threadPools.endWindow();
+        threadPools.endWindow();
+        threadPools.indexOf(42);
+
+        verify(threadBean, times(2)).getThreadInfo(42L, 0);
+    }
+
+    @Test
+    void testIndexOf_PutsThreadsWithoutNameInOtherThreadPool() {
+        assertThat(threadPools.name(threadPools.indexOf(CarrierThreads.POOL_THREAD_ID)))
+                .isEqualTo(ThreadPools.OTHER_THREAD_POOL);
+    }
+
+    @Test
+    void testLabel_ReportsOtherLabelInSameThreadPool() {
+        int other = labels.intern("nl.first8.*");
+        int compute = labels.intern("nl.first8.Service.compute", other);
+        int scheduler = threadPools.match("scheduling-1");
+
+        int poolLabelId = threadPools.label(compute, scheduler);
+
+        assertThat(threadPools.label(compute, scheduler)).isEqualTo(poolLabelId);
+        assertThat(labels.name(poolLabelId)).isEqualTo("nl.first8.Service.compute");
+        assertThat(labels.threadPool(poolLabelId)).isEqualTo("scheduler");
+        int poolOtherLabelId = labels.otherLabelId(poolLabelId);
+        assertThat(labels.name(poolOtherLabelId)).isEqualTo("nl.first8.*");
+        assertThat(labels.threadPool(poolOtherLabelId)).isEqualTo("scheduler");
+        assertThat(labels.otherLabelId(poolOtherLabelId)).isEqualTo(LabelTable.NO_OTHER_LABEL);
+        assertThat(threadPools.label(compute, threadPools.match("main"))).isNotEqualTo(poolLabelId);
+    }
+}
@@ -0,0 +1,115 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+
+import static nl.first8.cputimeexporter.service.MonitoringService.COMPUTATION_THREAD_NAME;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.lenient;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+class ThreadSamplerTest {
+
+    private static final int MAX_STACK_DEPTH = 16;
+
+    @Mock
+    private ThreadMXBean threadBean;
+
+    @Test
+    void testSample_OnlyCapturesStacksOfRunnableThreads() {
+        ThreadInfo runnable = threadInfo(1L, "worker-1", Thread.State.RUNNABLE);
+        ThreadInfo waiting = threadInfo(2L, "worker-2", Thread.State.WAITING);
+        ThreadInfo[] stacks = {runnable};
+
+        when(threadBean.getAllThreadIds()).thenReturn(new long[]{1L, 2L});
+        when(threadBean.getThreadInfo(new long[]{1L, 2L}, 0)).thenReturn(new ThreadInfo[]{runnable, waiting});
+        when(threadBean.getThreadInfo(new long[]{1L}, MAX_STACK_DEPTH)).thenReturn(stacks);
+
+        ThreadSampler sampler = new ThreadSampler(threadBean, MAX_STACK_DEPTH, 1000, false);
+
+        assertThat(sampler.sample()).containsExactly(runnable);
+        verify(threadBean, never()).getThreadInfo(new long[]{1L, 2L}, MAX_STACK_DEPTH);
+    }
+
+    @Test
+    void testSample_SkipsStackCaptureWhenNothingIsRunnable() {
+        ThreadInfo blocked = threadInfo(1L, "worker-1", Thread.State.BLOCKED);
+
+        when(threadBean.getAllThreadIds()).thenReturn(new long[]{1L});
+        when(threadBean.getThreadInfo(new long[]{1L}, 0)).thenReturn(new ThreadInfo[]{blocked, null});
+
+        ThreadSampler sampler = new ThreadSampler(threadBean, MAX_STACK_DEPTH, 1000, false);
+
+        assertThat(sampler.sample()).isEmpty();
+        verify(threadBean, never()).getThreadInfo(any(long[].class), eq(MAX_STACK_DEPTH));
+    }
+
+    @Test
+    void testSample_HidesAgentThreadsBeforeSampling() {
+        ThreadInfo agent = threadInfo(1L, COMPUTATION_THREAD_NAME, Thread.State.RUNNABLE);
+        ThreadInfo worker = threadInfo(2L, "worker", Thread.State.RUNNABLE);
+
+        when(threadBean.getAllThreadIds()).thenReturn(new long[]{1L, 2L});
+        when(threadBean.getThreadInfo(new long[]{1L, 2L}, 0)).thenReturn(new ThreadInfo[]{agent, worker});
+        when(threadBean.getThreadInfo(new long[]{2L}, 0)).thenReturn(new ThreadInfo[]{worker});
+        when(threadBean.getThreadInfo(new long[]{2L}, MAX_STACK_DEPTH)).thenReturn(new ThreadInfo[]{worker});
+
+        ThreadSampler sampler = new ThreadSampler(threadBean, MAX_STACK_DEPTH, 1000, true);
+
+        assertThat(sampler.sample()).containsExactly(worker);
+        assertThat(sampler.getThreadIds()).containsExactly(2L);
+    }
+
+    @Test
+    void testSample_SkipsRunnableThreadsThatUsedNoCpu() {
+        ThreadInfo busy = threadInfo(1L, "worker-1", Thread.State.RUNNABLE);
+        ThreadInfo blockedInIo = threadInfo(2L, "worker-2", Thread.State.RUNNABLE);
+        ThreadUsageTracker.Reader cpuTimeReader = mock(ThreadUsageTracker.Reader.class);
+
+        when(threadBean.getAllThreadIds()).thenReturn(new long[]{1L, 2L});
+        when(threadBean.getThreadInfo(new long[]{1L, 2L}, 0)).thenReturn(new ThreadInfo[]{busy, blockedInIo});
+        when(cpuTimeReader.read(new long[]{1L, 2L})).thenReturn(new long[]{100L, 50L}, new long[]{200L, 50L});
+        when(threadBean.getThreadInfo(new long[]{1L, 2L}, MAX_STACK_DEPTH)).thenReturn(new ThreadInfo[]{busy, blockedInIo});
+        when(threadBean.getThreadInfo(new long[]{1L}, MAX_STACK_DEPTH)).thenReturn(new ThreadInfo[]{busy});
+
+        ThreadSampler sampler = new ThreadSampler(threadBean, MAX_STACK_DEPTH, 60_000, false, cpuTimeReader);
+
+        // Without a previous reading, both threads are sampled
+        assertThat(sampler.sample()).containsExactly(busy, blockedInIo);
+        assertThat(sampler.sample()).containsExactly(busy);
+    }
+
+    @Test
+    void testSample_RefreshesThreadIdsOnlyAfterInterval() {
+        when(threadBean.getAllThreadIds()).thenReturn(new long[0]);
+        when(threadBean.getThreadInfo(any(long[].class), anyInt())).thenReturn(new ThreadInfo[0]);
+
+        ThreadSampler sampler = new ThreadSampler(threadBean, MAX_STACK_DEPTH, 60_000, false);
+        sampler.sample();
+        sampler.sample();
+        sampler.sample();
+
+        verify(threadBean, times(1)).getAllThreadIds();
+    }
+
+    private static ThreadInfo threadInfo(long threadId, String threadName, Thread.State state) {
+        ThreadInfo info = mock(ThreadInfo.class);
+        lenient().when(info.getThreadId()).thenReturn(threadId);
+        lenient().when(info.getThreadName()).thenReturn(threadName);
+        lenient().when(info.getThreadState()).thenReturn(state);
+        return info;
+    }
+}
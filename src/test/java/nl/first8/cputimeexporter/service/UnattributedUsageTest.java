@@ -0,0 +1,49 @@
+package nl.first8.cputimeexporter.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class UnattributedUsageTest {
+
+    private static final long THREAD_ID = 7L;
+
+    @Test
+    void testTake_ReturnsUsageCarriedOverWindowsWithoutSamples() {
+        UnattributedUsage unattributedUsage = new UnattributedUsage(2);
+
+        unattributedUsage.carry(THREAD_ID, 400_000_000L, 1_000);
+        unattributedUsage.endWindow();
+        unattributedUsage.carry(THREAD_ID, 600_000_000L, 3_000);
+        unattributedUsage.endWindow();
+
+        UnattributedUsage.Usage usage = unattributedUsage.take(THREAD_ID);
+        assertThat(usage.getCpuTime()).isEqualTo(1_000_000_000L);
+        assertThat(usage.getAllocatedBytes()).isEqualTo(4_000);
+        // Taken usage is attributed, so it is not carried any further
+        assertThat(unattributedUsage.take(THREAD_ID)).isNull();
+    }
+
+    @Test
+    void testEndWindow_DropsUsageThatIsNotTakenInTime() {
+        UnattributedUsage unattributedUsage = new UnattributedUsage(2);
+
+        unattributedUsage.carry(THREAD_ID, 400_000_000L, 0);
+        unattributedUsage.endWindow();
+        unattributedUsage.carry(THREAD_ID, 100_000_000L, 0);
+        unattributedUsage.endWindow();
+        unattributedUsage.endWindow();
+
+        // Also the usage of the later window is dropped, as it is counted from the first window
+        assertThat(unattributedUsage.take(THREAD_ID)).isNull();
+    }
+
+    @Test
+    void testCarry_IgnoresThreadsWithoutUsage() {
+        UnattributedUsage unattributedUsage = new UnattributedUsage(2);
+
+        unattributedUsage.carry(THREAD_ID, 0, 0);
+
+        assertThat(unattributedUsage.take(THREAD_ID)).isNull();
+    }
+}
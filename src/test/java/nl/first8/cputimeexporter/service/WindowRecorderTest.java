@@ -0,0 +1,83 @@
+package nl.first8.cputimeexporter.service;
+
+import nl.first8.cputimeexporter.recording.RecordingFormat;
+import nl.first8.cputimeexporter.recording.RecordingReader;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+class WindowRecorderTest {
+
+    @TempDir
+    Path directory;
+
+    private final LabelTable labels = new LabelTable();
+
+    @Test
+    void testReport_RecordsAreReadBackPerTimeRange() throws IOException {
+        Path path = directory.resolve("recording.bin");
+        int service = labels.intern("nl.first8.Service.compute");
+        int repository = labels.intern("nl.first8.Repository.find");
+
+        try (WindowRecorder recorder = new WindowRecorder(path, 1024, labels)) {
+            recordWindow(recorder, 1_000, service, 0.5);
+            recordWindow(recorder, 2_000, repository, 0.25);
+            recordWindow(recorder, 3_000, service, 1.0);
+        }
+
+        RecordingReader reader = new RecordingReader(path);
+        assertThat(reader.aggregate(Long.MIN_VALUE, Long.MAX_VALUE)).containsOnly(
+                entry("nl.first8.Service.compute", 1_500_000_000L),
+                entry("nl.first8.Repository.find", 250_000_000L));
+        assertThat(reader.aggregate(1_500, 2_500)).containsOnly(entry("nl.first8.Repository.find", 250_000_000L));
+    }
+
+    @Test
+    void testReport_KeepsOnlyLastRecordsOfRing() throws IOException {
+        Path path = directory.resolve("recording.bin");
+        int labelId = labels.intern("nl.first8.Service.compute");
+
+        try (WindowRecorder recorder = new WindowRecorder(path, RecordingFormat.HEADER_SIZE + 3 * RecordingFormat.RECORD_SIZE, labels)) {
+            for (int window = 1; window <= 5; window++) {
+                recordWindow(recorder, window * 1_000L, labelId, window);
+            }
+        }
+
+        List<Long> timestamps = new ArrayList<>();
+        new RecordingReader(path).forEach(Long.MIN_VALUE, Long.MAX_VALUE,
+                (timestampMillis, recordedLabelId, cpuNanos) -> timestamps.add(timestampMillis));
+        assertThat(timestamps).containsExactly(3_000L, 4_000L, 5_000L);
+    }
+
+    @Test
+    void testConstructor_KeepsRecordingOfPreviousRun() throws IOException {
+        Path path = directory.resolve("recording.bin");
+        int service = labels.intern("nl.first8.Service.compute");
+        int repository = labels.intern("nl.first8.Repository.find");
+
+        try (WindowRecorder recorder = new WindowRecorder(path, 1024, labels)) {
+            recordWindow(recorder, 1_000, service, 0.5);
+        }
+        try (WindowRecorder recorder = new WindowRecorder(path, 1024, labels)) {
+            recordWindow(recorder, 2_000, repository, 0.25);
+        }
+
+        assertThat(new RecordingReader(path).aggregate(Long.MIN_VALUE, Long.MAX_VALUE))
+                .containsOnly(entry("nl.first8.Repository.find", 250_000_000L));
+        assertThat(new RecordingReader(RecordingFormat.previousPath(path)).aggregate(Long.MIN_VALUE, Long.MAX_VALUE))
+                .containsOnly(entry("nl.first8.Service.compute", 500_000_000L));
+    }
+
+    private static void recordWindow(WindowRecorder recorder, long timestampMillis, int labelId, double seconds) {
+        recorder.beginWindow(timestampMillis);
+        recorder.report(labelId, seconds, 0);
+        recorder.endWindow();
+    }
+}